@@ -0,0 +1,81 @@
+package service.controller;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import service.discovery.SyntheticThings;
+
+/**
+ * This benchmark measures the helpers of {@link GatewayServicesController} used in every discovery: cleaning the query, parsing the TED header,
+ * serializing the TED as JSON-LD and translating IRIs to the Agora namespace
+ * @author cimmino
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GatewayServicesControllerBenchmark {
+
+	// -- Attributes
+
+	@Param({"10", "100", "1000"})
+	private int neighbors;
+	@Param({"5"})
+	private int properties;
+	private Model ted;
+	private String query;
+	private String queryWithFilter;
+
+
+	// -- Setup
+
+	@Setup
+	public void setup() {
+		ted = GatewayServicesController.parseRDF(GatewayServicesController.TED_HEADER, "TURTLE");
+		for(Map.Entry<String, Model> thing:SyntheticThings.things(neighbors, properties).entrySet()) {
+			ted.add(ResourceFactory.createResource("http://bnodes/N9e711c303f3e40f7872d87ccb66cc225"), ResourceFactory.createProperty("http://iot.linkeddata.es/def/core#hasComponent"), ResourceFactory.createResource(SyntheticThings.DATA_DOMAIN+"/things/"+thing.getKey()));
+			ted.add(thing.getValue());
+		}
+		query = SyntheticThings.queries().get("feature");
+		queryWithFilter = query.replace("}", "  FILTER (?pid != \"p0\")\n}");
+	}
+
+
+	// -- Benchmarks
+
+	@Benchmark
+	public String serializeTedAsJsonLd() {
+		return GatewayServicesController.toString(ted, "JSONLD");
+	}
+
+	@Benchmark
+	public Model parseTedHeader() {
+		return GatewayServicesController.parseRDF(GatewayServicesController.TED_HEADER, "TURTLE");
+	}
+
+	@Benchmark
+	public String cleanQuery() {
+		return GatewayServicesController.cleanQuery(query);
+	}
+
+	@Benchmark
+	public String cleanQueryWithFilter() {
+		return GatewayServicesController.cleanQuery(queryWithFilter);
+	}
+
+	@Benchmark
+	public String translateIRIToNamespace() {
+		return GatewayServicesController.translateIRIToNamespace(SyntheticThings.DATA_DOMAIN+"/things/thing-42", "http://agora.example.org");
+	}
+}
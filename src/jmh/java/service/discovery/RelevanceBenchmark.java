@@ -0,0 +1,64 @@
+package service.discovery;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.rdf.model.Model;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * This benchmark measures the relevance check of the neighbors of a discovery with typical VICINITY queries, and the lookup of an already compiled query
+ * @author cimmino
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RelevanceBenchmark {
+
+	// -- Attributes
+
+	@Param({"10", "100", "1000"})
+	private int neighbors;
+	@Param({"5", "20"})
+	private int properties;
+	@Param({"things", "feature", "device", "absent"})
+	private String query;
+	private Collection<Model> graphs;
+	private RelevanceEngine relevanceEngine;
+	private CompiledQuery compiledQuery;
+	private String queryString;
+
+
+	// -- Setup
+
+	@Setup
+	public void setup() {
+		graphs = SyntheticThings.things(neighbors, properties).values();
+		queryString = SyntheticThings.queries().get(query);
+		relevanceEngine = new RelevanceEngine(256);
+		compiledQuery = relevanceEngine.compile(queryString);
+	}
+
+
+	// -- Benchmarks
+
+	@Benchmark
+	public void checkRelevance(Blackhole blackhole) {
+		for(Model graph:graphs)
+			blackhole.consume(compiledQuery.isRelevant(graph.getGraph()));
+	}
+
+	@Benchmark
+	public CompiledQuery compileCachedQuery() {
+		return relevanceEngine.compile(queryString);
+	}
+}
@@ -0,0 +1,132 @@
+package service.discovery;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.RDF;
+
+/**
+ * This class builds synthetic Things shaped as the VICINITY Thing Descriptions stored in the semantic repository, used as input of the benchmarks
+ * <p>
+ * Every Thing is a device with a name, an owner and a given number of properties, each property with its interaction name, monitored feature and access link (wot#href)
+ * @author cimmino
+ *
+ */
+public class SyntheticThings {
+
+	// -- Attributes
+
+	public static final String CORE = "http://iot.linkeddata.es/def/core#";
+	public static final String WOT = "http://iot.linkeddata.es/def/wot#";
+	public static final String ADAPTERS = "http://iot.linkeddata.es/def/adapters#";
+	public static final String SOSA = "http://www.w3.org/ns/sosa/";
+	public static final String DATA_DOMAIN = "http://vicinity.eu/data";
+	private static final String[] DEVICES = {"Thermostat", "LightBulb", "SmartPlug", "OccupancySensor"};
+	private static final String[] FEATURES = {"AmbientTemperature", "Brightness", "PowerConsumption", "Occupancy"};
+
+
+	// -- Constructor
+
+	private SyntheticThings() {
+		// static factory
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method returns the OIDs of a given number of Things
+	 * @param things The number of Things
+	 * @return A list of OIDs
+	 */
+	public static List<String> oids(int things) {
+		List<String> oids = new ArrayList<>(things);
+		for(int index = 0; index < things; index++)
+			oids.add("thing-"+index);
+		return oids;
+	}
+
+	/**
+	 * This method builds the graph of a Thing
+	 * @param oid The OID of the Thing
+	 * @param properties The number of properties of the Thing
+	 * @return A jena {@link Model} with the description of the Thing
+	 */
+	public static Model thing(String oid, int properties) {
+		Model model = ModelFactory.createDefaultModel();
+		int kind = Math.abs(oid.hashCode()) % DEVICES.length;
+		Resource thing = model.createResource(DATA_DOMAIN+"/things/"+oid);
+		thing.addProperty(RDF.type, model.createResource(CORE+"Thing"));
+		thing.addProperty(RDF.type, model.createResource(ADAPTERS+DEVICES[kind]));
+		thing.addProperty(property(model, CORE, "thingName"), "Device "+oid+", floor "+(kind+1));
+		thing.addProperty(property(model, CORE, "hasOwner"), model.createResource(DATA_DOMAIN+"/things/owner-"+kind));
+		for(int index = 0; index < properties; index++) {
+			Resource pattern = model.createResource(thing.getURI()+"/property/p"+index);
+			pattern.addProperty(RDF.type, model.createResource(WOT+"Property"));
+			pattern.addProperty(property(model, WOT, "interactionName"), "p"+index);
+			pattern.addProperty(property(model, SOSA, "observes"), model.createResource(ADAPTERS+FEATURES[(kind + index) % FEATURES.length]));
+			pattern.addProperty(property(model, WOT, "href"), "/objects/"+oid+"/properties/p"+index);
+			thing.addProperty(property(model, WOT, "providesInteractionPattern"), pattern);
+		}
+		return model;
+	}
+
+	/**
+	 * This method builds the graphs of several Things
+	 * @param things The number of Things
+	 * @param properties The number of properties of each Thing
+	 * @return The graphs of the Things indexed by OID
+	 */
+	public static Map<String, Model> things(int things, int properties) {
+		Map<String, Model> graphs = new LinkedHashMap<>();
+		for(String oid:oids(things))
+			graphs.put(oid, thing(oid, properties));
+		return graphs;
+	}
+
+	/**
+	 * This method writes the graphs of several Things as the SPARQL TSV results answered by the semantic repository
+	 * @param graphs The graphs of the Things indexed by OID
+	 * @return The SPARQL results with the columns ?g ?s ?p ?o
+	 */
+	public static byte[] tsv(Map<String, Model> graphs) {
+		StringBuilder results = new StringBuilder("?g\t?s\t?p\t?o\n");
+		graphs.forEach((oid, model) -> model.listStatements().forEachRemaining(statement -> {
+			results.append('<').append(SemanticRepository.THINGS_GRAPH).append(oid).append(">\t");
+			results.append('<').append(statement.getSubject().getURI()).append(">\t");
+			results.append('<').append(statement.getPredicate().getURI()).append(">\t");
+			if(statement.getObject().isURIResource()) {
+				results.append('<').append(statement.getObject().asResource().getURI()).append('>');
+			}else {
+				results.append('"').append(statement.getObject().asLiteral().getLexicalForm()).append('"');
+			}
+			results.append('\n');
+		}));
+		return results.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * This method returns SPARQL queries as those issued by VICINITY agents, indexed by a short name
+	 * @return The queries
+	 */
+	public static Map<String, String> queries() {
+		String prefixes = "PREFIX core: <"+CORE+">\nPREFIX wot: <"+WOT+">\nPREFIX adapters: <"+ADAPTERS+">\nPREFIX sosa: <"+SOSA+">\n";
+		Map<String, String> queries = new LinkedHashMap<>();
+		queries.put("things", prefixes+"SELECT ?thing WHERE {\n  ?thing a core:Thing .\n}");
+		queries.put("feature", prefixes+"SELECT ?thing ?pid WHERE {\n  ?thing a core:Thing ;\n    wot:providesInteractionPattern ?property .\n  ?property wot:interactionName ?pid ;\n    sosa:observes adapters:AmbientTemperature .\n}");
+		queries.put("device", prefixes+"SELECT ?thing ?name WHERE {\n  ?thing a adapters:Thermostat ;\n    core:thingName ?name .\n  OPTIONAL { ?thing core:hasOwner ?owner }\n}");
+		queries.put("absent", prefixes+"SELECT ?thing WHERE {\n  ?thing a adapters:Actuator ;\n    wot:providesInteractionPattern ?action .\n}");
+		return queries;
+	}
+
+	private static Property property(Model model, String namespace, String name) {
+		return model.createProperty(namespace, name);
+	}
+}
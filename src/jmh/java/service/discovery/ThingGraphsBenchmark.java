@@ -0,0 +1,73 @@
+package service.discovery;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.resultset.ResultSetLang;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * This benchmark measures the per-request work done on the graphs of the neighbors of a discovery: reading them from the SPARQL results of the repository and streaming them as JSON-LD
+ * @author cimmino
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ThingGraphsBenchmark {
+
+	// -- Attributes
+
+	@Param({"10", "100", "1000"})
+	private int neighbors;
+	@Param({"5", "20"})
+	private int properties;
+	private List<String> oids;
+	private Map<String, Model> graphs;
+	private byte[] results;
+
+
+	// -- Setup
+
+	@Setup
+	public void setup() {
+		oids = SyntheticThings.oids(neighbors);
+		graphs = SyntheticThings.things(neighbors, properties);
+		results = SyntheticThings.tsv(graphs);
+	}
+
+
+	// -- Benchmarks
+
+	@Benchmark
+	public Map<String, Model> readRepositoryResults() {
+		Map<String, Model> read = new HashMap<>();
+		oids.forEach(oid -> read.put(oid, ModelFactory.createDefaultModel()));
+		SemanticRepository.readResults(new ByteArrayInputStream(results), ResultSetLang.SPARQLResultSetTSV, read);
+		return read;
+	}
+
+	@Benchmark
+	public void streamTed() throws IOException {
+		try (TedStreamWriter writer = new TedStreamWriter(NullOutputStream.NULL_OUTPUT_STREAM)) {
+			for(Map.Entry<String, Model> thing:graphs.entrySet()) {
+				writer.write("http://bnodes/ecosystem", "http://iot.linkeddata.es/def/core#hasComponent", SyntheticThings.DATA_DOMAIN+"/things/"+thing.getKey());
+				writer.write(thing.getValue());
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package service.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves local stand-ins of Agora ({@code /agora/prefixes}, {@code /agora/discover}, {@code /agora/plan} and resources) and of the semantic repository SPARQL endpoint ({@code /repository})
+ * <p>
+ * Every answer is delayed by a latency plus a random jitter, fails with a given error rate, and has a configurable size: the properties of each Thing answered by the repository
+ * and the Things in the TEDs answered by Agora. Things answered by the repository have an owner, so the ownership of the neighbors is expanded as with real data.
+ * @author cimmino
+ *
+ */
+public class FakeUpstreams implements Closeable {
+
+	// -- Attributes
+
+	public static final String DATA_DOMAIN = "http://vicinity.eu/data";
+	private static final String THINGS_GRAPH = "http://vicinity.eu/data/things/";
+	private static final String CORE = "http://iot.linkeddata.es/def/core#";
+	private static final String WOT = "http://iot.linkeddata.es/def/wot#";
+	private static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+	private static final Pattern REQUESTED_THING = Pattern.compile("<"+Pattern.quote(THINGS_GRAPH)+"([^>]+)>");
+	private static final int OWNERS = 8;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final long latencyMillis;
+	private final long jitterMillis;
+	private final double errorRate;
+	private final int properties;
+	private final int tedThings;
+	private final AtomicLong repositoryCalls = new AtomicLong();
+	private final AtomicLong agoraCalls = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+
+	// -- Constructor
+
+	/**
+	 * @param latencyMillis The delay of every answer
+	 * @param jitterMillis The maximum random delay added to the latency
+	 * @param errorRate The ratio of calls answered with an error (status 500)
+	 * @param properties The properties of each Thing answered by the repository
+	 * @param tedThings The Things of each TED answered by Agora
+	 * @param threads The threads serving calls
+	 * @throws IOException If the server could not be started
+	 */
+	public FakeUpstreams(long latencyMillis, long jitterMillis, double errorRate, int properties, int tedThings, int threads) throws IOException {
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		this.errorRate = errorRate;
+		this.properties = properties;
+		this.tedThings = tedThings;
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 512);
+		this.server.setExecutor(executor);
+		this.server.createContext("/repository", this::repository);
+		this.server.createContext("/agora", this::agora);
+		this.server.start();
+	}
+
+
+	// -- Methods
+
+	public String getAgoraEndpoint() {
+		return "http://localhost:"+server.getAddress().getPort()+"/agora";
+	}
+
+	public String getRepositoryEndpoint() {
+		return "http://localhost:"+server.getAddress().getPort()+"/repository";
+	}
+
+	public long getRepositoryCalls() {
+		return repositoryCalls.get();
+	}
+
+	public long getAgoraCalls() {
+		return agoraCalls.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+
+	// -- Ancillary methods
+
+	private void repository(HttpExchange exchange) throws IOException {
+		repositoryCalls.incrementAndGet();
+		String body = URLDecoder.decode(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8), "UTF-8");
+		Set<String> oids = new LinkedHashSet<>();
+		Matcher matcher = REQUESTED_THING.matcher(body);
+		while(matcher.find())
+			oids.add(matcher.group(1));
+		StringBuilder results = new StringBuilder("?g\t?s\t?p\t?o\n");
+		for(String oid:oids)
+			thingRows(results, oid);
+		answer(exchange, "text/tab-separated-values", results.toString());
+	}
+
+	private void thingRows(StringBuilder results, String oid) {
+		String graph = "<"+THINGS_GRAPH+oid+">\t";
+		String thing = "<"+THINGS_GRAPH+oid+">";
+		boolean owner = oid.startsWith("owner-");
+		row(results, graph, thing, RDF_TYPE, "<"+CORE+(owner? "Agent" : "Thing")+">");
+		row(results, graph, thing, CORE+"thingName", "\"Device "+oid+", load test\"");
+		if(!owner)
+			row(results, graph, thing, CORE+"hasOwner", "<"+THINGS_GRAPH+"owner-"+Math.floorMod(oid.hashCode(), OWNERS)+">");
+		for(int index = 0; index < properties && !owner; index++) {
+			String pattern = "<"+THINGS_GRAPH+oid+"/property/p"+index+">";
+			row(results, graph, thing, WOT+"providesInteractionPattern", pattern);
+			row(results, graph, pattern, RDF_TYPE, "<"+WOT+"Property>");
+			row(results, graph, pattern, WOT+"interactionName", "\"p"+index+"\"");
+			row(results, graph, pattern, WOT+"href", "\"/objects/"+oid+"/properties/p"+index+"\"");
+		}
+	}
+
+	private void row(StringBuilder results, String graph, String subject, String predicate, String object) {
+		results.append(graph).append(subject).append('\t').append('<').append(predicate).append(">\t").append(object).append('\n');
+	}
+
+	private void agora(HttpExchange exchange) throws IOException {
+		agoraCalls.incrementAndGet();
+		readAll(exchange.getRequestBody());
+		String path = exchange.getRequestURI().getPath();
+		String agora = getAgoraEndpoint();
+		if(path.endsWith("/prefixes")) {
+			answer(exchange, "application/json", "{\"core\":\""+CORE+"\",\"wot\":\""+WOT+"\"}");
+		}else if(path.endsWith("/discover")) {
+			StringBuilder ted = new StringBuilder("[");
+			for(int index = 0; index < tedThings; index++) {
+				if(index > 0)
+					ted.append(',');
+				ted.append("{\"@id\":\"").append(agora).append("/things/thing-").append(index).append("\",\"@type\":[\"").append(CORE).append("Thing\"]}");
+			}
+			answer(exchange, "application/ld+json", ted.append(']').toString());
+		}else if(path.endsWith("/plan")) {
+			answer(exchange, "text/turtle", "<"+agora+"/plan> a <http://agora.org/amqp#SearchPlan> ;\n  <http://agora.org/amqp#expects> <"+agora+"/things/thing-0> .\n");
+		}else {
+			answer(exchange, "application/json", "{\"@id\":\""+agora+path.substring(path.indexOf("/things/") < 0? path.length() : path.indexOf("/things/"))+"\"}");
+		}
+	}
+
+	private void answer(HttpExchange exchange, String contentType, String body) throws IOException {
+		try {
+			long jitter = jitterMillis > 0? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0;
+			TimeUnit.MILLISECONDS.sleep(latencyMillis + jitter);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		int status = 200;
+		if(errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+			failures.incrementAndGet();
+			status = 500;
+			bytes = new byte[0];
+		}
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length == 0? -1 : bytes.length);
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(bytes);
+		}
+	}
+
+	private static byte[] readAll(InputStream input) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = input.read(buffer)) >= 0)
+			bytes.write(buffer, 0, read);
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,171 @@
+package service.loadtest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * This class drives the gateway with a fixed number of concurrent clients, each of them sending its next request as soon as the previous one is answered (closed loop)
+ * <p>
+ * Requests are spread over the given endpoints. Discoveries ask for a given number of neighbors, picked at random among a larger population of Things so that the Thing cache sees both hits and misses.
+ * @author cimmino
+ *
+ */
+public class LoadGenerator {
+
+	// -- Attributes
+
+	public static final String QUERY = "PREFIX core: <http://iot.linkeddata.es/def/core#>\nPREFIX wot: <http://iot.linkeddata.es/def/wot#>\nSELECT ?thing ?pid WHERE {\n  ?thing a core:Thing ;\n    wot:providesInteractionPattern ?property .\n  ?property wot:interactionName ?pid .\n}";
+	private final String target;
+	private final List<String> endpoints;
+	private final int concurrency;
+	private final int neighbors;
+	private final int population;
+
+
+	// -- Constructor
+
+	/**
+	 * @param target The base URL of the gateway
+	 * @param endpoints The endpoints requested, e.g., advanced-discovery, discovery, plan, prefixes or resource
+	 * @param concurrency The concurrent clients
+	 * @param neighbors The neighbors of each discovery
+	 * @param population The Things among which neighbors are picked
+	 */
+	public LoadGenerator(String target, List<String> endpoints, int concurrency, int neighbors, int population) {
+		this.target = target;
+		this.endpoints = endpoints;
+		this.concurrency = concurrency;
+		this.neighbors = neighbors;
+		this.population = Math.max(population, neighbors);
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method sends requests during a warm-up, whose answers are discarded, and then during the measured time
+	 * @param warmupSeconds The length of the warm-up
+	 * @param durationSeconds The length of the measurement
+	 * @return The results of the measured requests
+	 * @throws InterruptedException If the calling thread is interrupted
+	 */
+	public LoadResult run(long warmupSeconds, long durationSeconds) throws InterruptedException {
+		long start = System.nanoTime();
+		long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+		ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+		List<Future<ClientResult>> futures = new ArrayList<>();
+		try (CloseableHttpClient httpClient = HttpClients.custom().setMaxConnTotal(concurrency).setMaxConnPerRoute(concurrency).build()) {
+			for(int client = 0; client < concurrency; client++)
+				futures.add(clients.submit(() -> drive(httpClient, measureFrom, end)));
+			LoadResult result = new LoadResult(durationSeconds);
+			for(Future<ClientResult> future:futures) {
+				try {
+					ClientResult client = future.get();
+					result.add(client.latencies, client.count, client.errors);
+				}catch(Exception e) {
+					result.add(new long[0], 0, 1);
+				}
+			}
+			return result;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			clients.shutdownNow();
+		}
+	}
+
+
+	// -- Ancillary methods
+
+	private ClientResult drive(CloseableHttpClient httpClient, long measureFrom, long end) {
+		ClientResult result = new ClientResult();
+		long now = System.nanoTime();
+		while(now < end) {
+			HttpUriRequest request = nextRequest();
+			boolean failed = false;
+			try {
+				failed = !httpClient.execute(request, response -> {
+					HttpEntity entity = response.getEntity();
+					EntityUtils.consume(entity);
+					return response.getStatusLine().getStatusCode() < 400;
+				});
+			}catch(IOException e) {
+				failed = true;
+			}
+			long answered = System.nanoTime();
+			if(now >= measureFrom)
+				result.record(answered - now, failed);
+			now = answered;
+		}
+		return result;
+	}
+
+	private HttpUriRequest nextRequest() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String endpoint = endpoints.get(random.nextInt(endpoints.size()));
+		HttpUriRequest request;
+		if(endpoint.equals("prefixes")) {
+			request = new HttpGet(target+"/prefixes");
+		}else if(endpoint.equals("resource")) {
+			request = post("/resource", "{\"resource\":\""+FakeUpstreams.DATA_DOMAIN+"/things/thing-"+random.nextInt(population)+"\"}", ContentType.APPLICATION_JSON);
+		}else if(endpoint.equals("plan")) {
+			request = post("/plan", QUERY, ContentType.APPLICATION_JSON);
+		}else if(endpoint.equals("discovery")) {
+			request = post("/discovery", QUERY, ContentType.TEXT_PLAIN);
+		}else {
+			StringBuilder oids = new StringBuilder();
+			int first = random.nextInt(population);
+			for(int index = 0; index < neighbors; index++) {
+				if(index > 0)
+					oids.append(',');
+				oids.append("thing-").append((first + index) % population);
+			}
+			String stream = endpoint.equals("advanced-discovery-stream")? "&stream=true" : "";
+			request = post("/advanced-discovery?neighbors="+oids+stream, QUERY, ContentType.TEXT_PLAIN);
+		}
+		return request;
+	}
+
+	private HttpPost post(String path, String body, ContentType contentType) {
+		HttpPost request = new HttpPost(target+path);
+		request.setEntity(new StringEntity(body, contentType.withCharset(StandardCharsets.UTF_8)));
+		return request;
+	}
+
+	/**
+	 * Latencies recorded by one client, kept in a growing array to avoid boxing
+	 */
+	private static class ClientResult {
+
+		private long[] latencies = new long[1024];
+		private int count = 0;
+		private long errors = 0;
+
+		void record(long latency, boolean failed) {
+			if(count == latencies.length)
+				latencies = Arrays.copyOf(latencies, count * 2);
+			latencies[count++] = latency;
+			if(failed)
+				errors++;
+		}
+	}
+}
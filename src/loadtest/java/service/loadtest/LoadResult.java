@@ -0,0 +1,73 @@
+package service.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class gathers the latencies of the measured requests of a load test and computes its throughput and percentiles
+ * @author cimmino
+ *
+ */
+public class LoadResult {
+
+	// -- Attributes
+
+	private final long durationSeconds;
+	private long[] latencies = new long[0];
+	private long errors = 0;
+	private boolean sorted = true;
+
+
+	// -- Constructor
+
+	public LoadResult(long durationSeconds) {
+		this.durationSeconds = durationSeconds;
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method adds the latencies recorded by a client
+	 * @param clientLatencies The latencies, in nanoseconds
+	 * @param count The latencies to take from the array
+	 * @param clientErrors The failed requests
+	 */
+	public void add(long[] clientLatencies, int count, long clientErrors) {
+		int previous = latencies.length;
+		latencies = Arrays.copyOf(latencies, previous + count);
+		System.arraycopy(clientLatencies, 0, latencies, previous, count);
+		sorted = false;
+		errors += clientErrors;
+	}
+
+	public long getRequests() {
+		return latencies.length;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	public double getThroughput() {
+		return latencies.length / (double) Math.max(1, durationSeconds);
+	}
+
+	/**
+	 * This method returns a percentile of the latencies
+	 * @param percentile A percentile between 0 and 100
+	 * @return The latency, in milliseconds
+	 */
+	public double percentile(double percentile) {
+		double latency = 0;
+		if(!sorted) {
+			Arrays.sort(latencies);
+			sorted = true;
+		}
+		if(latencies.length > 0) {
+			int index = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+			latency = latencies[Math.max(0, Math.min(latencies.length - 1, index))] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		}
+		return latency;
+	}
+}
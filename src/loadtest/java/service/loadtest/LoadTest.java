@@ -0,0 +1,133 @@
+package service.loadtest;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import service.EosApplication;
+
+/**
+ * This class runs a load test of the gateway against local stand-ins of Agora and the semantic repository, and prints a report of its capacity
+ * <p>
+ * By default the gateway is started in this JVM, configured with the stand-ins; with {@code -Dloadtest.target=http://host:port} an already running gateway is driven instead
+ * (it must be configured with the stand-ins printed at start-up). The report contains throughput, latency percentiles, errors, and the threads and heap of the gateway read from its metrics.
+ * <p>
+ * Options (system properties): {@code loadtest.endpoints} (comma separated: advanced-discovery, advanced-discovery-stream, discovery, plan, prefixes, resource), {@code loadtest.concurrency}, {@code loadtest.neighbors},
+ * {@code loadtest.population}, {@code loadtest.warmup-seconds}, {@code loadtest.duration-seconds}, {@code loadtest.latency-ms}, {@code loadtest.jitter-ms}, {@code loadtest.error-rate}, {@code loadtest.properties}, {@code loadtest.ted-things} and {@code loadtest.port}
+ * @author cimmino
+ *
+ */
+public class LoadTest {
+
+	// -- Attributes
+
+	private static final String[] HEAP = {"jvm.memory.used", "area:heap"};
+	private static final String[] THREADS = {"jvm.threads.live", null};
+	private static final String[][] POOLS = {{"executor.active", "name:discovery"}, {"executor.queued", "name:discovery"}, {"executor.active", "name:upstream"}, {"executor.active", "name:response"}};
+
+
+	// -- Main
+
+	public static void main(String[] args) throws Exception {
+		List<String> endpoints = Arrays.asList(System.getProperty("loadtest.endpoints", "advanced-discovery").split(","));
+		int concurrency = Integer.getInteger("loadtest.concurrency", 16);
+		int neighbors = Integer.getInteger("loadtest.neighbors", 50);
+		int population = Integer.getInteger("loadtest.population", 1000);
+		long warmup = Long.getLong("loadtest.warmup-seconds", 10);
+		long duration = Long.getLong("loadtest.duration-seconds", 30);
+		String target = System.getProperty("loadtest.target");
+		ConfigurableApplicationContext gateway = null;
+		try (FakeUpstreams upstreams = new FakeUpstreams(Long.getLong("loadtest.latency-ms", 20), Long.getLong("loadtest.jitter-ms", 10), Double.parseDouble(System.getProperty("loadtest.error-rate", "0")),
+				Integer.getInteger("loadtest.properties", 5), Integer.getInteger("loadtest.ted-things", 20), 128)) {
+			System.out.println("Agora stand-in: "+upstreams.getAgoraEndpoint());
+			System.out.println("Repository stand-in: "+upstreams.getRepositoryEndpoint());
+			// 1. Start the gateway configured with the stand-ins, unless an external one is tested
+			if(target == null) {
+				String port = System.getProperty("loadtest.port", "18081");
+				gateway = startGateway(upstreams, port);
+				target = "http://localhost:"+port;
+			}
+			// 2. Drive the gateway while its threads and heap are sampled
+			try (CloseableHttpClient metricsClient = HttpClients.createDefault()) {
+				String gatewayUrl = target;
+				double[] peaks = new double[2];
+				ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+				sampler.scheduleAtFixedRate(() -> {
+					peaks[0] = Math.max(peaks[0], metric(metricsClient, gatewayUrl, THREADS));
+					peaks[1] = Math.max(peaks[1], metric(metricsClient, gatewayUrl, HEAP));
+				}, 0, 1, TimeUnit.SECONDS);
+				System.out.println(String.format(Locale.ROOT, "Load test: %s, %d clients, %d neighbors, %ds warm-up, %ds measured", endpoints, concurrency, neighbors, warmup, duration));
+				LoadResult result = new LoadGenerator(target, endpoints, concurrency, neighbors, population).run(warmup, duration);
+				sampler.shutdownNow();
+				// 3. Report
+				report(result, upstreams, peaks, metricsClient, gatewayUrl);
+			}
+		} finally {
+			if(gateway != null)
+				gateway.close();
+		}
+	}
+
+
+	// -- Ancillary methods
+
+	private static ConfigurableApplicationContext startGateway(FakeUpstreams upstreams, String port) throws Exception {
+		JSONObject config = new JSONObject();
+		config.put("AGORA_ENDPOINT", upstreams.getAgoraEndpoint());
+		config.put("DATA_DOMAIN", FakeUpstreams.DATA_DOMAIN);
+		config.put("SEMANTIC_REPOSITORY_ENDPOINT", upstreams.getRepositoryEndpoint());
+		File file = File.createTempFile("gateway-loadtest", ".json");
+		file.deleteOnExit();
+		Files.write(file.toPath(), config.toString().getBytes(StandardCharsets.UTF_8));
+		System.setProperty("server.port", port);
+		return SpringApplication.run(EosApplication.class, "--config", file.getAbsolutePath());
+	}
+
+	private static void report(LoadResult result, FakeUpstreams upstreams, double[] peaks, CloseableHttpClient metricsClient, String target) {
+		StringBuilder report = new StringBuilder("\n==== Gateway load test report ====\n");
+		report.append(String.format(Locale.ROOT, "Requests:        %d (%d errors)%n", result.getRequests(), result.getErrors()));
+		report.append(String.format(Locale.ROOT, "Throughput:      %.1f requests/s%n", result.getThroughput()));
+		report.append(String.format(Locale.ROOT, "Latency (ms):    p50 %.1f | p90 %.1f | p99 %.1f | max %.1f%n", result.percentile(50), result.percentile(90), result.percentile(99), result.percentile(100)));
+		report.append(String.format(Locale.ROOT, "Threads:         %.0f live, %.0f peak%n", metric(metricsClient, target, THREADS), peaks[0]));
+		report.append(String.format(Locale.ROOT, "Heap (MB):       %.1f used, %.1f peak%n", metric(metricsClient, target, HEAP) / 1048576, peaks[1] / 1048576));
+		for(String[] pool:POOLS)
+			report.append(String.format(Locale.ROOT, "%-17s%.0f%n", pool[0]+" "+pool[1].substring(pool[1].indexOf(':') + 1)+":", metric(metricsClient, target, pool)));
+		report.append(String.format(Locale.ROOT, "Upstream calls:  %d repository, %d Agora, %d failed on purpose%n", upstreams.getRepositoryCalls(), upstreams.getAgoraCalls(), upstreams.getFailures()));
+		System.out.println(report);
+	}
+
+	/**
+	 * Reads the value of a metric from the actuator of the gateway, or NaN if it is not available
+	 */
+	private static double metric(CloseableHttpClient metricsClient, String target, String[] metric) {
+		double value = Double.NaN;
+		String url = target+"/actuator/metrics/"+metric[0]+(metric[1] != null? "?tag="+metric[1] : "");
+		try {
+			String body = metricsClient.execute(new HttpGet(url), response -> EntityUtils.toString(response.getEntity()));
+			JSONArray measurements = new JSONObject(body).getJSONArray("measurements");
+			for(int index = 0; index < measurements.length(); index++) {
+				JSONObject measurement = measurements.getJSONObject(index);
+				if("VALUE".equals(measurement.getString("statistic")))
+					value = measurement.getDouble("value");
+			}
+		}catch(Exception e) {
+			// metric not exposed by the gateway
+		}
+		return value;
+	}
+}
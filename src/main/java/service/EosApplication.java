@@ -1,7 +1,8 @@
 package service;
 
-import service.controller.GatewayServicesController;
+import service.configuration.GatewayWarmup;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
 import org.springframework.boot.ApplicationArguments;
@@ -16,9 +17,21 @@ public class EosApplication implements ApplicationRunner{
 	
 	// -- Attributes
     private Logger log = Logger.getLogger(EosApplication.class.getName());
+    private static CompletableFuture<Void> startup = null;
+    private final GatewayWarmup warmup;
 
+    
+    // -- Constructor
+    
+    public EosApplication(GatewayWarmup warmup) {
+    		this.warmup = warmup;
+    }
+    
 	
 	public static void main(String[] args) {
+		// The configuration is read and Jena initialized while Spring starts
+		if(args.length == 2 && args[0].equals("--config") && !args[1].isEmpty())
+			startup = GatewayWarmup.prepare(args[1]);
 		SpringApplication.run(EosApplication.class, args);
 	}
 
@@ -30,8 +43,9 @@ public class EosApplication implements ApplicationRunner{
         if(stringArgs.length == 2 && stringArgs[0].equals("--config")){
             String file = stringArgs[1];
             if(!file.isEmpty()) {
-            		// 1.A.A If a configuration file was provided, then initialize the server
-                GatewayServicesController.initializeFromFile(file);
+            		// 1.A.A If a configuration file was provided, then wait until the server is initialized and warm it up
+                (startup != null? startup : GatewayWarmup.prepare(file)).join();
+                warmup.start();
             }else{
             		// 1.A.B Otherwise close everything
             		log.severe("Provided json file for configuration is empty");
@@ -0,0 +1,59 @@
+package service.configuration;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * This configuration provides the bounded pool of threads that writes asynchronous responses, e.g., streamed TEDs, instead of the Spring default that creates a thread per response
+ * <p>
+ * The active threads, pool size and queued responses of the pool are exposed as the {@code executor.*} metrics tagged with {@code name=response}
+ * @author cimmino
+ *
+ */
+@Configuration
+public class AsyncConfiguration implements WebMvcConfigurer {
+
+	// -- Attributes
+	
+	@Value("${web.async.threads:32}")
+	private int threads;
+	@Value("${web.async.queue-capacity:256}")
+	private int queueCapacity;
+	
+	
+	// -- Beans
+	
+	@Bean
+	public ThreadPoolTaskExecutor responseExecutor() {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(threads);
+		executor.setMaxPoolSize(threads);
+		executor.setQueueCapacity(queueCapacity);
+		executor.setThreadNamePrefix("response-");
+		executor.setWaitForTasksToCompleteOnShutdown(true);
+		executor.setAwaitTerminationSeconds(10);
+		return executor;
+	}
+	
+	@Bean
+	public MeterBinder responseExecutorMetrics(ThreadPoolTaskExecutor responseExecutor) {
+		// Gauges are read lazily, the pool is created once Spring initializes the executor
+		return registry -> {
+			Gauge.builder("executor.active", responseExecutor, ThreadPoolTaskExecutor::getActiveCount).tag("name", "response").baseUnit("threads").register(registry);
+			Gauge.builder("executor.pool.size", responseExecutor, ThreadPoolTaskExecutor::getPoolSize).tag("name", "response").baseUnit("threads").register(registry);
+			Gauge.builder("executor.queued", responseExecutor, executor -> executor.getThreadPoolExecutor().getQueue().size()).tag("name", "response").baseUnit("threads").register(registry);
+		};
+	}
+	
+	@Override
+	public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+		configurer.setTaskExecutor(responseExecutor());
+	}
+}
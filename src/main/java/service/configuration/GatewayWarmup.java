@@ -0,0 +1,249 @@
+package service.configuration;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.resultset.ResultSetLang;
+import org.apache.jena.sys.JenaSystem;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import service.controller.GatewayServicesController;
+import service.discovery.CompiledQuery;
+import service.discovery.Deadline;
+import service.discovery.OwnershipTraversal;
+import service.discovery.SemanticRepository;
+import service.discovery.TedFormat;
+
+/**
+ * This component prepares the gateway to take traffic without a latency spike, and reports it ready at {@code /actuator/health} only once it is warm
+ * <p>
+ * While Spring starts, the configuration file is read and validated and Jena (its subsystems and the JSON-LD writer and parser) is initialized, see {@link #prepare(String)}.
+ * Once the server is up, the discovery of a synthetic Thing and its owner is run locally {@code startup.warmup.iterations} times, so that the JIT compiles the reading of repository results (canned TSV results),
+ * the ownership traversal, relevance checking and serialization. Then the prefixes are requested to the gateway itself, and {@code startup.warmup.requests} calls that retrieve no Thing are sent at once to Agora
+ * and to the semantic repository, which opens their pooled connections. Only if {@code startup.warmup.neighbors} lists real Thing OIDs, {@code startup.warmup.requests} discoveries over them are also sent concurrently,
+ * which opens connections to the semantic repository and fills the cache of Thing graphs; no synthetic Thing ever reaches the upstreams, the caches or the metrics.
+ * Failures of the warm-up are logged and do not keep the gateway out of service; warm-up ends after {@code startup.warmup.timeout-seconds} in any case.
+ * @author cimmino
+ *
+ */
+@Component
+public class GatewayWarmup implements HealthIndicator {
+
+	// -- Attributes
+
+	private static Logger log = Logger.getLogger(GatewayWarmup.class.getName());
+	private static final String WARMUP_QUERY = "PREFIX core: <http://iot.linkeddata.es/def/core#> SELECT ?thing WHERE { ?thing a core:Thing . }";
+	private static final String WARMUP_DOMAIN = "http://vicinity.eu/data";
+	private static final String CORE = "http://iot.linkeddata.es/def/core#";
+	private static final String WOT = "http://iot.linkeddata.es/def/wot#";
+	private static final String CANNED_RESULTS = "?g\t?s\t?p\t?o\n"
+			+ row(SemanticRepository.THINGS_GRAPH, "warmup", "<http://www.w3.org/1999/02/22-rdf-syntax-ns#type>", "<"+CORE+"Thing>")
+			+ row(SemanticRepository.THINGS_GRAPH, "warmup", "<"+WOT+"thingName>", "\"warm-up, \\\"synthetic\\\"\\tThing\"@en")
+			+ row(SemanticRepository.THINGS_GRAPH, "warmup", "<"+CORE+"hasOwner>", "<"+SemanticRepository.THINGS_GRAPH+"warmup-owner>")
+			+ row(SemanticRepository.DESCRIPTIONS_GRAPH, "warmup", "<"+WOT+"href>", "<http://localhost/warmup/properties/p>")
+			+ row(SemanticRepository.DESCRIPTIONS_GRAPH, "warmup", "<"+WOT+"isReadable>", "\"true\"^^<http://www.w3.org/2001/XMLSchema#boolean>")
+			+ row(SemanticRepository.THINGS_GRAPH, "warmup-owner", "<"+CORE+"owns>", "<"+SemanticRepository.THINGS_GRAPH+"warmup>")
+			+ row(SemanticRepository.THINGS_GRAPH, "warmup-owner", "<"+WOT+"thingName>", "\"owner\"");
+	private static final String SYNTHETIC_THING = "@prefix core: <http://iot.linkeddata.es/def/core#> .\n"
+			+ "@prefix wot: <http://iot.linkeddata.es/def/wot#> .\n"
+			+ "<http://vicinity.eu/data/things/warmup> a core:Thing ; wot:thingName \"warm-up\" ; core:hasOwner <http://vicinity.eu/data/things/warmup-owner> .\n"
+			+ "<http://vicinity.eu/data/things/warmup-owner> core:owns <http://vicinity.eu/data/things/warmup> .\n";
+	private final Environment environment;
+	private final GatewayServicesController controller;
+	private final boolean enabled;
+	private final int requests;
+	private final String neighbors;
+	private final int iterations;
+	private final long timeoutSeconds;
+	private volatile boolean ready = false;
+	private volatile long warmupMillis = -1;
+
+
+	// -- Constructor
+
+	public GatewayWarmup(Environment environment, GatewayServicesController controller, @Value("${startup.warmup.enabled:true}") boolean enabled, @Value("${startup.warmup.requests:4}") int requests,
+			@Value("${startup.warmup.neighbors:}") String neighbors, @Value("${startup.warmup.iterations:200}") int iterations, @Value("${startup.warmup.timeout-seconds:60}") long timeoutSeconds) {
+		this.environment = environment;
+		this.controller = controller;
+		this.enabled = enabled;
+		this.requests = Math.max(1, requests);
+		this.neighbors = neighbors.trim();
+		this.iterations = Math.max(0, iterations);
+		this.timeoutSeconds = Math.max(1, timeoutSeconds);
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method reads the configuration file and initializes Jena in parallel, meant to run while Spring starts
+	 * @param configFile The path of the configuration file, the process exits if it is not valid
+	 * @return A {@link CompletableFuture} completed once both are done
+	 */
+	public static CompletableFuture<Void> prepare(String configFile) {
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("startup-");
+		threadFactory.setDaemon(true);
+		ExecutorService executor = Executors.newFixedThreadPool(2, threadFactory);
+		CompletableFuture<Void> configuration = CompletableFuture.runAsync(() -> GatewayServicesController.initializeFromFile(configFile), executor);
+		CompletableFuture<Void> jena = CompletableFuture.runAsync(GatewayWarmup::initializeJena, executor);
+		executor.shutdown();
+		return CompletableFuture.allOf(configuration, jena);
+	}
+
+	/**
+	 * This method warms the gateway up in the background, once it is done the gateway is reported ready
+	 */
+	public void start() {
+		if(!enabled) {
+			ready = true;
+			return;
+		}
+		Thread warmup = new Thread(this::warmUp, "warmup");
+		warmup.setDaemon(true);
+		warmup.start();
+	}
+
+	/**
+	 * This method reports the gateway out of service until the warm-up finishes
+	 * @return The health of the gateway
+	 */
+	@Override
+	public Health health() {
+		if(!ready)
+			return Health.outOfService().withDetail("warmup", "in progress").build();
+		Health.Builder health = Health.up();
+		if(warmupMillis >= 0)
+			health.withDetail("warmupMs", warmupMillis);
+		return health.build();
+	}
+
+
+	// -- Ancillary methods
+
+	/**
+	 * Jena subsystems are initialized and a synthetic Thing is written and read as JSON-LD, which loads the JSON-LD writer and parser
+	 */
+	private static void initializeJena() {
+		long start = System.nanoTime();
+		try {
+			JenaSystem.init();
+			Model thing = syntheticThing();
+			RDFDataMgr.read(ModelFactory.createDefaultModel(), new ByteArrayInputStream(TedFormat.JSONLD.serialize(thing)), Lang.JSONLD);
+			log.log(Level.INFO, () -> "Jena initialized in "+TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)+" ms");
+		}catch(Exception e) {
+			// Jena is initialized anyway by the first request
+			log.warning("Jena could not be initialized at startup: "+e.toString());
+		}
+	}
+
+	private void warmUp() {
+		long start = System.nanoTime();
+		try {
+			// 1. Local discovery of a synthetic Thing, its owner is among the canned results so the traversal has no cache nor repository to query
+			CompiledQuery query = new CompiledQuery(QueryFactory.create(WARMUP_QUERY));
+			byte[] results = CANNED_RESULTS.getBytes(StandardCharsets.UTF_8);
+			for(int iteration = 0; iteration < iterations; iteration++) {
+				Map<String, Model> graphs = new HashMap<>();
+				graphs.put("warmup", ModelFactory.createDefaultModel());
+				graphs.put("warmup-owner", ModelFactory.createDefaultModel());
+				SemanticRepository.readResults(new ByteArrayInputStream(results), ResultSetLang.SPARQLResultSetTSV, graphs);
+				OwnershipTraversal ownership = new OwnershipTraversal(null, null, WARMUP_DOMAIN, 2, Deadline.none());
+				Model thing = ownership.expandAll(graphs).get("warmup");
+				if(query.isRelevant(thing.getGraph()))
+					TedFormat.JSONLD.serialize(thing);
+			}
+			// 2. Prefixes, and concurrent discoveries over the configured neighbors, sent to the gateway itself; calls that retrieve no Thing open the connections to the upstreams
+			String base = "http://localhost:"+environment.getProperty("local.server.port", "8081");
+			String discovery = base+"/advanced-discovery?deadline="+TimeUnit.SECONDS.toMillis(timeoutSeconds)+"&neighbors="+URLEncoder.encode(neighbors, "UTF-8");
+			int discoveries = neighbors.isEmpty()? 0 : requests;
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("warmup-");
+			threadFactory.setDaemon(true);
+			ExecutorService executor = Executors.newFixedThreadPool(discoveries + 1, threadFactory);
+			try {
+				List<CompletableFuture<Integer>> calls = new ArrayList<>();
+				calls.add(CompletableFuture.supplyAsync(() -> call(base+"/prefixes", null), executor));
+				calls.add(controller.openUpstreamConnections(requests).thenApply(opened -> 0));
+				for(int request = 0; request < discoveries; request++)
+					calls.add(CompletableFuture.supplyAsync(() -> call(discovery, WARMUP_QUERY), executor));
+				CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[calls.size()])).get(timeoutSeconds, TimeUnit.SECONDS);
+			}finally {
+				executor.shutdownNow();
+			}
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}catch(Exception e) {
+			log.warning("Warm-up did not finish: "+e.toString());
+		}finally {
+			warmupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			ready = true;
+			log.log(Level.INFO, () -> "Warm-up finished in "+warmupMillis+" ms, ready to take traffic");
+		}
+	}
+
+	/**
+	 * This method sends a request to the gateway itself and reads the whole response
+	 * @return The status of the response, or -1 if the gateway could not be reached
+	 */
+	private int call(String url, String query) {
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+			int timeout = (int) TimeUnit.SECONDS.toMillis(timeoutSeconds);
+			connection.setConnectTimeout(timeout);
+			connection.setReadTimeout(timeout);
+			if(query != null) {
+				connection.setRequestMethod("POST");
+				connection.setDoOutput(true);
+				connection.setRequestProperty("Content-Type", "text/plain");
+				try (OutputStream body = connection.getOutputStream()) {
+					body.write(query.getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			int status = connection.getResponseCode();
+			try (InputStream body = status < 400? connection.getInputStream() : connection.getErrorStream()) {
+				byte[] buffer = new byte[8192];
+				while(body != null && body.read(buffer) >= 0);
+			}
+			log.log(Level.FINE, () -> "Warm-up request "+url+" answered "+status);
+			return status;
+		}catch(IOException e) {
+			log.warning("Warm-up request "+url+" failed: "+e.toString());
+			return -1;
+		}
+	}
+
+	private static String row(String graph, String oid, String predicate, String object) {
+		return "<"+graph+oid+">\t<"+SemanticRepository.THINGS_GRAPH+oid+">\t"+predicate+"\t"+object+"\n";
+	}
+
+	private static Model syntheticThing() {
+		Model thing = ModelFactory.createDefaultModel();
+		RDFDataMgr.read(thing, new ByteArrayInputStream(SYNTHETIC_THING.getBytes(StandardCharsets.UTF_8)), Lang.TURTLE);
+		return thing;
+	}
+}
@@ -0,0 +1,119 @@
+package service.controller;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import service.discovery.ThingGraphCache;
+import service.discovery.ThingReplica;
+import service.upstream.TedCache;
+
+/**
+ * This controller allows to inspect and invalidate the cached graphs of Things used to build TEDs, the local replica of the semantic repository, and the cached TEDs answered by Agora
+ * @author cimmino
+ *
+ */
+@Controller
+public class CacheController {
+
+	// -- Attributes
+	
+	private static final String SERVER_HEADER = "Gateway API Services of VICINITY";
+	private final ThingGraphCache thingGraphCache;
+	private final TedCache tedCache;
+	private final ThingReplica thingReplica;
+	
+	
+	// -- Constructor
+	
+	public CacheController(ThingGraphCache thingGraphCache, TedCache tedCache, ThingReplica thingReplica) {
+		this.thingGraphCache = thingGraphCache;
+		this.tedCache = tedCache;
+		this.thingReplica = thingReplica;
+	}
+	
+	
+	// -- Controller methods
+	
+	/**
+	 * This method returns the usage statistics of the cache of Thing graphs
+	 * @return A JSON document with the hits, misses and evictions of the cache
+	 */
+	@RequestMapping(value ="/cache/things", method = RequestMethod.GET, produces = "application/json")
+	@ResponseBody
+	public ResponseEntity<String> getStatistics() {
+		return prepareResponse(HttpStatus.OK).body(thingGraphCache.statistics().toString());
+	}
+	
+	/**
+	 * This method removes from the cache the graphs of a Thing, they will be retrieved again from the semantic repository in the next discovery
+	 * @param oid The OID of the Thing
+	 * @return Status 204
+	 */
+	@RequestMapping(value ="/cache/things/{oid}", method = RequestMethod.DELETE)
+	public ResponseEntity<Void> invalidateThing(@PathVariable String oid) {
+		thingGraphCache.invalidate(oid);
+		return prepareResponse(HttpStatus.NO_CONTENT).build();
+	}
+	
+	/**
+	 * This method removes from the cache the graphs of all the Things
+	 * @return Status 204
+	 */
+	@RequestMapping(value ="/cache/things", method = RequestMethod.DELETE)
+	public ResponseEntity<Void> invalidateAll() {
+		thingGraphCache.invalidateAll();
+		return prepareResponse(HttpStatus.NO_CONTENT).build();
+	}
+	
+	/**
+	 * This method returns the usage statistics of the cache of TEDs answered by Agora
+	 * @return A JSON document with the hits, misses and evictions of the cache
+	 */
+	@RequestMapping(value ="/cache/teds", method = RequestMethod.GET, produces = "application/json")
+	@ResponseBody
+	public ResponseEntity<String> getTedStatistics() {
+		return prepareResponse(HttpStatus.OK).body(tedCache.statistics().toString());
+	}
+	
+	/**
+	 * This method removes from the cache all the TEDs answered by Agora, they will be discovered again in the next requests
+	 * @return Status 204
+	 */
+	@RequestMapping(value ="/cache/teds", method = RequestMethod.DELETE)
+	public ResponseEntity<Void> invalidateTeds() {
+		tedCache.invalidateAll();
+		return prepareResponse(HttpStatus.NO_CONTENT).build();
+	}
+	
+	/**
+	 * This method returns the state of the local replica of the semantic repository
+	 * @return A JSON document with the replicated Things and triples, and the synchronizations done
+	 */
+	@RequestMapping(value ="/cache/replica", method = RequestMethod.GET, produces = "application/json")
+	@ResponseBody
+	public ResponseEntity<String> getReplicaStatistics() {
+		return prepareResponse(HttpStatus.OK).body(thingReplica.statistics().toString());
+	}
+	
+	/**
+	 * This method reloads the whole local replica of the semantic repository in the background, meanwhile the current replica is still used
+	 * @return Status 202
+	 */
+	@RequestMapping(value ="/cache/replica", method = RequestMethod.DELETE)
+	public ResponseEntity<Void> reloadReplica() {
+		thingReplica.reload();
+		return prepareResponse(HttpStatus.ACCEPTED).build();
+	}
+	
+	
+	// -- Ancillary methods
+	
+	private ResponseEntity.BodyBuilder prepareResponse(HttpStatus status) {
+		return ResponseEntity.status(status).header("Server", SERVER_HEADER);
+	}
+}
@@ -1,40 +1,76 @@
 package service.controller;
 
-import org.apache.jena.query.Query;
-import org.apache.jena.query.QueryExecution;
-import org.apache.jena.query.QueryExecutionFactory;
-import org.apache.jena.query.QueryFactory;
 import org.apache.jena.query.QuerySolution;
-import org.apache.jena.query.ResultSet;
-import org.apache.jena.rdf.model.Literal;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
-import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import service.discovery.CompiledQuery;
+import service.discovery.Deadline;
+import service.discovery.DiscoveryExecutor;
+import service.discovery.OwnershipTraversal;
+import service.discovery.RelevanceEngine;
+import service.discovery.SemanticRepository;
+import service.discovery.TedFormat;
+import service.discovery.TedSubscriptions;
+import service.discovery.TedWriter;
+import service.discovery.ThingGraphCache;
+import service.discovery.ThingIndex;
+import service.metrics.GatewayMetrics;
+import service.metrics.RequestTrace;
+import service.metrics.RequestTracer;
+import service.upstream.NamespaceRewritingOutputStream;
+import service.upstream.PrefixesCache;
+import service.upstream.PrefixesCache.Prefixes;
+import service.upstream.RepositoryBalancer;
+import service.upstream.TedCache;
+import service.upstream.UpstreamCall;
+import service.upstream.UpstreamClient;
+import service.upstream.UpstreamUnavailableException;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.HttpClientUtils;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
 
-import javax.servlet.http.HttpServletResponse;
 import java.io.*;
-import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,13 +92,47 @@ public class GatewayServicesController {
 
     private static String dataDomain = "http://vicinity.eu/data";
     private static String repositoryEndpoint;
+    private static List<String> repositoryReplicas = new ArrayList<>();
     private static final String HEADER_ACCEPT_KEY = "Accept";
-    private final String queryHead = "?name=&infer=true&sameAs=true&query=";
+    private static final String SERVER_HEADER = "Gateway API Services of VICINITY";
+    static final String TED_HEADER = "<http://vicinity.eu/data/ted> a <http://iot.linkeddata.es/def/core#ThingEcosystemDescription>;\n   <http://iot.linkeddata.es/def/core#describes> <http://bnodes/N9e711c303f3e40f7872d87ccb66cc225> .\n \n <http://bnodes/N9e711c303f3e40f7872d87ccb66cc225>  a <http://iot.linkeddata.es/def/core#Ecosystem>.";
+    private static final String ECOSYSTEM = "http://bnodes/N9e711c303f3e40f7872d87ccb66cc225";
+    private static final String HAS_COMPONENT = "http://iot.linkeddata.es/def/core#hasComponent";
+    private static final String TED = "http://vicinity.eu/data/ted";
+    private static final String OMITS = "http://vicinity.eu/data/ted#omits";
+    private static final String PARTIAL_HEADER = "X-Partial-TED";
+    private final DiscoveryExecutor discoveryExecutor;
+    private final SemanticRepository semanticRepository;
+    private final ThingGraphCache thingGraphCache;
+    private final ThingIndex thingIndex;
+    private final RepositoryBalancer repositoryBalancer;
+    private final TedSubscriptions tedSubscriptions;
+    private final RequestTracer tracer;
+    private final UpstreamClient upstreamClient;
+    private final PrefixesCache prefixesCache;
+    private final TedCache tedCache;
+    private final GatewayMetrics metrics;
+    private final RelevanceEngine relevanceEngine;
+    private final int maxOwnershipDepth;
+    private final long discoveryDeadlineMillis;
 
     
     // -- Constructor
-    public GatewayServicesController() {
-    		// empty
+    public GatewayServicesController(DiscoveryExecutor discoveryExecutor, SemanticRepository semanticRepository, ThingGraphCache thingGraphCache, ThingIndex thingIndex, RepositoryBalancer repositoryBalancer, TedSubscriptions tedSubscriptions, RelevanceEngine relevanceEngine, UpstreamClient upstreamClient, PrefixesCache prefixesCache, TedCache tedCache, GatewayMetrics metrics, RequestTracer tracer, @Value("${discovery.ownership.max-depth:4}") int maxOwnershipDepth, @Value("${discovery.deadline-ms:30000}") long discoveryDeadlineMillis) {
+    		this.discoveryExecutor = discoveryExecutor;
+    		this.semanticRepository = semanticRepository;
+    		this.thingGraphCache = thingGraphCache;
+    		this.thingIndex = thingIndex;
+    		this.repositoryBalancer = repositoryBalancer;
+    		this.tedSubscriptions = tedSubscriptions;
+    		this.relevanceEngine = relevanceEngine;
+    		this.upstreamClient = upstreamClient;
+    		this.prefixesCache = prefixesCache;
+    		this.tedCache = tedCache;
+    		this.metrics = metrics;
+    		this.tracer = tracer;
+    		this.maxOwnershipDepth = maxOwnershipDepth;
+    		this.discoveryDeadlineMillis = discoveryDeadlineMillis;
     }
     
     
@@ -83,7 +153,16 @@ public class GatewayServicesController {
                 if(config.has("AGORA_ENDPOINT") && config.has("DATA_DOMAIN") && config.has("SEMANTIC_REPOSITORY_ENDPOINT")) {
                 		agoraEndpoint = config.getString("AGORA_ENDPOINT");
                 		dataDomain = config.getString("DATA_DOMAIN");
-                		repositoryEndpoint = config.getString("SEMANTIC_REPOSITORY_ENDPOINT");
+                		// The semantic repository may be a single endpoint or a list of replicas, the first one identifies the repository
+                		Object repository = config.get("SEMANTIC_REPOSITORY_ENDPOINT");
+                		if(repository instanceof JSONArray) {
+                			JSONArray replicas = (JSONArray) repository;
+                			for(int index = 0; index < replicas.length(); index++)
+                				repositoryReplicas.add(replicas.getString(index));
+                			repositoryEndpoint = repositoryReplicas.get(0);
+                		}else {
+                			repositoryEndpoint = config.getString("SEMANTIC_REPOSITORY_ENDPOINT");
+                		}
                 		
                 }else {
                 	 	log.severe("Provided config lacks of a mandatory key, either 'AGORA_ENDPOINT' or 'DATA_DOMAIN'");
@@ -116,17 +195,72 @@ public class GatewayServicesController {
             log.log(Level.INFO, () -> "\t>"+tedEndpoint);
             log.log(Level.INFO, () -> "\t>"+planEndpoint);
             log.log(Level.INFO, () -> "Local data domain is "+dataDomain);
-            log.log(Level.INFO, () -> "\t>"+repositoryEndpoint);
+            log.log(Level.INFO, () -> "\t>"+(repositoryReplicas.isEmpty()? repositoryEndpoint : repositoryReplicas.toString()));
         }else{
             log.severe("No Agora endpoint was specifiedin the config file under key 'AGORA_ENDPOINT'");
             System.exit(0);
         }
     }
 
+    /**
+     * This method opens pooled connections to Agora and to the semantic repository without retrieving any Thing, meant to warm the gateway up
+     * <p>
+     * Agora is asked for its prefixes, bypassing the cache of prefixes, and the repository for a query that reads no Thing; each of them several times at once
+     * @param connections The number of calls sent at once to each upstream
+     * @return A {@link CompletableFuture} completed once every call ended, failed calls are logged and do not complete it exceptionally
+     */
+    public CompletableFuture<Void> openUpstreamConnections(int connections) {
+    		List<CompletableFuture<?>> calls = new ArrayList<>();
+    		String endpoint = repositoryEndpoint();
+    		for(int connection = 0; connection < connections; connection++) {
+    			HttpGet prefixes = new HttpGet(prefixesEndpoint);
+    			prefixes.setHeader(HEADER_ACCEPT_KEY, "application/json");
+    			calls.add(upstreamClient.executeAsync(UpstreamCall.PREFIXES, prefixes, UpstreamClient::bodyAsString));
+    			if(endpoint != null)
+    				calls.add(semanticRepository.ask(endpoint));
+    		}
+    		return CompletableFuture.allOf(calls.stream().map(call -> call.handle((result, error) -> {
+    			if(error != null)
+    				log.warning("Connection to an upstream not opened: "+error.toString());
+    			return null;
+    		})).toArray(CompletableFuture<?>[]::new));
+    }
+
     
-    private void prepareResonse(HttpServletResponse response) {
-    	 	response.setHeader("Server", "Gateway API Services of VICINITY"); // Avoids clients to know the server we are using
-         response.setStatus( HttpServletResponse.SC_BAD_REQUEST ); // by default response code is BAD
+    private ResponseEntity.BodyBuilder prepareResponse(HttpStatus status) {
+    	 	return ResponseEntity.status(status).header("Server", SERVER_HEADER); // Avoids clients to know the server we are using
+    }
+
+    /**
+     * This method prepares the response to a request whose call to Agora failed
+     * <p>
+     * Calls rejected because the circuit of Agora is open or its bulkhead is full are answered with 503 and a {@code Retry-After} header, so that clients back off instead of retrying right away
+     * @param error The error of the call
+     * @param status The status answered for any other error
+     * @return A response builder
+     */
+    private ResponseEntity.BodyBuilder upstreamFailure(Throwable error, HttpStatus status) {
+    		Throwable cause = error instanceof CompletionException && error.getCause() != null? error.getCause() : error;
+    		if(cause instanceof UpstreamUnavailableException) {
+    			log.fine(cause.toString());
+    			return prepareResponse(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, String.valueOf(((UpstreamUnavailableException) cause).getRetryAfterSeconds()));
+    		}
+    		log.severe(cause.toString());
+    		return prepareResponse(status);
+    }
+
+    /**
+     * This method finishes the trace of a request and adds it to the response, in the headers {@code Server-Timing} and {@code X-Request-Id}
+     * @param response The response of the request
+     * @param trace The trace of the request
+     * @return A copy of the response with the trace headers
+     */
+    private <T> ResponseEntity<T> traced(ResponseEntity<T> response, RequestTrace trace) {
+    		tracer.finish(trace);
+    		return ResponseEntity.status(response.getStatusCode()).headers(response.getHeaders())
+    				.header(RequestTracer.SERVER_TIMING_HEADER, trace.serverTiming())
+    				.header(RequestTracer.REQUEST_ID_HEADER, trace.getId())
+    				.body(response.getBody());
     }
     
     // -- Controller methods
@@ -134,140 +268,91 @@ public class GatewayServicesController {
     /**
      * This method returns a Thing Ecosystem Description (TED) containing Things relevant to answer a given query
      * @param query A SPARQL query
-     * @param response The HTTP Response that the Servlet will respond after this method is invoked
      * @return A JSON-LD document containing Things relevant to the query, i.e., a TED
      */
     @RequestMapping(value ="/prefixes", method = RequestMethod.GET, produces = "application/json")
     @ResponseBody
-    public String getPrefixes(HttpServletResponse response) {
-    		Unirest.setTimeouts(0, 0);
-    	 	JSONObject jsonPrefixes = new JSONObject();
-    		// 1. Prepare response & request headers
-    		prepareResonse(response);
-        Map<String, String> headers = new HashMap<>();
-        headers.put(HEADER_ACCEPT_KEY, "application/json");
-        	// 2. Request prefixes to Agora
-        try {
-			String jsonPrefixesString = Unirest.get(prefixesEndpoint).headers(headers).asJson().getBody().toString();
-			jsonPrefixes = new JSONObject(jsonPrefixesString);
-		} catch (Exception e) {
-			log.severe(e.toString());
-		}
-        // 3. Check prefixes obtained
-        if(jsonPrefixes.keys().hasNext()) {
-            response.setStatus( HttpServletResponse.SC_OK );
-        }else {
-        		response.setStatus( HttpServletResponse.SC_NO_CONTENT );
-        }
-        	log.info("Prefixes requested");
-        	String prefixesTrace = jsonPrefixes.toString().replace("\",\"", "\",\n\t\"");
-        	log.log(Level.INFO, () -> "\t>"+prefixesTrace);
-        	return jsonPrefixes.toString();
+    public ResponseEntity<String> getPrefixes() {
+    		RequestTrace trace = tracer.start("/prefixes");
+    		// 1. Prefixes are answered from memory, they are refreshed from Agora in the background
+    		Prefixes prefixes = prefixesCache.get(prefixesEndpoint);
+    		// 2. Check prefixes obtained
+    		HttpStatus status = prefixes.isEmpty()? HttpStatus.NO_CONTENT : HttpStatus.OK;
+    		log.fine("Prefixes requested");
+    		metrics.recordResponseSize("/prefixes", prefixes.getJson().length());
+    		return traced(prepareResponse(status).body(prefixes.getJson()), trace);
     }
       
     /**
      * This method returns a Thing Ecosystem Description (TED) containing Things relevant to answer a given query
      * @param query A SPARQL query
-     * @param response The HTTP Response that the Servlet will respond after this method is invoked
      * @return A JSON-LD document containing Things relevant to the query, i.e., a TED
      */
     @RequestMapping(value ="/discovery", method = RequestMethod.POST, produces = "application/ld+json")
     @ResponseBody
-    public String getSuitableTed(@RequestBody String query,  HttpServletResponse response) {
+    public CompletableFuture<ResponseEntity<byte[]>> getSuitableTed(@RequestBody String query) {
         // 1. Following variables are Agora bespoke setup, we set them with such values since fit better for VICINITY requirements
     		Boolean strict = true;
         Boolean min = false;
-        // 2. Prepare response
-        prepareResonse(response);
-        log.info("Ted retrieving request for query: \n");
-        log.info(query);
-        // 3. Retrieve TED from Agora and set response code
-        String jsonTed = retrieveTED(query, strict, min);
-        if(jsonTed!=null) {
-            response.setStatus( HttpServletResponse.SC_OK );
-        }else {
-        		response.setStatus( HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
-        }
-        // 4. Change domain of IRIs from Agora's to Local
-        jsonTed =  jsonTed.replace(agoraEndpoint, dataDomain);
-        log.info("Returning ted");
-        // 5. Return TED
-        return jsonTed;
+        RequestTrace trace = tracer.start("/discovery");
+        log.log(Level.FINE, () -> "Ted retrieving request for query: \n"+query);
+        // 2. Retrieve TED from Agora and set response code
+        // 3. Domain of IRIs is changed from Agora's to Local as the TED is read from Agora
+        CompletableFuture<ResponseEntity<byte[]>> ted = tedCache.retrieve(tedEndpoint, query, strict, min, agoraEndpoint, dataDomain).handle((jsonTed, error) -> {
+        		if(error!=null)
+        			return upstreamFailure(error, HttpStatus.INTERNAL_SERVER_ERROR).body(new byte[0]);
+        		log.fine("Returning ted");
+        		metrics.recordResponseSize("/discovery", jsonTed.length);
+        		return prepareResponse(HttpStatus.OK).body(jsonTed);
+        });
+        // The request goes on in other threads
+        RequestTrace.detach();
+        return ted.thenApply(response -> traced(response, trace));
     }
 
     
 
     
-    /**
-     * This method retrieves from Agora the TED for a given query
-     * @param query A SPARQL query
-     * @param strict A bespoke Agora parameter, it specifies whether TED should contain only strict data to answer the query
-     * @param min A bespoke Agora parameter, it specifies whether the output should (min=false) or should not (min=true) contain RDF associated to the Things found
-     * @return A JSON-LD document containing the TED for the provided query
-     */
-    private String retrieveTED(String query, Boolean strict, Boolean min){
-    		Unirest.setTimeouts(0, 0);
-        String jsonTed = null;
-        // 1. Set request headers
-        Map<String, String> headers = new HashMap<>();
-        headers.put(HEADER_ACCEPT_KEY, "application/ld+json");
-        try {
-        		// 2. Send POST request to Agora
-            if (strict && min) {
-                jsonTed = Unirest.post(tedEndpoint+"?strict&min").headers(headers).body(query).asJson().getBody().toString();
-            } else if (strict) {
-                jsonTed = Unirest.post(tedEndpoint+"?strict").headers(headers).body(query).asJson().getBody().toString();
-            } else if (min) {
-                jsonTed = Unirest.post(tedEndpoint+"?min").headers(headers).body(query).asJson().getBody().toString();
-            } else {
-                jsonTed = Unirest.post(tedEndpoint).headers(headers).body(query).asJson().getBody().toString();
-            }
-        }catch(Exception e){
-            log.severe(e.toString());
-        }
-                
-        return jsonTed;
-    }
-
-
     /**
      * This method returns the RDF of a Thing or a Thing Description
+     * <p>
+     * The RDF is answered as JSON-LD by default, or in N-Triples, N-Quads or RDF Thrift when the client prefers them
      * @param document A JSON document containing an IRI that identifies the resource
-     * @param response The HTTP Response that the Servlet will respond after this method is invoked
+     * @param accept The Accept header of the request
      * @return A RDF document containing the RDF of a Thing or a Thing Description
      */
-    @RequestMapping(value ="/resource", method = RequestMethod.POST, produces = "application/json")
+    @RequestMapping(value ="/resource", method = RequestMethod.POST, produces = {"application/json", "application/ld+json", "application/n-triples", "application/n-quads", "application/rdf+thrift"})
     @ResponseBody
-    public String getSemanticResource(@RequestBody String document,  HttpServletResponse response) {
-    		Unirest.setTimeouts(0, 0);
-        String resourceRDF = "";
-        // 1. Prepare response
-        prepareResonse(response);
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> getSemanticResource(@RequestBody String document, @RequestHeader(value = HEADER_ACCEPT_KEY, required = false) String accept) {
+        RequestTrace trace = tracer.start("/resource");
+        TedFormat format = TedFormat.negotiate(accept);
+        CompletableFuture<ResponseEntity<StreamingResponseBody>> resource = CompletableFuture.completedFuture(prepareResponse(HttpStatus.BAD_REQUEST).body(null));
         try {
-        		// 2. Retrieve from provided JSON Document the value under key 'resource'
+        		// 1. Retrieve from provided JSON Document the value under key 'resource'
             JSONObject jsonDocument = new JSONObject(document);
             String iri = jsonDocument.getString("resource");
-            // 3. Transform the value of key 'resource' into an IRI in the namespace of Agora
+            // 2. Transform the value of key 'resource' into an IRI in the namespace of Agora
             iri = translateIRIToNamespace(iri, agoraEndpoint); // this could be actually a simple regex
             if(!iri.isEmpty()) {
-	            // 3.A Request Agora the resource RDF
-	            resourceRDF = Unirest.get(iri).asJson().getBody().toString();
-	            if(!resourceRDF.isEmpty()) {
-	                response.setStatus( HttpServletResponse.SC_OK );
-	                log.info("Retrieving RDF for resource");
-	                log.info(resourceRDF);
-	            }else {
-	            	response.setStatus( HttpServletResponse.SC_NO_CONTENT );
-	            }
+	            // 2.A Request Agora the resource RDF
+            		HttpGet request = new HttpGet(iri);
+            		request.setHeader(HEADER_ACCEPT_KEY, "application/json");
+	            resource = upstreamClient.openAsync(UpstreamCall.RESOURCE, request).handle((resourceRDF, error) -> {
+	            		if(error!=null)
+	            			return upstreamFailure(error, HttpStatus.BAD_REQUEST).body(null);
+	            		log.fine("Retrieving RDF for resource");
+	            		// 3. Change domain of IRIs from Agora's to Local while the RDF is streamed, other formats are translated from the JSON-LD of Agora
+	            		if(format != TedFormat.JSONLD)
+	            			return translatedResponse("/resource", resourceRDF, format);
+	            		return rewrittenResponse("/resource", resourceRDF, new MediaType(MediaType.APPLICATION_JSON, StandardCharsets.UTF_8));
+	            });
             }
         }catch(Exception e){
             log.severe(e.toString());
         }
-        
-        // 4. Change domain of IRIs from Agora's to Local
-        resourceRDF =  resourceRDF.replace(agoraEndpoint, dataDomain);
-        // 5. Return resource RDF
-        return resourceRDF;
+        // 4. Return resource RDF, the request goes on in other threads
+        RequestTrace.detach();
+        return resource.thenApply(response -> traced(response, trace));
     }
 
    
@@ -279,7 +364,7 @@ public class GatewayServicesController {
      * @param namespace A namespace to which we want to express the IRI
      * @return An IRI in the new namespace
      */
-    private String translateIRIToNamespace(String iri, String namespace){
+    static String translateIRIToNamespace(String iri, String namespace){
         String newIRI = "";
         String subIRI = "";
         // 1. Retrieve domain IRI
@@ -296,78 +381,339 @@ public class GatewayServicesController {
         return newIRI;
     }
 
+    /**
+     * This method answers the body of an Agora response as it arrives, changing the domain of IRIs from Agora's to Local
+     * @param endpoint The endpoint answering, used to record the size of the response
+     * @param upstream An open Agora response, it is closed once its body is streamed
+     * @param mediaType The content type of the response
+     * @return A response with status 200, 204 if Agora answered an empty body, or 502/503 if Agora answered an error
+     */
+    private ResponseEntity<StreamingResponseBody> rewrittenResponse(String endpoint, CloseableHttpResponse upstream, MediaType mediaType) {
+    		if(!isSuccessful(upstream))
+    			return upstreamErrorResponse(endpoint, upstream);
+    		HttpEntity entity = upstream.getEntity();
+    		ResponseEntity<StreamingResponseBody> response = prepareResponse(HttpStatus.NO_CONTENT).body(null);
+    		if(entity==null || entity.getContentLength()==0) {
+    			EntityUtils.consumeQuietly(entity);
+    			HttpClientUtils.closeQuietly(upstream);
+    		}else {
+    			String namespace = agoraEndpoint;
+    			String domain = dataDomain;
+    			response = prepareResponse(HttpStatus.OK).contentType(mediaType).body(outputStream -> {
+    				CountingOutputStream counting = new CountingOutputStream(outputStream);
+    				try {
+    					NamespaceRewritingOutputStream rewriting = new NamespaceRewritingOutputStream(counting, namespace, domain);
+    					entity.writeTo(rewriting);
+    					rewriting.finish();
+    				}finally {
+    					upstream.close();
+    					metrics.recordResponseSize(endpoint, counting.getByteCount());
+    				}
+    			});
+    		}
+    		return response;
+    }
+
+    /**
+     * This method answers the JSON-LD body of an Agora response in another RDF format, changing the domain of IRIs from Agora's to Local
+     * <p>
+     * The body is read and parsed before answering, so a body that is not valid JSON-LD is answered with status 500
+     * @param endpoint The endpoint answering, used to record the size of the response
+     * @param upstream An open Agora response, it is closed once its body is read
+     * @param format The format of the response
+     * @return A response with status 200, 204 if Agora answered an empty body, 500 if the body could not be translated, or 502/503 if Agora answered an error
+     */
+    private ResponseEntity<StreamingResponseBody> translatedResponse(String endpoint, CloseableHttpResponse upstream, TedFormat format) {
+    		if(!isSuccessful(upstream))
+    			return upstreamErrorResponse(endpoint, upstream);
+    		HttpEntity entity = upstream.getEntity();
+    		ResponseEntity<StreamingResponseBody> response = prepareResponse(HttpStatus.NO_CONTENT).body(null);
+    		try {
+    			if(entity!=null && entity.getContentLength()!=0) {
+    				ByteArrayOutputStream document = new ByteArrayOutputStream();
+    				NamespaceRewritingOutputStream rewriting = new NamespaceRewritingOutputStream(document, agoraEndpoint, dataDomain);
+    				entity.writeTo(rewriting);
+    				rewriting.finish();
+    				long parseStart = GatewayMetrics.start();
+    				Model model = ModelFactory.createDefaultModel();
+    				RDFDataMgr.read(model, new ByteArrayInputStream(document.toByteArray()), Lang.JSONLD);
+    				RequestTrace.recordSpan(GatewayMetrics.STAGE_PARSE, GatewayMetrics.elapsed(parseStart));
+    				long serializeStart = GatewayMetrics.start();
+    				byte[] body = format.serialize(model);
+    				RequestTrace.recordSpan(GatewayMetrics.STAGE_SERIALIZE, GatewayMetrics.elapsed(serializeStart));
+    				metrics.recordResponseSize(endpoint, body.length);
+    				response = prepareResponse(HttpStatus.OK).contentType(format.getMediaType()).body(outputStream -> outputStream.write(body));
+    			}
+    		}catch(Exception e) {
+    			log.severe(e.toString());
+    			response = prepareResponse(HttpStatus.INTERNAL_SERVER_ERROR).body(null);
+    		}finally {
+    			HttpClientUtils.closeQuietly(upstream);
+    		}
+    		return response;
+    }
+
+    private static boolean isSuccessful(HttpResponse upstream) {
+    		int status = upstream.getStatusLine().getStatusCode();
+    		return status >= 200 && status < 300;
+    }
+
+    /**
+     * This method answers an Agora response whose status is an error, its body is discarded instead of being sent to the client
+     * <p>
+     * Agora being unavailable is answered with 503, keeping its {@code Retry-After} header if any, and any other error with 502, both with a short message as body
+     * @param endpoint The endpoint answering
+     * @param upstream An open Agora response, it is closed
+     * @return A response with status 502 or 503
+     */
+    private ResponseEntity<StreamingResponseBody> upstreamErrorResponse(String endpoint, CloseableHttpResponse upstream) {
+    		int status = upstream.getStatusLine().getStatusCode();
+    		Header retryAfter = upstream.getFirstHeader(HttpHeaders.RETRY_AFTER);
+    		EntityUtils.consumeQuietly(upstream.getEntity());
+    		HttpClientUtils.closeQuietly(upstream);
+    		log.warning("Agora answered "+endpoint+" with status "+status);
+    		ResponseEntity.BodyBuilder response = prepareResponse(HttpStatus.BAD_GATEWAY);
+    		if(status == HttpStatus.SERVICE_UNAVAILABLE.value()) {
+    			response = prepareResponse(HttpStatus.SERVICE_UNAVAILABLE);
+    			if(retryAfter != null)
+    				response.header(HttpHeaders.RETRY_AFTER, retryAfter.getValue());
+    		}
+    		byte[] body = ("Agora answered with status "+status).getBytes(StandardCharsets.UTF_8);
+    		return response.contentType(new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8)).body(outputStream -> outputStream.write(body));
+    }
+
     /**
      * This method returns a Search Plan from Agora required to answer a given query
      * @param query A SPARQL query
-     * @param response The HTTP Response that the Servlet will respond after this method is invoked
      * @return A JSON-LD document containing the query Plan
      */
     @RequestMapping(value ="/plan", method = RequestMethod.POST, produces = "text/turtle")
     @ResponseBody
-    public String getPlan(@RequestBody String query,  HttpServletResponse response) {
-    		Unirest.setTimeouts(0, 0);
-        String plan = "";
-    		// 2. Prepare response
-        prepareResonse(response);
-        log.info("Plan retrieving request for query: \n");
-        log.info(query);
-        // 3. Retrieve TED from Agora and set response code
-        try {
-        		// 3.1 Prepare headers 
-        		Map<String, String> headers = new HashMap<>();
-            headers.put(HEADER_ACCEPT_KEY, "text/turtle");
-            headers.put("Content-Type", "application/json");
-            // 3.2 Prepare body
-            plan = Unirest.post(planEndpoint).headers(headers).body(query).asString().getBody();
-        }catch(Exception e){
-            log.severe(e.toString());
-        }
-        if(!plan.isEmpty()) {
-            response.setStatus( HttpServletResponse.SC_OK );
-        }else {
-        		response.setStatus( HttpServletResponse.SC_NO_CONTENT );
-        }
-        // 4. Change domain of IRIs from Agora's to Local
-        plan =  plan.replace(agoraEndpoint, dataDomain);
-        // 5. Return Plan
-        return plan;
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> getPlan(@RequestBody String query) {
+        RequestTrace trace = tracer.start("/plan");
+        log.log(Level.FINE, () -> "Plan retrieving request for query: \n"+query);
+        // 1. Prepare headers and body
+        HttpPost request = new HttpPost(planEndpoint);
+        request.setHeader(HEADER_ACCEPT_KEY, "text/turtle");
+        request.setEntity(new StringEntity(query, ContentType.APPLICATION_JSON));
+        // 2. Retrieve plan from Agora and set response code
+        CompletableFuture<ResponseEntity<StreamingResponseBody>> plan = upstreamClient.openAsync(UpstreamCall.PLAN, request).handle((planRDF, error) -> {
+        		ResponseEntity<StreamingResponseBody> planResponse;
+        		if(error!=null) {
+        			planResponse = upstreamFailure(error, HttpStatus.NO_CONTENT).body(null);
+        		}else {
+        			// 3. Change domain of IRIs from Agora's to Local while the plan is streamed
+        			planResponse = rewrittenResponse("/plan", planRDF, new MediaType("text", "turtle", StandardCharsets.UTF_8));
+        		}
+        		return planResponse;
+        });
+        // The request goes on in other threads
+        RequestTrace.detach();
+        return plan.thenApply(response -> traced(response, trace));
     }
     
     
     /**
      * This method returns a Thing Ecosystem Description (TED) containing Things relevant to answer a given query
+     * <p>
+     * The TED is built within a deadline, Things not retrieved before it expires are left out of a partial TED that lists their IRIs as {@code <http://vicinity.eu/data/ted#omits>} and is answered with the header {@code X-Partial-TED: true}.
+     * The TED is written in the format preferred by the client among JSON-LD (default), N-Triples, N-Quads and RDF Thrift
      * @param query A SPARQL query
-     * @param response The HTTP Response that the Servlet will respond after this method is invoked
-     * @return A JSON-LD document containing Things relevant to the query, i.e., a TED
+     * @param neighbors A comma separated list of Thing OIDs
+     * @param deadline The time budget in milliseconds requested by the client, it cannot exceed {@code discovery.deadline-ms}
+     * @param accept The Accept header of the request
+     * @return A RDF document containing Things relevant to the query, i.e., a TED
      */
-    @RequestMapping(value ="/advanced-discovery", method = RequestMethod.POST, produces = "application/ld+json")
+    @RequestMapping(value ="/advanced-discovery", method = RequestMethod.POST, produces = {"application/ld+json", "application/n-triples", "application/n-quads", "application/rdf+thrift"})
     @ResponseBody
-    public String getDiscovery(@RequestBody String query, @RequestParam String neighbors, HttpServletResponse response) {
-    		prepareResonse(response);
-    		Unirest.setTimeouts(0, 0);
-    		String ted = "{}";
+    public Callable<ResponseEntity<byte[]>> getDiscovery(@RequestBody String query, @RequestParam String neighbors, @RequestParam(required = false) Long deadline, @RequestHeader(value = HEADER_ACCEPT_KEY, required = false) String accept) {
+    		// The time budget starts when the request arrives
+    		Deadline budget = deadline(deadline);
+    		TedFormat format = TedFormat.negotiate(accept);
     		// Clean the query from realTime FILTER statements
-    		query = cleanQuery(query);
-    		String endpoint = repositoryEndpoint;
-    		// 1. Following variables are Agora bespoke setup, we set them with such values since fit better for VICINITY requirements
-    		if(!query.isEmpty()) {
+    		String cleanedQuery = cleanQuery(query);
+    		String endpoint = repositoryEndpoint();
+    		// The TED is built in an asynchronous response thread, releasing the servlet thread
+    		return () -> {
+    			RequestTrace trace = tracer.start("/advanced-discovery");
+    			ResponseEntity<byte[]> ted = prepareResponse(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("{}".getBytes(StandardCharsets.UTF_8));
+    			if(!cleanedQuery.isEmpty()) {
+    				try {
+    					log.fine("Discovery query received");
+    					// Build TED
+    					List<String> omitted = new ArrayList<>();
+    					Model tedModel = buildParallelTED(endpoint, neighbors, cleanedQuery, budget, omitted);
+    					long serializeStart = GatewayMetrics.start();
+    					byte[] body = format.serialize(tedModel);
+    					metrics.recordStage(GatewayMetrics.STAGE_SERIALIZE, GatewayMetrics.elapsed(serializeStart));
+    					metrics.recordResponseSize("/advanced-discovery", body.length);
+    					ResponseEntity.BodyBuilder response = prepareResponse(HttpStatus.OK).contentType(format.getMediaType());
+    					if(!omitted.isEmpty())
+    						response.header(PARTIAL_HEADER, "true");
+    					ted = response.body(body);
+    					log.fine("TED answered");
+    				} catch (Exception e) {
+    					log.severe(e.toString());
+    				}
+    			}
+    			return traced(ted, trace);
+    		};
+    }
+    
+    /**
+     * This method returns a Thing Ecosystem Description (TED) containing Things relevant to answer a given query, streaming each Thing to the client as soon as it is found relevant
+     * <p>
+     * The TED is written as expanded JSON-LD (default), N-Triples, N-Quads or RDF Thrift, so the first bytes reach the client before the whole neighbourhood is processed and the TED is never fully held in memory.
+     * Things not retrieved before the deadline expires are listed at the end of the TED as {@code <http://vicinity.eu/data/ted#omits>}
+     * @param query A SPARQL query
+     * @param neighbors A comma separated list of Thing OIDs
+     * @param deadline The time budget in milliseconds requested by the client, it cannot exceed {@code discovery.deadline-ms}
+     * @param accept The Accept header of the request
+     * @return A RDF document containing Things relevant to the query, i.e., a TED
+     */
+    @RequestMapping(value ="/advanced-discovery", method = RequestMethod.POST, params = "stream=true", produces = {"application/ld+json", "application/n-triples", "application/n-quads", "application/rdf+thrift"})
+    public ResponseEntity<StreamingResponseBody> getStreamedDiscovery(@RequestBody String query, @RequestParam String neighbors, @RequestParam(required = false) Long deadline, @RequestHeader(value = HEADER_ACCEPT_KEY, required = false) String accept) {
+    		Deadline budget = deadline(deadline);
+    		TedFormat format = TedFormat.negotiate(accept);
+    		MediaType contentType = MediaType.APPLICATION_JSON;
+    		HttpStatus status = HttpStatus.BAD_REQUEST;
+    		StreamingResponseBody ted = output -> output.write("{}".getBytes(StandardCharsets.UTF_8));
+    		// Clean the query from realTime FILTER statements
+    		String cleanedQuery = cleanQuery(query);
+    		String endpoint = repositoryEndpoint();
+    		if(!cleanedQuery.isEmpty()) {
+    			log.fine("Streamed discovery query received");
+    			status = HttpStatus.OK;
+    			contentType = format.getMediaType();
+    			ted = output -> {
+    				// The headers are already sent, the trace is only sampled
+    				RequestTrace trace = tracer.start("/advanced-discovery?stream=true");
+    				CountingOutputStream counting = new CountingOutputStream(output);
+    				try {
+    					streamParallelTED(endpoint, neighbors, cleanedQuery, budget, format.streamWriter(counting));
+    					log.fine("TED streamed");
+    				}finally {
+    					metrics.recordResponseSize("/advanced-discovery", counting.getByteCount());
+    					tracer.finish(trace);
+    				}
+    			};
+    		}
+    		return prepareResponse(status).contentType(contentType).body(ted);
+    }
+
+    /**
+     * This method returns one Thing Ecosystem Description (TED) for each of several queries over the same neighbors
+     * <p>
+     * The graphs of every neighbor are retrieved, parsed and expanded with its owners once, and checked against all the queries, so a batch costs the semantic repository as much as a single discovery.
+     * The batch is built within one deadline, as {@code /advanced-discovery} does; Things not retrieved before it expires are omitted from every TED and the response carries the header {@code X-Partial-TED: true}
+     * @param queries A JSON array with the SPARQL queries
+     * @param neighbors A comma separated list of Thing OIDs
+     * @param deadline The time budget in milliseconds requested by the client, it cannot exceed {@code discovery.deadline-ms}
+     * @return A JSON array with a JSON-LD TED for each query, in the same order as the queries
+     */
+    @RequestMapping(value ="/advanced-discovery/batch", method = RequestMethod.POST, produces = "application/json")
+    @ResponseBody
+    public Callable<ResponseEntity<byte[]>> getBatchDiscovery(@RequestBody String queries, @RequestParam String neighbors, @RequestParam(required = false) Long deadline) {
+    		Deadline budget = deadline(deadline);
+    		String endpoint = repositoryEndpoint();
+    		return () -> {
+    			RequestTrace trace = tracer.start("/advanced-discovery/batch");
+    			ResponseEntity<byte[]> teds = prepareResponse(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("[]".getBytes(StandardCharsets.UTF_8));
     			try {
-	    				log.info("Discovery query received");
-	    				// Build TED
-	    	    			ted = buildParallelTED(endpoint, neighbors, query);
-					response.setStatus( HttpServletResponse.SC_OK );
-					log.info("TED answered");
-			} catch (Exception e) {
-				log.severe(e.toString());
-			}
+    				// Clean the queries from realTime FILTER statements
+    				JSONArray batch = new JSONArray(queries);
+    				List<String> cleanedQueries = new ArrayList<>();
+    				for(int index = 0; index < batch.length(); index++)
+    					cleanedQueries.add(cleanQuery(batch.getString(index)));
+    				if(!cleanedQueries.isEmpty() && !cleanedQueries.contains("")) {
+    					log.fine("Batch discovery of "+cleanedQueries.size()+" queries received");
+    					List<String> omitted = new ArrayList<>();
+    					List<Model> tedModels = buildParallelTEDs(endpoint, neighbors, cleanedQueries, budget, omitted);
+    					long serializeStart = GatewayMetrics.start();
+    					ByteArrayOutputStream body = new ByteArrayOutputStream();
+    					body.write('[');
+    					for(Model ted:tedModels) {
+    						if(body.size() > 1)
+    							body.write(',');
+    						body.write(TedFormat.JSONLD.serialize(ted));
+    					}
+    					body.write(']');
+    					metrics.recordStage(GatewayMetrics.STAGE_SERIALIZE, GatewayMetrics.elapsed(serializeStart));
+    					metrics.recordResponseSize("/advanced-discovery/batch", body.size());
+    					ResponseEntity.BodyBuilder response = prepareResponse(HttpStatus.OK).contentType(MediaType.APPLICATION_JSON);
+    					if(!omitted.isEmpty())
+    						response.header(PARTIAL_HEADER, "true");
+    					teds = response.body(body.toByteArray());
+    					log.fine("TEDs answered");
+    				}
+    			} catch (Exception e) {
+    				log.severe(e.toString());
+    			}
+    			return traced(teds, trace);
+    		};
+    }
+
+    /**
+     * This method subscribes the client to the Things relevant to a query among some neighbors, the changes are pushed as Server-Sent Events instead of rebuilding the whole TED
+     * <p>
+     * The first event ({@code subscribed}) carries the id of the subscription, then an {@code added} event with the JSON-LD of every relevant Thing follows. From then on only the changes are sent:
+     * {@code added} and {@code updated} events with the JSON-LD of the Things that became relevant or whose graphs changed, and {@code removed} events with the IRI of those no longer relevant
+     * @param query A SPARQL query
+     * @param neighbors A comma separated list of Thing OIDs
+     * @return A stream of events, status 400 if the query is not valid or 503 if no more subscriptions are allowed
+     */
+    @RequestMapping(value ="/advanced-discovery/subscriptions", method = RequestMethod.POST, produces = "text/event-stream")
+    public ResponseEntity<SseEmitter> subscribeDiscovery(@RequestBody String query, @RequestParam String neighbors) {
+    		ResponseEntity<SseEmitter> subscription = prepareResponse(HttpStatus.BAD_REQUEST).body(null);
+    		// Clean the query from realTime FILTER statements
+    		String cleanedQuery = cleanQuery(query);
+    		if(!cleanedQuery.isEmpty()) {
+    			try {
+    				List<CompiledQuery> relevanceQueries = Collections.singletonList(relevanceEngine.compile(cleanedQuery));
+    				String endpoint = repositoryEndpoint();
+    				SseEmitter emitter = tedSubscriptions.subscribe(neighbors, (subscribed, omitted) -> {
+    					List<String> omittedOids = new ArrayList<>();
+    					try {
+    						return relevantThings(endpoint, subscribed, relevanceQueries, deadline(null), omittedOids, true).get(0);
+    					} catch (InterruptedException e) {
+    						Thread.currentThread().interrupt();
+    						throw new CancellationException("Subscription interrupted");
+    					} finally {
+    						omittedOids.forEach(oid -> omitted.add(thingIRI(oid)));
+    					}
+    				});
+    				subscription = emitter != null? prepareResponse(HttpStatus.OK).body(emitter) : prepareResponse(HttpStatus.SERVICE_UNAVAILABLE).body(null);
+    			} catch (Exception e) {
+    				log.severe(e.toString());
+    			}
     		}
+    		return subscription;
+    }
 
-    		return ted;
+    /**
+     * This method changes the neighbors of a subscription, the Things relevant among the new neighbors are sent right away
+     * @param id The id of the subscription
+     * @param neighbors A comma separated list of Thing OIDs
+     * @return Status 204, or 404 if the subscription does not exist
+     */
+    @RequestMapping(value ="/advanced-discovery/subscriptions/{id}", method = RequestMethod.PUT)
+    public ResponseEntity<Void> updateSubscription(@PathVariable String id, @RequestParam String neighbors) {
+    		return prepareResponse(tedSubscriptions.update(id, neighbors)? HttpStatus.NO_CONTENT : HttpStatus.NOT_FOUND).build();
     }
 
+    /**
+     * This method ends a subscription
+     * @param id The id of the subscription
+     * @return Status 204, or 404 if the subscription does not exist
+     */
+    @RequestMapping(value ="/advanced-discovery/subscriptions/{id}", method = RequestMethod.DELETE)
+    public ResponseEntity<Void> cancelSubscription(@PathVariable String id) {
+    		return prepareResponse(tedSubscriptions.cancel(id)? HttpStatus.NO_CONTENT : HttpStatus.NOT_FOUND).build();
+    }
 
 
-	private String cleanQuery(String query) {
+
+	static String cleanQuery(String query) {
 		String newQuery = query;
 		if(query.contains("FILTER")) {
 			newQuery = query.replaceAll(".*FILTER.*", "" );
@@ -377,189 +723,248 @@ public class GatewayServicesController {
 	}
 
 
-	private String buildTED(String endpoint, String ted, String query) {
-		Model tedFiltered = parseRDF("<http://vicinity.eu/data/ted> a <http://iot.linkeddata.es/def/core#ThingEcosystemDescription>;\n   <http://iot.linkeddata.es/def/core#describes> <http://bnodes/N9e711c303f3e40f7872d87ccb66cc225> .\n \n <http://bnodes/N9e711c303f3e40f7872d87ccb66cc225>  a <http://iot.linkeddata.es/def/core#Ecosystem>.", "TURTLE");
-		Property hasComponentPredicate = ResourceFactory.createProperty("http://iot.linkeddata.es/def/core#hasComponent");
-		String[] oids = ted.split(",");
-		int maxIndex = oids.length;
-		int index = 0;
-		while(index < maxIndex) {
-			String oid = oids[index].trim();
-			
-			String thing = GatewayServicesController.dataDomain+"/things/"+oid;
-			
-				// retrieve all the RDF of the IRI in 'line'
-				this.visitedIRIs = new ArrayList<>();
-				Model thingRDF = retrieveThingRDF(endpoint, thing, oid);
-				Boolean isRelevant = true;// isRelevantObject(thingRDF, query);
-				log.info("Querying: "+oid+"; Relevant: "+isRelevant);
-				if(!thingRDF.isEmpty() && isRelevant) {
-					// add thing to ted
-					tedFiltered.add(ResourceFactory.createResource("http://bnodes/N9e711c303f3e40f7872d87ccb66cc225"), hasComponentPredicate, ResourceFactory.createResource(thing));
-					tedFiltered.add(thingRDF);
-				}
-			
-			index++;
-		}
-		
-		
-		
-		return toString(tedFiltered,"JSONLD");
+	/**
+	 * This method returns the time budget of a discovery
+	 * @param requested The time budget requested by the client in milliseconds, or null
+	 * @return A {@link Deadline} that expires after the requested time, never later than {@code discovery.deadline-ms}
+	 */
+	private Deadline deadline(Long requested) {
+		long millis = discoveryDeadlineMillis;
+		if(requested != null && requested > 0)
+			millis = millis > 0? Math.min(millis, requested) : requested;
+		return Deadline.after(millis);
+	}
+
+	private Model buildParallelTED(String endpoint, String ted, String query, Deadline deadline, List<String> omitted) {
+		return buildParallelTEDs(endpoint, ted, Collections.singletonList(query), deadline, omitted).get(0);
 	}
 	
-	private String buildParallelTED(String endpoint, String ted, String query) {
-		Model tedFiltered = parseRDF("<http://vicinity.eu/data/ted> a <http://iot.linkeddata.es/def/core#ThingEcosystemDescription>;\n   <http://iot.linkeddata.es/def/core#describes> <http://bnodes/N9e711c303f3e40f7872d87ccb66cc225> .\n \n <http://bnodes/N9e711c303f3e40f7872d87ccb66cc225>  a <http://iot.linkeddata.es/def/core#Ecosystem>.", "TURTLE");
-		Property hasComponentPredicate = ResourceFactory.createProperty("http://iot.linkeddata.es/def/core#hasComponent");
-		String[] oids = ted.split(",");
-		int maxIndex = oids.length;
-		int index = 0;
-		// parallelization
-		ExecutorService executorService = Executors.newFixedThreadPool(100);
-		List<Callable<Model>> taskList = new ArrayList<>();
-		while(index < maxIndex) {
-			String oid = oids[index].trim();
-			 Callable<Model> task = () -> {
-				String thing = GatewayServicesController.dataDomain+"/things/"+oid;
-				Model thingRDFResult = ModelFactory.createDefaultModel();
-				// retrieve all the RDF of the IRI in 'line'
-				this.visitedIRIs = new ArrayList<>();
-				Model thingRDF = retrieveThingRDF(endpoint, thing, oid);
-				Boolean isRelevant = isRelevantObject(thingRDF, query);
-				log.info("Querying: "+oid+"; Relevant: "+isRelevant);
-				if(!thingRDF.isEmpty() && isRelevant) {
-					// add thing to ted
-					thingRDFResult.add(ResourceFactory.createResource("http://bnodes/N9e711c303f3e40f7872d87ccb66cc225"), hasComponentPredicate, ResourceFactory.createResource(thing));
-					thingRDFResult.add(thingRDF);
-				}
-				return thingRDFResult;
-			};
-			taskList.add(task);
-			index++;
-		}
+	/**
+	 * This method builds the TEDs of several queries over the same neighbors, the graphs of every Thing are retrieved and expanded with its owners once and checked against all the queries
+	 * @param endpoint The semantic repository endpoint
+	 * @param ted A comma separated list of Thing OIDs
+	 * @param queries The SPARQL queries, already cleaned
+	 * @param deadline The time budget of the discovery
+	 * @param omitted A list where the OIDs of the Things that could not be retrieved in time are added, they are omitted from every TED
+	 * @return The TEDs, in the same order as the queries
+	 */
+	private List<Model> buildParallelTEDs(String endpoint, String ted, List<String> queries, Deadline deadline, List<String> omitted) {
+		List<Model> teds = new ArrayList<>();
+		for(int index = 0; index < queries.size(); index++)
+			teds.add(parseRDF(TED_HEADER, "TURTLE"));
+		Resource ecosystem = ResourceFactory.createResource(ECOSYSTEM);
+		Property hasComponentPredicate = ResourceFactory.createProperty(HAS_COMPONENT);
 		try {
-			List<Future<Model>> futures = executorService.invokeAll(taskList);
-			futures.forEach(futureModel -> {
-				try {
-					tedFiltered.add(futureModel.get());
-				} catch (InterruptedException | ExecutionException e) {
-					e.printStackTrace();
-				}
-			});
+			List<CompiledQuery> relevanceQueries = new ArrayList<>();
+			for(String query:queries)
+				relevanceQueries.add(relevanceEngine.compile(query));
+			List<Map<String, Model>> relevantThings = relevantThings(endpoint, ted, relevanceQueries, deadline, omitted, false);
+			for(int query = 0; query < teds.size(); query++) {
+				// add things to each ted, their triples are copied once from the (cached) graphs of the Thing and its owners
+				Model tedFiltered = teds.get(query);
+				relevantThings.get(query).forEach((thing, thingRDF) -> {
+					tedFiltered.add(ecosystem, hasComponentPredicate, ResourceFactory.createResource(thing));
+					tedFiltered.add(thingRDF);
+				});
+			}
+			if(!omitted.isEmpty()) {
+				Property omitsPredicate = ResourceFactory.createProperty(OMITS);
+				for(Model tedFiltered:teds)
+					omitted.forEach(oid -> tedFiltered.add(ResourceFactory.createResource(TED), omitsPredicate, ResourceFactory.createResource(thingIRI(oid))));
+			}
 		}catch (Exception e) {
-			e.printStackTrace();
+			log.log(Level.SEVERE, "The TEDs could not be built", e);
 		}
-		return toString(tedFiltered,"JSONLD");
+		return teds;
 	}
 	
-	
-	
-	private Boolean isRelevantObject(Model model, String queryString) {
-		Boolean isRelevant = false;
-		  try {
-			 
-				Query query = QueryFactory.create(queryString) ;
-				QueryExecution qexec = QueryExecutionFactory.create(query, model);
-			    ResultSet results = qexec.execSelect() ;
-			    isRelevant  = results.hasNext(); 
-			    qexec.close();
-			  
-		  } catch (Exception e) {
-			  e.printStackTrace();
-		  }
-		return isRelevant;
+	/**
+	 * This method finds the Things relevant to several queries among the same neighbors, the graphs of every Thing are retrieved and expanded with its owners once and checked against all the queries
+	 * @param endpoint The semantic repository endpoint
+	 * @param ted A comma separated list of Thing OIDs
+	 * @param relevanceQueries The compiled queries
+	 * @param deadline The time budget of the discovery
+	 * @param omitted A list where the OIDs of the Things that could not be retrieved in time, or are not valid, are added
+	 * @param fresh True to retrieve the graphs of the Things from the semantic repository, e.g., for subscriptions, rather than reading them from the cache or the replica, and to check them all rather than those the index cannot prune
+	 * @return For every query, in the same order, the RDF of its relevant Things indexed by their IRI
+	 * @throws InterruptedException If the thread was interrupted while waiting for the Things
+	 */
+	private List<Map<String, Model>> relevantThings(String endpoint, String ted, List<CompiledQuery> relevanceQueries, Deadline deadline, List<String> omitted, boolean fresh) throws InterruptedException {
+		List<Map<String, Model>> relevantThings = new ArrayList<>();
+		for(int index = 0; index < relevanceQueries.size(); index++)
+			relevantThings.add(new LinkedHashMap<>());
+		List<List<String>> chunks = neighborChunks(ted, relevanceQueries, fresh, omitted);
+		List<Future<List<Map<String, Model>>>> futures = discoveryExecutor.invokeAll(discoveryTasks(endpoint, chunks, relevanceQueries, deadline, fresh), deadline);
+		for(int index = 0; index < futures.size(); index++) {
+			try {
+				List<Map<String, Model>> chunkThings = futures.get(index).get();
+				for(int query = 0; query < relevantThings.size(); query++)
+					relevantThings.get(query).putAll(chunkThings.get(query));
+			} catch (ExecutionException | CancellationException e) {
+				// the Things of this chunk could not be retrieved in time
+				omitted.addAll(chunks.get(index));
+			}
+		}
+		if(!omitted.isEmpty()) {
+			metrics.recordPartial();
+			log.warning("Partial TED, "+omitted.size()+" Things omitted");
+		}
+		return relevantThings;
 	}
 	
-
-	private List<String> visitedIRIs;
-	private Model retrieveThingRDF(String endpoint, String thingIri, String oid) {
-		Model tedFiltered = ModelFactory.createDefaultModel();
-
-		try {
-			if(!visitedIRIs.contains(thingIri)) {
-				visitedIRIs.add(thingIri);
-				String thingRequest = endpoint+this.queryHead.replace("query=", "query=")+URLEncoder.encode("SELECT DISTINCT * where {\n {\n  	GRAPH <http://vicinity.eu/data/descriptions/"+oid+">  {\n    	?s ?p ?o .\n    }       \n } UNION {\n    GRAPH <http://vicinity.eu/data/things/"+oid+">  {\n    	?s ?p ?o .\n    } \n }\n}","UTF-8")+"&execute=";
-				
-				
-				String thingRDF = Unirest.get(thingRequest).asString().getBody();
-				String[] lines = thingRDF.split("\n");
-				Model thingRDFModel =  buildRDF(endpoint,lines);
-				tedFiltered.add(thingRDFModel);
+	private void streamParallelTED(String endpoint, String ted, String query, Deadline deadline, TedWriter tedWriter) throws IOException {
+		try (TedWriter writer = tedWriter) {
+			writer.write(parseRDF(TED_HEADER, "TURTLE"));
+			List<CompiledQuery> relevanceQueries = Collections.singletonList(relevanceEngine.compile(query));
+			List<String> omitted = new ArrayList<>();
+			List<List<String>> chunks = neighborChunks(ted, relevanceQueries, false, omitted);
+			// Things are written as soon as the task that retrieved them finishes
+			discoveryExecutor.invokeAll(discoveryTasks(endpoint, chunks, relevanceQueries, deadline, false), (index, futureModel) -> {
+				try {
+					for(Map.Entry<String, Model> thing:futureModel.get().get(0).entrySet()) {
+						writer.write(ECOSYSTEM, HAS_COMPONENT, thing.getKey());
+						writer.write(thing.getValue());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException | CancellationException e) {
+					// the Things of this chunk could not be retrieved in time
+					omitted.addAll(chunks.get(index));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, deadline);
+			// Omitted Things are listed once all the chunks are handed over
+			for(String oid:omitted)
+				writer.write(TED, OMITS, thingIRI(oid));
+			if(!omitted.isEmpty()) {
+				metrics.recordPartial();
+				log.warning("Partial TED, "+omitted.size()+" Things omitted");
 			}
-		} catch (Exception e) {
-			log.severe(e.toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (UncheckedIOException e) {
+			// the client went away, stop writing
+			throw e.getCause();
 		}
-		
-		return tedFiltered;
 	}
 	
+	/**
+	 * This method splits the neighbors of a discovery into the chunks retrieved with one query each, discarding first those that the {@link ThingIndex} knows cannot be relevant to any of the queries
+	 * @param ted A comma separated list of Thing OIDs
+	 * @param relevanceQueries The compiled queries of the discovery
+	 * @param fresh True if the graphs of the Things are going to be retrieved again, the index may then be outdated and no neighbor is discarded
+	 * @param omitted A list where the OIDs that are not valid are added, each of them is omitted on its own without breaking the query of its chunk
+	 * @return The chunks of OIDs
+	 */
+	private List<List<String>> neighborChunks(String ted, List<CompiledQuery> relevanceQueries, boolean fresh, List<String> omitted) {
+		List<String> oids = new ArrayList<>();
+		for(String oid:ted.split(","))
+			oids.add(oid.trim());
+		metrics.recordNeighbors(oids.size());
+		for(String oid:oids) {
+			if(!SemanticRepository.isValidOid(oid))
+				omitted.add(oid);
+		}
+		oids.removeIf(oid -> !SemanticRepository.isValidOid(oid));
+		if(fresh)
+			return semanticRepository.partition(oids);
+		Predicate<String> mayBeRelevant = oid -> false;
+		for(CompiledQuery relevanceQuery:relevanceQueries)
+			mayBeRelevant = mayBeRelevant.or(thingIndex.mayBeRelevant(relevanceQuery, dataDomain+"/things/", maxOwnershipDepth));
+		int neighbors = oids.size();
+		oids.removeIf(mayBeRelevant.negate());
+		metrics.recordPruned(neighbors - oids.size());
+		return semanticRepository.partition(oids);
+	}
 	
-	
-	private Model buildRDF(String endpoint, String[] lines) {
-		Model rdfModel = ModelFactory.createDefaultModel();
-		for(int i = 1; i<lines.length;i++) {
-			String line = lines[i];
-			int firstComma = line.indexOf(",");
-			String subject = line.substring(0, firstComma);
-			line = line.substring(firstComma+1,line.length());
-			int secondComma =line.indexOf(",");
-			String predicate = line.substring(0, secondComma);		
-			String object = line.substring(secondComma+1, line.length()).trim();
-			Resource subjectModel = ResourceFactory.createResource(subject.trim());
-			Property propertyModel = ResourceFactory.createProperty(predicate.trim());
-			if(object.startsWith("http") && !predicate.contains("wot#href")) {
-				Resource resource = ResourceFactory.createResource(object);
-				rdfModel.add(subjectModel, propertyModel, resource);
-				// TODO: here retrive the ownership
-				if(predicate.contains("hasOwner") || predicate.contains("hasValue") || predicate.contains("owns") ) { 
-					Model ownership = processOwnerRDF(endpoint, object.replaceAll(dataDomain+"/things/", ""));
-					rdfModel.add(ownership);
+	/**
+	 * This method returns the semantic repository endpoint, registering its replicas in the balancer the first time
+	 */
+	private String repositoryEndpoint() {
+		repositoryBalancer.register(repositoryEndpoint, repositoryReplicas);
+		return repositoryEndpoint;
+	}
+
+	/**
+	 * This method returns the IRI of a Thing, the characters of an OID not allowed in IRIs (see {@link SemanticRepository#isValidOid(String)}) are percent-encoded
+	 */
+	private static String thingIRI(String oid) {
+		StringBuilder iri = new StringBuilder(GatewayServicesController.dataDomain).append("/things/");
+		if(SemanticRepository.isValidOid(oid)) {
+			iri.append(oid);
+		}else {
+			for(char character:oid.toCharArray()) {
+				if(SemanticRepository.isValidOid(String.valueOf(character))) {
+					iri.append(character);
+				}else {
+					iri.append(String.format("%%%02X", (int) character));
 				}
-				
-			}else if(object.startsWith("_:")){
-				// tedFiltered.add(ResourceFactory.createResource(thingIri),predicate,ResourceFactory.createResource());
-			}else {
-				Literal literal = ResourceFactory.createPlainLiteral(object);
-				rdfModel.add(subjectModel,propertyModel, literal);
 			}
 		}
-		
-		return rdfModel;
+		return iri.toString();
 	}
 	
-	private Model processOwnerRDF(String endpoint, String oid) {
-		Model rdfResult = ModelFactory.createDefaultModel();
-		String thingRequest;
-		try {
-			thingRequest = endpoint+this.queryHead.replace("query=", "query=")+URLEncoder.encode("SELECT DISTINCT * where {\n" + 
-					" {\n" + 
-					"  	GRAPH <http://vicinity.eu/data/descriptions/"+oid+">  {\n" + 
-					"    	?s ?p ?o .\n" + 
-					"    }       \n" + 
-					" } UNION {\n" + 
-					"    GRAPH <http://vicinity.eu/data/things/"+oid+">  {\n" + 
-					"    	?s ?p ?o .\n" + 
-					"    } \n" + 
-					" }\n" + 
-					"}","UTF-8")+"&execute=";
-			
-			String thingRDF = Unirest.get(thingRequest).asString().getBody();
-			
-			String[] lines = thingRDF.split("\n");
-			rdfResult.add(buildRDF(endpoint, lines));
-			
-		} catch (UnsupportedEncodingException | UnirestException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	/**
+	 * This method prepares the tasks that build the TEDs, each of them retrieves a chunk of Things with one query and returns the relevant ones to every query of the discovery
+	 * @param endpoint The semantic repository endpoint
+	 * @param chunks The chunks of Thing OIDs, one task is prepared for each of them
+	 * @param relevanceQueries The compiled queries of the discovery
+	 * @param deadline The time budget of the discovery
+	 * @param fresh True to retrieve the graphs of the Things from the semantic repository rather than reading them from the cache or the replica
+	 * @return The list of tasks, each of them returns for every query the RDF of its relevant Things indexed by their IRI
+	 */
+	private List<Callable<List<Map<String, Model>>>> discoveryTasks(String endpoint, List<List<String>> chunks, List<CompiledQuery> relevanceQueries, Deadline deadline, boolean fresh) {
+		OwnershipTraversal ownership = new OwnershipTraversal(thingGraphCache, endpoint, dataDomain, maxOwnershipDepth, deadline);
+		// parallelization, tasks run in the application-wide discovery executor
+		List<Callable<List<Map<String, Model>>>> taskList = new ArrayList<>();
+		for(List<String> chunk:chunks) {
+			 Callable<List<Map<String, Model>>> task = () -> {
+				List<Map<String, Model>> relevantThings = new ArrayList<>();
+				for(int index = 0; index < relevanceQueries.size(); index++)
+					relevantThings.add(new LinkedHashMap<>());
+				Map<String, Model> retrievedGraphs = fresh? thingGraphCache.refreshThings(endpoint, chunk, deadline) : thingGraphCache.retrieveThings(endpoint, chunk, deadline);
+				long ownershipStart = GatewayMetrics.start();
+				Map<String, Model> chunkGraphs = ownership.expandAll(retrievedGraphs);
+				metrics.recordStage(GatewayMetrics.STAGE_OWNERSHIP, GatewayMetrics.elapsed(ownershipStart));
+				for(String oid:chunk) {
+					String thing = thingIRI(oid);
+					// Things without triples are never relevant, their own graph tells it without going through the union with their owners
+					Model thingRDF = chunkGraphs.get(oid);
+					boolean hasTriples = !retrievedGraphs.get(oid).isEmpty();
+					for(int index = 0; index < relevanceQueries.size(); index++) {
+						try {
+							boolean isRelevant = false;
+							if(hasTriples) {
+								long relevanceStart = GatewayMetrics.start();
+								isRelevant = relevanceQueries.get(index).isRelevant(thingRDF.getGraph());
+								metrics.recordStage(GatewayMetrics.STAGE_RELEVANCE, GatewayMetrics.elapsed(relevanceStart));
+							}
+							boolean relevant = isRelevant;
+							log.log(Level.FINE, () -> "Querying: "+oid+"; Relevant: "+relevant);
+							if(isRelevant)
+								relevantThings.get(index).put(thing, thingRDF);
+						}catch(Exception e) {
+							log.severe(e.toString());
+						}
+					}
+				}
+				return relevantThings;
+			};
+			taskList.add(task);
 		}
-		return rdfResult;
+		return taskList;
 	}
-
+	
+	
+	
     /**
      * This method transforms a String variable with RDF content into a jena {@link Model}
      * @param strRDF A String variable containing RDF in "JSON-LD" format
      * @return a jena {@link Model}
      */
-    private  Model parseRDF(String strRDF, String format) {
+    static Model parseRDF(String strRDF, String format) {
     		Model parsedModel = ModelFactory.createDefaultModel();
     		try {
 			 InputStream is = new ByteArrayInputStream( strRDF.getBytes() );
@@ -576,7 +981,7 @@ public class GatewayServicesController {
      * @param model a jena {@link Model} 
      * @return a String variable with the same RDF of the input {@link Model} in "TURTLE" format
      */
-    private String toString(Model model, String format) {
+    static String toString(Model model, String format) {
 		Writer output = new StringWriter();
 		model.write(output, format);
 		return output.toString();
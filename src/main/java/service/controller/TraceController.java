@@ -0,0 +1,69 @@
+package service.controller;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import service.metrics.RequestTrace;
+import service.metrics.RequestTracer;
+
+/**
+ * This controller allows to inspect the sampled traces of the requests, with the time spent in each stage
+ * @author cimmino
+ *
+ */
+@Controller
+public class TraceController {
+
+	// -- Attributes
+	
+	private static final String SERVER_HEADER = "Gateway API Services of VICINITY";
+	private final RequestTracer tracer;
+	
+	
+	// -- Constructor
+	
+	public TraceController(RequestTracer tracer) {
+		this.tracer = tracer;
+	}
+	
+	
+	// -- Controller methods
+	
+	/**
+	 * This method returns the most recent sampled traces
+	 * @param limit The maximum number of traces returned
+	 * @return A JSON array with the traces, the most recent first
+	 */
+	@RequestMapping(value ="/traces", method = RequestMethod.GET, produces = "application/json")
+	@ResponseBody
+	public ResponseEntity<String> getTraces(@RequestParam(value="limit", defaultValue="50") int limit) {
+		return prepareResponse(HttpStatus.OK).body(tracer.recent(limit).toString());
+	}
+	
+	/**
+	 * This method returns a sampled trace
+	 * @param id The id of the request, as answered in the header X-Request-Id
+	 * @return A JSON document with the trace, or an empty document with status 404 if it was not sampled or is no longer kept
+	 */
+	@RequestMapping(value ="/traces/{id}", method = RequestMethod.GET, produces = "application/json")
+	@ResponseBody
+	public ResponseEntity<String> getTrace(@PathVariable String id) {
+		RequestTrace trace = tracer.find(id);
+		if(trace == null)
+			return prepareResponse(HttpStatus.NOT_FOUND).body("{}");
+		return prepareResponse(HttpStatus.OK).body(trace.toJSON().toString());
+	}
+	
+	
+	// -- Ancillary methods
+	
+	private ResponseEntity.BodyBuilder prepareResponse(HttpStatus status) {
+		return ResponseEntity.status(status).header("Server", SERVER_HEADER);
+	}
+}
@@ -0,0 +1,163 @@
+package service.discovery;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.op.Op1;
+import org.apache.jena.sparql.algebra.op.OpAssign;
+import org.apache.jena.sparql.algebra.op.OpBGP;
+import org.apache.jena.sparql.algebra.op.OpConditional;
+import org.apache.jena.sparql.algebra.op.OpExtend;
+import org.apache.jena.sparql.algebra.op.OpFilter;
+import org.apache.jena.sparql.algebra.op.OpJoin;
+import org.apache.jena.sparql.algebra.op.OpLabel;
+import org.apache.jena.sparql.algebra.op.OpLeftJoin;
+import org.apache.jena.sparql.algebra.op.OpMinus;
+import org.apache.jena.sparql.algebra.op.OpModifier;
+import org.apache.jena.sparql.algebra.op.OpSequence;
+import org.apache.jena.sparql.algebra.op.OpTriple;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.vocabulary.RDF;
+
+/**
+ * This class holds a SPARQL query compiled into an optimized algebra expression, ready to be evaluated against the graph of many Things
+ * <p>
+ * Besides the expression it keeps the predicates and rdf:types that any solution needs, i.e., those of the triple patterns outside OPTIONAL, UNION, MINUS or aggregations.
+ * A graph lacking any of them cannot match, so it is discarded without evaluating the query.
+ * Instances are immutable and can be shared among threads.
+ * @author cimmino
+ *
+ */
+public class CompiledQuery {
+
+	// -- Attributes
+	
+	private static final Node RDF_TYPE = RDF.type.asNode();
+	private final Op op;
+	private final Set<Node> requiredPredicates;
+	private final Set<Node> requiredTypes;
+	
+	
+	// -- Constructor
+	
+	/**
+	 * @param query A parsed SPARQL query
+	 */
+	public CompiledQuery(Query query) {
+		this.op = Algebra.optimize(Algebra.compile(query));
+		Set<Node> predicates = new HashSet<>();
+		Set<Node> types = new HashSet<>();
+		collectRequirements(op, predicates, types);
+		this.requiredPredicates = Collections.unmodifiableSet(predicates);
+		this.requiredTypes = Collections.unmodifiableSet(types);
+	}
+	
+	private CompiledQuery() {
+		this.op = null;
+		this.requiredPredicates = Collections.emptySet();
+		this.requiredTypes = Collections.emptySet();
+	}
+	
+	/**
+	 * This method returns a compiled query that no graph matches, used for queries that could not be parsed
+	 * @return A {@link CompiledQuery} that considers every graph irrelevant
+	 */
+	public static CompiledQuery matchingNothing() {
+		return new CompiledQuery();
+	}
+	
+	
+	// -- Methods
+	
+	/**
+	 * This method checks whether a graph contains the predicates and types that the query requires
+	 * @param graph A jena {@link Graph}
+	 * @return False if the query has no solutions in the graph for sure, true if it may have them
+	 */
+	public boolean mayMatch(Graph graph) {
+		if(op == null)
+			return false;
+		for(Node predicate:requiredPredicates) {
+			if(!graph.contains(Node.ANY, predicate, Node.ANY))
+				return false;
+		}
+		for(Node type:requiredTypes) {
+			if(!graph.contains(Node.ANY, RDF_TYPE, type))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * This method checks whether the query has at least one solution in a graph
+	 * @param graph A jena {@link Graph}
+	 * @return True if the query has solutions in the graph, false otherwise
+	 */
+	public boolean isRelevant(Graph graph) {
+		boolean isRelevant = false;
+		if(mayMatch(graph)) {
+			QueryIterator results = Algebra.exec(op, graph);
+			try {
+				isRelevant = results.hasNext();
+			}finally {
+				results.close();
+			}
+		}
+		return isRelevant;
+	}
+	
+	/**
+	 * @return The predicates that every solution of the query needs
+	 */
+	public Set<Node> getRequiredPredicates() {
+		return requiredPredicates;
+	}
+	
+	/**
+	 * @return The rdf:types that every solution of the query needs
+	 */
+	public Set<Node> getRequiredTypes() {
+		return requiredTypes;
+	}
+	
+	
+	// -- Ancillary methods
+	
+	private void collectRequirements(Op op, Set<Node> predicates, Set<Node> types) {
+		if(op instanceof OpBGP) {
+			((OpBGP) op).getPattern().forEach(triple -> collectRequirements(triple, predicates, types));
+		}else if(op instanceof OpTriple) {
+			collectRequirements(((OpTriple) op).getTriple(), predicates, types);
+		}else if(op instanceof OpJoin) {
+			collectRequirements(((OpJoin) op).getLeft(), predicates, types);
+			collectRequirements(((OpJoin) op).getRight(), predicates, types);
+		}else if(op instanceof OpSequence) {
+			((OpSequence) op).getElements().forEach(element -> collectRequirements(element, predicates, types));
+		}else if(op instanceof OpLeftJoin) {
+			collectRequirements(((OpLeftJoin) op).getLeft(), predicates, types);
+		}else if(op instanceof OpConditional) {
+			collectRequirements(((OpConditional) op).getLeft(), predicates, types);
+		}else if(op instanceof OpMinus) {
+			collectRequirements(((OpMinus) op).getLeft(), predicates, types);
+		}else if(op instanceof OpModifier || op instanceof OpFilter || op instanceof OpExtend || op instanceof OpAssign || op instanceof OpLabel) {
+			collectRequirements(((Op1) op).getSubOp(), predicates, types);
+		}
+		// Other operators, e.g., UNION, GRAPH, property paths or aggregations, add no requirement
+	}
+	
+	private void collectRequirements(Triple triple, Set<Node> predicates, Set<Node> types) {
+		Node predicate = triple.getPredicate();
+		if(predicate.isURI()) {
+			predicates.add(predicate);
+			if(predicate.equals(RDF_TYPE) && triple.getObject().isURI())
+				types.add(triple.getObject());
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package service.discovery;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * This class is the time budget of one discovery request, shared by all the fetches done to answer it
+ * <p>
+ * Requests to the semantic repository are registered while they are in flight; once the deadline is expired they are aborted, so a slow Thing cannot hold the response beyond the budget.
+ * @author cimmino
+ *
+ */
+public class Deadline {
+
+	// -- Attributes
+
+	private static final Deadline NONE = new Deadline(Long.MAX_VALUE, true);
+	private final long expiresAt;
+	private final boolean unbounded;
+	private final Set<HttpRequestBase> inFlight = ConcurrentHashMap.newKeySet();
+	private volatile boolean expired = false;
+
+
+	// -- Constructor
+
+	private Deadline(long expiresAt, boolean unbounded) {
+		this.expiresAt = expiresAt;
+		this.unbounded = unbounded;
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method returns a deadline that never expires
+	 * @return A {@link Deadline} without time limit
+	 */
+	public static Deadline none() {
+		return NONE;
+	}
+
+	/**
+	 * This method returns a deadline that expires after a given time from now
+	 * @param millis The time budget in milliseconds, zero or less means no time limit
+	 * @return A {@link Deadline}
+	 */
+	public static Deadline after(long millis) {
+		return millis > 0? new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), false) : NONE;
+	}
+
+	/**
+	 * This method returns the time left before the deadline
+	 * @return The nanoseconds left, zero if the deadline is expired or {@link Long#MAX_VALUE} if it has no time limit
+	 */
+	public long remainingNanos() {
+		long remaining = Long.MAX_VALUE;
+		if(expired) {
+			remaining = 0;
+		}else if(!unbounded) {
+			remaining = Math.max(0, expiresAt - System.nanoTime());
+		}
+		return remaining;
+	}
+
+	/**
+	 * This method checks whether there is no time left
+	 * @return True if the deadline is expired
+	 */
+	public boolean isExpired() {
+		return remainingNanos() == 0;
+	}
+
+	/**
+	 * This method registers a request in flight, if the deadline is already expired the request is aborted right away
+	 * @param request A request to the semantic repository
+	 */
+	public void register(HttpRequestBase request) {
+		if(!unbounded) {
+			inFlight.add(request);
+			if(isExpired())
+				request.abort();
+		}
+	}
+
+	/**
+	 * This method unregisters a request that is no longer in flight
+	 * @param request A request previously registered
+	 */
+	public void unregister(HttpRequestBase request) {
+		inFlight.remove(request);
+	}
+
+	/**
+	 * This method expires the deadline, aborting the requests still in flight
+	 */
+	public void expire() {
+		if(!unbounded) {
+			expired = true;
+			inFlight.forEach(HttpRequestBase::abort);
+		}
+	}
+}
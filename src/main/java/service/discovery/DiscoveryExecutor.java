@@ -0,0 +1,273 @@
+package service.discovery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import service.metrics.GatewayMetrics;
+import service.metrics.RequestTrace;
+
+/**
+ * This component is the application-wide fan-out engine used to retrieve the RDF of Things in parallel.
+ * <p>
+ * All the discovery requests share one bounded pool of threads. The number of tasks in flight is capped globally (threads plus queue) and per request, 
+ * when a cap is reached the thread submitting tasks waits until a previous task finishes, which throttles the requests instead of flooding the semantic repository.
+ * @author cimmino
+ *
+ */
+@Component
+public class DiscoveryExecutor {
+
+	// -- Attributes
+	
+	private static Logger log = Logger.getLogger(DiscoveryExecutor.class.getName());
+	private final ThreadPoolExecutor executor;
+	private final Semaphore globalPermits;
+	private final Semaphore backgroundPermits;
+	private final int requestConcurrency;
+	
+	
+	// -- Constructor
+	
+	public DiscoveryExecutor(GatewayMetrics metrics, @Value("${discovery.executor.threads:32}") int threads, @Value("${discovery.executor.queue-capacity:512}") int queueCapacity, @Value("${discovery.request.max-concurrency:16}") int requestConcurrency) {
+		this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("discovery-"));
+		this.executor.allowCoreThreadTimeOut(true);
+		metrics.monitor(executor, "discovery");
+		// Permits cover both running and queued tasks, so the executor never rejects a task because its queue is full
+		this.globalPermits = new Semaphore(threads + queueCapacity, true);
+		this.requestConcurrency = Math.max(1, Math.min(requestConcurrency, threads));
+		// Background tasks invoke tasks themselves, half the threads are always left for the latter
+		this.backgroundPermits = new Semaphore(Math.max(1, threads / 2));
+		log.log(Level.INFO, () -> "Discovery executor: "+threads+" threads, "+queueCapacity+" queued tasks, "+this.requestConcurrency+" tasks per request");
+	}
+	
+	
+	// -- Methods
+	
+	/**
+	 * This method executes the given tasks and waits until all of them are completed or the deadline expires
+	 * <p>
+	 * At most {@code discovery.request.max-concurrency} tasks of the same call are in flight at the same time. 
+	 * Once the deadline expires it is notified (aborting the requests in flight) and the unfinished tasks are cancelled, including those never started
+	 * @param tasks The tasks to execute
+	 * @param deadline The deadline of the request
+	 * @return A list of {@link Future} in the same order than the provided tasks, all of them are done or cancelled
+	 * @throws InterruptedException If the calling thread is interrupted, in such case the pending tasks are cancelled
+	 */
+	public <T> List<Future<T>> invokeAll(List<? extends Callable<T>> tasks, Deadline deadline) throws InterruptedException {
+		Semaphore requestPermits = new Semaphore(requestConcurrency);
+		List<Future<T>> futures = new ArrayList<>(tasks.size());
+		try {
+			// 1. Submit tasks as soon as there are free permits for this request and for the whole application
+			for(Callable<T> task:tasks) {
+				futures.add(submit(task, futures.size(), requestPermits, null, deadline));
+			}
+			// 2. Wait for the completion of all the tasks
+			for(Future<T> future:futures) {
+				try {
+					future.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+				} catch (ExecutionException | CancellationException e) {
+					// handled by the caller when reading the future
+				} catch (TimeoutException e) {
+					break;
+				}
+			}
+			// 3. Cancel the stragglers
+			expire(futures, deadline);
+		} catch (InterruptedException | RejectedExecutionException e) {
+			futures.forEach(future -> future.cancel(true));
+			throw e;
+		}
+		return futures;
+	}
+	
+	/**
+	 * This method executes the given tasks and hands each of them to a consumer as soon as it is done
+	 * <p>
+	 * The consumer is always invoked from the calling thread, in the order in which the tasks finish. 
+	 * At most {@code discovery.request.max-concurrency} tasks of the same call are in flight at the same time.
+	 * Once the deadline expires it is notified (aborting the requests in flight) and the unfinished tasks are cancelled and handed over as well
+	 * @param tasks The tasks to execute
+	 * @param consumer The consumer of the finished tasks, it receives the index of each task and its {@link Future} once it is done or cancelled
+	 * @param deadline The deadline of the request
+	 * @throws InterruptedException If the calling thread is interrupted, in such case the pending tasks are cancelled
+	 */
+	public <T> void invokeAll(List<? extends Callable<T>> tasks, BiConsumer<Integer, Future<T>> consumer, Deadline deadline) throws InterruptedException {
+		Semaphore requestPermits = new Semaphore(requestConcurrency);
+		BlockingQueue<IndexedTask<T>> completed = new LinkedBlockingQueue<>();
+		List<Future<T>> futures = new ArrayList<>(tasks.size());
+		int handed = 0;
+		try {
+			// 1. Submit tasks as soon as there are free permits, handing over those that already finished
+			for(Callable<T> task:tasks) {
+				futures.add(submit(task, futures.size(), requestPermits, completed, deadline));
+				for(IndexedTask<T> future = completed.poll(); future!=null; future = completed.poll(), handed++)
+					consumer.accept(future.index, future);
+			}
+			// 2. Hand over the remaining tasks as they finish, until the deadline
+			for(; handed < futures.size(); handed++) {
+				IndexedTask<T> future = completed.poll(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+				if(future == null)
+					break;
+				consumer.accept(future.index, future);
+			}
+			// 3. Cancel the stragglers, they are handed over as they are cancelled
+			expire(futures, deadline);
+			for(; handed < futures.size(); handed++) {
+				IndexedTask<T> future = completed.take();
+				consumer.accept(future.index, future);
+			}
+		} catch (InterruptedException | RuntimeException e) {
+			futures.forEach(future -> future.cancel(true));
+			throw e;
+		}
+	}
+	
+	/**
+	 * This method executes a background task, e.g., the evaluation of a subscription, that may invoke tasks of this executor itself
+	 * <p>
+	 * At most half of the threads run background tasks at the same time, so that the tasks they invoke always find threads. The task is not executed if that many are already running or the executor is full
+	 * @param task The task to execute
+	 * @return False if the task was not executed
+	 */
+	public boolean execute(Runnable task) {
+		if(!backgroundPermits.tryAcquire())
+			return false;
+		if(!globalPermits.tryAcquire()) {
+			backgroundPermits.release();
+			return false;
+		}
+		try {
+			executor.execute(RequestTrace.propagate(() -> {
+				try {
+					task.run();
+				}finally {
+					globalPermits.release();
+					backgroundPermits.release();
+				}
+			}));
+			return true;
+		} catch (RejectedExecutionException e) {
+			globalPermits.release();
+			backgroundPermits.release();
+			return false;
+		}
+	}
+	
+	private <T> void expire(List<Future<T>> futures, Deadline deadline) {
+		boolean pending = false;
+		for(Future<T> future:futures) {
+			pending |= !future.isDone();
+		}
+		if(pending) {
+			deadline.expire();
+			futures.forEach(future -> future.cancel(true));
+			log.fine("Discovery deadline expired, unfinished tasks cancelled");
+		}
+	}
+	
+	private <T> Future<T> submit(Callable<T> task, int index, Semaphore requestPermits, BlockingQueue<IndexedTask<T>> completed, Deadline deadline) throws InterruptedException {
+		// The task records its stages in the trace of the request that submits it
+		IndexedTask<T> future = new IndexedTask<>(RequestTrace.propagate(task), index, completed);
+		// Tasks that could not get permits before the deadline are never started
+		if(deadline.isExpired() || !requestPermits.tryAcquire(deadline.remainingNanos(), TimeUnit.NANOSECONDS)) {
+			future.cancel(false);
+			return future;
+		}
+		if(!globalPermits.tryAcquire(deadline.remainingNanos(), TimeUnit.NANOSECONDS)) {
+			requestPermits.release();
+			future.cancel(false);
+			return future;
+		}
+		future.permits(requestPermits);
+		try {
+			executor.execute(future);
+		} catch (RejectedExecutionException e) {
+			future.cancel(false);
+			future.releasePermits();
+			throw e;
+		}
+		return future;
+	}
+	
+	/**
+	 * This method stops the executor when the Spring context is closed, running tasks are given some time to finish
+	 */
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdown();
+		try {
+			if(!executor.awaitTermination(10, TimeUnit.SECONDS)) 
+				executor.shutdownNow();
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * A task that knows its position among the tasks of its request. Its permits are given back once a thread is done with it, 
+	 * so a task cancelled while running keeps its permits until its thread is actually released
+	 */
+	private class IndexedTask<T> extends FutureTask<T> {
+		
+		private final int index;
+		private final BlockingQueue<IndexedTask<T>> completed;
+		private final AtomicBoolean holdingPermits = new AtomicBoolean(false);
+		private Semaphore requestPermits;
+		
+		IndexedTask(Callable<T> task, int index, BlockingQueue<IndexedTask<T>> completed) {
+			super(task);
+			this.index = index;
+			this.completed = completed;
+		}
+		
+		void permits(Semaphore requestPermits) {
+			this.requestPermits = requestPermits;
+			holdingPermits.set(true);
+		}
+		
+		void releasePermits() {
+			if(holdingPermits.compareAndSet(true, false)) {
+				globalPermits.release();
+				requestPermits.release();
+			}
+		}
+		
+		@Override
+		public void run() {
+			try {
+				super.run();
+			}finally {
+				releasePermits();
+			}
+		}
+		
+		@Override
+		protected void done() {
+			if(completed!=null)
+				completed.add(this);
+		}
+	}
+}
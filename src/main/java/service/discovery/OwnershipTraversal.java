@@ -0,0 +1,179 @@
+package service.discovery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.compose.MultiUnion;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+
+/**
+ * This class expands the graph of a Thing with the graphs of its owners, i.e., the objects of its 'hasOwner', 'hasValue' and 'owns' triples (in the VICINITY core or WoT ontologies), recursively
+ * <p>
+ * One instance is meant to be shared by all the tasks of a discovery request. Owners are expanded breadth-first: the owners found at one level are retrieved with one batched query. 
+ * Every OID is retrieved at most once per request, when several tasks reach the same owner at the same time they all wait for the same retrieval; a Thing already expanded in the request is not retrieved again when it is the owner of another.
+ * Each expansion stops at {@code maxDepth} levels and never visits an OID twice, so cycles in the ownership graph are harmless.
+ * Expanded graphs are not copied: they are read-only unions of the (cached) graphs of the Thing and its owners, whose indexes are used as they are.
+ * @author cimmino
+ *
+ */
+public class OwnershipTraversal {
+
+	// -- Attributes
+	
+	private static Logger log = Logger.getLogger(OwnershipTraversal.class.getName());
+	private static final String CORE = "http://iot.linkeddata.es/def/core#";
+	private static final String WOT = "http://iot.linkeddata.es/def/wot#";
+	private static final Set<String> OWNERSHIP_PREDICATES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+			CORE+"hasOwner", CORE+"hasValue", CORE+"owns", WOT+"hasOwner", WOT+"hasValue", WOT+"owns")));
+	private final ThingGraphCache thingGraphCache;
+	private final String endpoint;
+	private final String thingsNamespace;
+	private final int maxDepth;
+	private final Deadline deadline;
+	private final ConcurrentMap<String, CompletableFuture<Model>> retrievals = new ConcurrentHashMap<>();
+	
+	
+	// -- Constructor
+	
+	/**
+	 * @param thingGraphCache The cache from which the graphs of the owners are retrieved
+	 * @param endpoint The semantic repository endpoint
+	 * @param dataDomain The local data domain, owner IRIs are expected to be under its '/things/' namespace
+	 * @param maxDepth The maximum number of ownership levels expanded from a Thing
+	 * @param deadline The time budget of the discovery, owners not retrieved before it expires are left out
+	 */
+	public OwnershipTraversal(ThingGraphCache thingGraphCache, String endpoint, String dataDomain, int maxDepth, Deadline deadline) {
+		this.thingGraphCache = thingGraphCache;
+		this.endpoint = endpoint;
+		this.thingsNamespace = dataDomain+"/things/";
+		this.maxDepth = maxDepth;
+		this.deadline = deadline;
+	}
+	
+	
+	// -- Methods
+	
+	/**
+	 * This method returns the graph of a Thing together with the graphs of its owners
+	 * @param oid The OID of the Thing
+	 * @param thingGraph The graph of the Thing, it is not modified
+	 * @return A read-only {@link Model} containing the triples of the Thing and of its owners
+	 */
+	public Model expand(String oid, Model thingGraph) {
+		return expandAll(Collections.singletonMap(oid, thingGraph)).get(oid);
+	}
+	
+	/**
+	 * This method returns the graphs of several Things together with the graphs of their owners, the owners found at the same level for all the Things are retrieved at once
+	 * @param thingGraphs The graphs of the Things indexed by their OID, they are not modified
+	 * @return A map that for every OID contains a read-only {@link Model} with the triples of the Thing and of its owners, the graph of the Thing itself if it has no owners
+	 */
+	public Map<String, Model> expandAll(Map<String, Model> thingGraphs) {
+		Map<String, List<Graph>> expanded = new HashMap<>();
+		Map<String, Set<String>> visited = new HashMap<>();
+		Map<String, Collection<Model>> levels = new HashMap<>();
+		thingGraphs.forEach((oid, thingGraph) -> {
+			retrievals.putIfAbsent(oid, CompletableFuture.completedFuture(thingGraph));
+			List<Graph> thingRDF = new ArrayList<>();
+			thingRDF.add(thingGraph.getGraph());
+			expanded.put(oid, thingRDF);
+			visited.put(oid, new HashSet<>(Collections.singleton(oid)));
+			levels.put(oid, Collections.singletonList(thingGraph));
+		});
+		for(int depth = 0; depth < maxDepth && !levels.isEmpty(); depth++) {
+			// 1. Find for every Thing the owners of this level that it has not visited yet
+			Map<String, Set<String>> owners = new HashMap<>();
+			Set<String> levelOwners = new HashSet<>();
+			levels.forEach((oid, level) -> {
+				Set<String> thingOwners = new HashSet<>();
+				level.forEach(graph -> findOwners(graph, thingOwners));
+				thingOwners.removeAll(visited.get(oid));
+				if(!thingOwners.isEmpty()) {
+					visited.get(oid).addAll(thingOwners);
+					owners.put(oid, thingOwners);
+					levelOwners.addAll(thingOwners);
+				}
+			});
+			// 2. Retrieve the owners of all the Things at once, they are the next level
+			Map<String, Model> ownerGraphs = retrieve(levelOwners);
+			levels.clear();
+			owners.forEach((oid, thingOwners) -> {
+				List<Model> level = new ArrayList<>();
+				thingOwners.forEach(owner -> level.add(ownerGraphs.get(owner)));
+				level.forEach(ownerGraph -> expanded.get(oid).add(ownerGraph.getGraph()));
+				levels.put(oid, level);
+			});
+		}
+		// 3. Join the graphs of each Thing and its owners without copying their triples
+		Map<String, Model> unions = new HashMap<>();
+		expanded.forEach((oid, graphs) -> unions.put(oid, graphs.size() == 1? thingGraphs.get(oid) : ModelFactory.createModelForGraph(new MultiUnion(graphs.toArray(new Graph[graphs.size()])))));
+		return unions;
+	}
+	
+	
+	// -- Ancillary methods
+	
+	private void findOwners(Model graph, Set<String> owners) {
+		graph.getGraph().find().forEachRemaining(triple -> {
+			if(isOwnership(triple))
+				owners.add(triple.getObject().getURI().replace(thingsNamespace, ""));
+		});
+	}
+	
+	/**
+	 * This method checks whether a triple links a Thing with one of its owners
+	 * @param triple A triple of the graph of a Thing
+	 * @return True if its predicate is 'hasOwner', 'hasValue' or 'owns' of the core or WoT ontologies, matched as a whole IRI, and its object an IRI
+	 */
+	static boolean isOwnership(Triple triple) {
+		return triple.getObject().isURI() && triple.getPredicate().isURI() && OWNERSHIP_PREDICATES.contains(triple.getPredicate().getURI());
+	}
+	
+	private Map<String, Model> retrieve(Set<String> oids) {
+		// 1. Claim the OIDs that nobody in this request has retrieved yet
+		Map<String, CompletableFuture<Model>> pending = new HashMap<>();
+		Map<String, CompletableFuture<Model>> claimed = new HashMap<>();
+		for(String oid:oids) {
+			CompletableFuture<Model> retrieval = new CompletableFuture<>();
+			CompletableFuture<Model> existing = retrievals.putIfAbsent(oid, retrieval);
+			if(existing==null) {
+				claimed.put(oid, retrieval);
+			}else {
+				pending.put(oid, existing);
+			}
+		}
+		// 2. Retrieve the claimed OIDs with one query, failures are logged and produce empty graphs
+		if(!claimed.isEmpty()) {
+			Map<String, Model> graphs = Collections.emptyMap();
+			try {
+				graphs = thingGraphCache.retrieveThings(endpoint, claimed.keySet(), deadline);
+			}catch(Exception e) {
+				log.severe(e.toString());
+			}finally {
+				for(Map.Entry<String, CompletableFuture<Model>> entry:claimed.entrySet()) {
+					Model graph = graphs.get(entry.getKey());
+					entry.getValue().complete(graph!=null? graph : ModelFactory.createDefaultModel());
+				}
+			}
+			pending.putAll(claimed);
+		}
+		// 3. Wait for the retrievals, including those started by other tasks
+		Map<String, Model> results = new HashMap<>();
+		pending.forEach((oid, retrieval) -> results.put(oid, retrieval.join()));
+		return results;
+	}
+}
@@ -0,0 +1,86 @@
+package service.discovery;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.thrift.BinRDF;
+import org.apache.jena.riot.writer.WriterStreamRDFPlain;
+
+/**
+ * This class writes a TED as a stream of triples, either as N-Triples (which are also valid N-Quads) or as binary RDF Thrift
+ * <p>
+ * Triples are written as they come, without prefixes nor grouping, and flushed after each {@link Model}; nothing but the {@link Model} being written is kept in memory.
+ * @author cimmino
+ *
+ */
+public class RdfStreamTedWriter implements TedWriter {
+
+	// -- Attributes
+	
+	private final StreamRDF stream;
+	private final AWriter text;
+	private final OutputStream binary;
+	
+	
+	// -- Constructor
+	
+	/**
+	 * @param output The stream where the document is written, it is not closed by this writer
+	 * @param thrift True to write binary RDF Thrift, false to write N-Triples
+	 */
+	public RdfStreamTedWriter(OutputStream output, boolean thrift) {
+		if(thrift) {
+			// Thrift writes straight to this buffer, so flushing it sends the triples written so far
+			this.text = null;
+			this.binary = new BufferedOutputStream(output, 8192);
+			this.stream = BinRDF.streamToOutputStream(binary, true);
+		}else {
+			this.text = IO.wrapUTF8(output);
+			this.binary = null;
+			this.stream = new WriterStreamRDFPlain(text);
+		}
+		this.stream.start();
+	}
+	
+	
+	// -- Methods
+	
+	@Override
+	public void write(Model model) throws IOException {
+		model.getGraph().find().forEachRemaining(stream::triple);
+		flush();
+	}
+	
+	@Override
+	public void write(String subject, String predicate, String object) throws IOException {
+		stream.triple(Triple.create(NodeFactory.createURI(subject), NodeFactory.createURI(predicate), NodeFactory.createURI(object)));
+	}
+	
+	/**
+	 * This method ends the document
+	 * @throws IOException If the output could not be written
+	 */
+	@Override
+	public void close() throws IOException {
+		stream.finish();
+		flush();
+	}
+	
+	
+	// -- Ancillary methods
+	
+	private void flush() throws IOException {
+		if(text!=null) {
+			text.flush();
+		}else {
+			binary.flush();
+		}
+	}
+}
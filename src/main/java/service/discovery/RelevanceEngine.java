@@ -0,0 +1,125 @@
+package service.discovery;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.jena.query.QueryFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * This component compiles the SPARQL queries used to check which Things are relevant for a discovery
+ * <p>
+ * Compiled queries are cached, indexed by their normalized text, so a query repeated by several requests is parsed and optimized only once
+ * @author cimmino
+ *
+ */
+@Component
+public class RelevanceEngine {
+
+	// -- Attributes
+	
+	private static Logger log = Logger.getLogger(RelevanceEngine.class.getName());
+	private final Cache<String, CompiledQuery> compiledQueries;
+	
+	
+	// -- Constructor
+	
+	public RelevanceEngine(@Value("${discovery.relevance.cache-size:256}") long cacheSize) {
+		this.compiledQueries = Caffeine.newBuilder().maximumSize(cacheSize).build();
+	}
+	
+	
+	// -- Methods
+	
+	/**
+	 * This method returns the compiled version of a query
+	 * @param queryString A SPARQL query
+	 * @return A {@link CompiledQuery}, if the query could not be parsed it considers every Thing irrelevant
+	 */
+	public CompiledQuery compile(String queryString) {
+		return compiledQueries.get(normalize(queryString), key -> {
+			CompiledQuery compiled = CompiledQuery.matchingNothing();
+			try {
+				compiled = new CompiledQuery(QueryFactory.create(queryString));
+			}catch(Exception e) {
+				log.log(Level.SEVERE, () -> "Discovery query could not be parsed: "+e.toString());
+			}
+			return compiled;
+		});
+	}
+	
+	
+	// -- Ancillary methods
+	
+	/**
+	 * This method removes the comments of a query and collapses its white spaces, both outside its quoted strings and IRIs, which do not change its meaning
+	 * <p>
+	 * A comment runs from a {@code #} to the end of its line, it is replaced by a white space so that what follows the line is never taken as part of it
+	 * @param queryString A SPARQL query
+	 * @return The normalized query
+	 */
+	public static String normalize(String queryString) {
+		String query = queryString.trim();
+		StringBuilder normalized = new StringBuilder(query.length());
+		char quote = 0;
+		boolean escaped = false;
+		boolean space = false;
+		for(int index = 0; index < query.length(); index++) {
+			char character = query.charAt(index);
+			if(quote != 0) {
+				normalized.append(character);
+				if(escaped) {
+					escaped = false;
+				}else if(character == '\\') {
+					escaped = true;
+				}else if(character == quote) {
+					quote = 0;
+				}
+			}else if(Character.isWhitespace(character)) {
+				space = true;
+			}else if(character == '#') {
+				while(index + 1 < query.length() && query.charAt(index + 1) != '\n' && query.charAt(index + 1) != '\r')
+					index++;
+				space = true;
+			}else {
+				if(space && normalized.length() > 0)
+					normalized.append(' ');
+				space = false;
+				if(character == '"' || character == '\'') {
+					quote = character;
+				}else if(character == '<') {
+					// An IRI is kept as it is, a # in it does not start a comment
+					int end = iriEnd(query, index);
+					if(end > index) {
+						normalized.append(query, index, end);
+						index = end - 1;
+						continue;
+					}
+				}
+				normalized.append(character);
+			}
+		}
+		return normalized.toString();
+	}
+
+	/**
+	 * This method finds the end of the IRI that starts at the given position of a query, a {@code <} that does not start an IRI is a comparison
+	 * @param query A SPARQL query
+	 * @param start The position of a {@code <} in the query
+	 * @return The position following the closing {@code >} of the IRI, or the start position if there is no IRI there
+	 */
+	private static int iriEnd(String query, int start) {
+		for(int index = start + 1; index < query.length(); index++) {
+			char character = query.charAt(index);
+			if(character == '>')
+				return index + 1;
+			if(character <= 0x20 || "<\"{}|^`\\".indexOf(character) >= 0)
+				return start;
+		}
+		return start;
+	}
+}
@@ -0,0 +1,488 @@
+package service.discovery;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.ResultSetMgr;
+import org.apache.jena.riot.resultset.ResultSetLang;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import service.metrics.GatewayMetrics;
+import service.upstream.LatencyTracker;
+import service.upstream.RepositoryBalancer;
+import service.upstream.RepositoryBalancer.Replica;
+import service.upstream.UpstreamCall;
+import service.upstream.UpstreamClient;
+import service.upstream.UpstreamUnavailableException;
+
+/**
+ * This component retrieves from the semantic repository the description and thing graphs of several Things with a single SPARQL query
+ * <p>
+ * Results are requested as SPARQL TSV (or XML/JSON if the repository prefers it) and read row by row from the response stream, each row becomes a triple of the graph of its Thing without buffering the whole response.
+ * The number of Things asked in one query (chunk size) adapts to the size of the previous responses, aiming to keep each response around {@code discovery.batch.target-response-bytes}.
+ * Queries are spread across the replicas of the repository by the {@link RepositoryBalancer}; a query that fails is sent once more to another replica, if there is any.
+ * @author cimmino
+ *
+ */
+@Component
+public class SemanticRepository {
+
+	// -- Attributes
+	
+	private static Logger log = Logger.getLogger(SemanticRepository.class.getName());
+	public static final String DESCRIPTIONS_GRAPH = "http://vicinity.eu/data/descriptions/";
+	public static final String THINGS_GRAPH = "http://vicinity.eu/data/things/";
+	private static final String RESULTS_ACCEPT = "text/tab-separated-values, application/sparql-results+xml;q=0.8, application/sparql-results+json;q=0.5";
+	private static final Var GRAPH = Var.alloc("g");
+	private static final Var SUBJECT = Var.alloc("s");
+	private static final Var PREDICATE = Var.alloc("p");
+	private static final Var OBJECT = Var.alloc("o");
+	private static final Var TRIPLES = Var.alloc("triples");
+	private static final Var LENGTH = Var.alloc("length");
+	private static final String FINGERPRINTS_QUERY = "SELECT ?g (COUNT(*) AS ?triples) (SUM(STRLEN(STR(?o))) AS ?length) where {\n  GRAPH ?g {\n    ?s ?p ?o .\n  }\n  FILTER(STRSTARTS(STR(?g), \""+DESCRIPTIONS_GRAPH+"\") || STRSTARTS(STR(?g), \""+THINGS_GRAPH+"\"))\n} GROUP BY ?g";
+	private static final String EMPTY_QUERY = "ASK {}";
+	private static final int HEDGING_WINDOW = 256;
+	private static final int HEDGING_MIN_SAMPLES = 50;
+	private final UpstreamClient upstreamClient;
+	private final RepositoryBalancer balancer;
+	private final GatewayMetrics metrics;
+	private final int maxChunkSize;
+	private final long targetResponseBytes;
+	private final AtomicInteger chunkSize;
+	private final LatencyTracker latencies = new LatencyTracker(HEDGING_WINDOW, HEDGING_MIN_SAMPLES);
+	private final boolean hedging;
+	private final double hedgingPercentile;
+	
+	
+	// -- Constructor
+	
+	public SemanticRepository(UpstreamClient upstreamClient, RepositoryBalancer balancer, GatewayMetrics metrics, @Value("${discovery.batch.chunk-size:25}") int chunkSize, @Value("${discovery.batch.max-chunk-size:200}") int maxChunkSize, @Value("${discovery.batch.target-response-bytes:1048576}") long targetResponseBytes,
+			@Value("${discovery.hedging.enabled:false}") boolean hedging, @Value("${discovery.hedging.percentile:0.95}") double hedgingPercentile) {
+		this.upstreamClient = upstreamClient;
+		this.balancer = balancer;
+		this.metrics = metrics;
+		this.maxChunkSize = Math.max(1, maxChunkSize);
+		this.targetResponseBytes = targetResponseBytes;
+		this.chunkSize = new AtomicInteger(Math.max(1, Math.min(chunkSize, this.maxChunkSize)));
+		this.hedging = hedging;
+		this.hedgingPercentile = hedgingPercentile;
+	}
+	
+	
+	// -- Methods
+	
+	/**
+	 * This method splits a list of OIDs into chunks of the current chunk size
+	 * @param oids A list of Thing OIDs
+	 * @return A list of chunks, each of them will be retrieved with one query
+	 */
+	public List<List<String>> partition(List<String> oids) {
+		int size = chunkSize.get();
+		List<List<String>> chunks = new ArrayList<>();
+		for(int index = 0; index < oids.size(); index += size) {
+			chunks.add(oids.subList(index, Math.min(index + size, oids.size())));
+		}
+		return chunks;
+	}
+	
+	/**
+	 * This method retrieves the description and thing graphs of several Things with one query
+	 * <p>
+	 * When hedging is enabled and the query takes longer than the usual latency of the repository (the configured percentile), a second identical query is sent and the first answer is kept
+	 * @param endpoint The semantic repository endpoint
+	 * @param oids The OIDs of the Things
+	 * @param deadline The time budget of the discovery, the query is aborted once it expires
+	 * @return A map that for every requested OID contains a {@link Model} with the triples of its graphs, Things without triples (or whose OID is not valid, see {@link #isValidOid(String)}) have an empty {@link Model}; an empty map if no OID is requested, without querying the repository
+	 * @throws IOException If the repository could not be reached, answered with an error, or the deadline expired
+	 */
+	public Map<String, Model> retrieveThings(String endpoint, Collection<String> oids, Deadline deadline) throws IOException {
+		// An OID that cannot be written in the query is left out, instead of breaking the query of the whole chunk
+		List<String> valid = new ArrayList<>(oids.size());
+		List<String> invalid = new ArrayList<>();
+		for(String oid:oids)
+			(isValidOid(oid)? valid : invalid).add(oid);
+		Map<String, Model> graphs = new HashMap<>();
+		if(!valid.isEmpty()) {
+			long hedgeAfter = hedging? latencies.percentile(hedgingPercentile) : -1;
+			if(hedgeAfter < 0 || hedgeAfter >= deadline.remainingNanos()) {
+				graphs = fetch(endpoint, valid, deadline);
+			}else {
+				graphs = hedgedFetch(endpoint, valid, deadline, hedgeAfter);
+			}
+		}
+		for(String oid:invalid) {
+			log.warning("Invalid OID not queried: "+oid);
+			graphs.put(oid, ModelFactory.createDefaultModel());
+		}
+		return graphs;
+	}
+
+	/**
+	 * This method checks whether an OID can be written in the graph IRIs of a query, i.e., whether those IRIs follow the IRIREF rules of SPARQL
+	 * @param oid A Thing OID
+	 * @return False if the OID contains whitespace, control characters or any of {@code <>"{}|^`\}
+	 */
+	public static boolean isValidOid(String oid) {
+		for(int index = 0; index < oid.length(); index++) {
+			char character = oid.charAt(index);
+			if(character <= 0x20 || "<>\"{}|^`\\".indexOf(character) >= 0)
+				return false;
+		}
+		return true;
+	}
+	
+
+	/**
+	 * This method retrieves a fingerprint of the graphs of every Thing in the semantic repository, i.e., the number of triples of its graphs and the length of their objects
+	 * <p>
+	 * Fingerprints are meant to find the Things that changed without retrieving their graphs, a change that keeps both numbers goes unnoticed
+	 * @param endpoint The semantic repository endpoint
+	 * @return A map with the fingerprint of every Thing that has triples, indexed by its OID
+	 * @throws IOException If the repository could not be reached or answered with an error
+	 */
+	public Map<String, String> fingerprints(String endpoint) throws IOException {
+		Replica replica = balancer.choose(endpoint);
+		HttpPost request = buildRequest(replica.getEndpoint(), FINGERPRINTS_QUERY);
+		long start = replica.started();
+		try {
+			Map<String, String> fingerprints = upstreamClient.execute(UpstreamCall.REPOSITORY, request, fingerprintsHandler());
+			replica.succeeded(start);
+			return fingerprints;
+		} catch (IOException | RuntimeException e) {
+			track(replica, start, e, request);
+			throw e;
+		}
+	}
+	
+
+	/**
+	 * This method sends a query that reads no Thing ({@code ASK {}}) to a replica of the semantic repository, several at once open as many pooled connections, which is how the gateway is warmed up
+	 * @param endpoint The semantic repository endpoint
+	 * @return A {@link CompletableFuture} completed with the status answered by the replica, or exceptionally if it could not be reached
+	 */
+	public CompletableFuture<Integer> ask(String endpoint) {
+		Replica replica = balancer.choose(endpoint);
+		HttpPost request = buildRequest(replica.getEndpoint(), EMPTY_QUERY);
+		long start = replica.started();
+		return upstreamClient.executeAsync(UpstreamCall.REPOSITORY, request, response -> response.getStatusLine().getStatusCode())
+				.whenComplete((status, error) -> track(replica, start, error, request));
+	}
+	
+	/**
+	 * This method reads SPARQL results with the columns ?g ?s ?p ?o, adding each row to the graph of the Thing it belongs to
+	 * <p>
+	 * Objects of 'wot#href' triples are read as plain literals, rows of other graphs and rows whose object is a blank node are ignored
+	 * @param body The SPARQL results
+	 * @param lang The format of the results
+	 * @param graphs The graphs of the Things, indexed by OID, rows of other graphs are ignored
+	 */
+	public static void readResults(InputStream body, Lang lang, Map<String, Model> graphs) {
+		ResultSet results = ResultSetMgr.read(body, lang);
+		while(results.hasNext())
+			addRow(graphs, results.nextBinding());
+	}
+	
+
+	// -- Ancillary methods
+	
+	private ResponseHandler<Map<String, String>> fingerprintsHandler() {
+		return response -> {
+			HttpEntity entity = response.getEntity();
+			int status = response.getStatusLine().getStatusCode();
+			if(status != HttpStatus.SC_OK || entity == null)
+				throw new IOException("Semantic repository answered with status "+status);
+			Map<String, String> fingerprints = new HashMap<>();
+			try (InputStream body = entity.getContent()) {
+				ResultSet results = ResultSetMgr.read(body, resultsLang(entity));
+				while(results.hasNext()) {
+					Binding row = results.nextBinding();
+					Node graph = row.get(GRAPH);
+					String oid = graph != null && graph.isURI()? graphOid(graph.getURI()) : null;
+					if(oid != null) {
+						// The description graph goes first, whatever the order of the rows
+						String fingerprint = lexicalForm(row.get(TRIPLES))+"/"+lexicalForm(row.get(LENGTH));
+						boolean description = graph.getURI().startsWith(DESCRIPTIONS_GRAPH);
+						fingerprints.merge(oid, description? "d"+fingerprint : "t"+fingerprint, (known, other) -> known.startsWith("d")? known+" "+other : other+" "+known);
+					}
+				}
+			}
+			return fingerprints;
+		};
+	}
+	
+	private Map<String, Model> fetch(String endpoint, Collection<String> oids, Deadline deadline) throws IOException {
+		if(oids.isEmpty())
+			return new HashMap<>();
+		Replica replica = balancer.choose(endpoint);
+		try {
+			return fetch(replica, oids, deadline);
+		} catch (InterruptedIOException | UpstreamUnavailableException e) {
+			throw e;
+		} catch (IOException e) {
+			// The query is sent once more to another replica, unless there is no other
+			Replica other = balancer.choose(endpoint, replica);
+			if(other == replica)
+				throw e;
+			log.log(Level.FINE, () -> "Query to "+replica.getEndpoint()+" failed, sent to "+other.getEndpoint());
+			return fetch(other, oids, deadline);
+		}
+	}
+	
+	private Map<String, Model> fetch(Replica replica, Collection<String> oids, Deadline deadline) throws IOException {
+		HttpPost request = buildRequest(replica.getEndpoint(), oids);
+		deadline.register(request);
+		long start = replica.started();
+		try {
+			Map<String, Model> graphs = upstreamClient.execute(UpstreamCall.REPOSITORY, request, resultsHandler(oids));
+			replica.succeeded(start);
+			return graphs;
+		} catch (IOException e) {
+			track(replica, start, e, request);
+			throw deadline.isExpired()? new InterruptedIOException("Discovery deadline expired") : e;
+		} catch (RuntimeException e) {
+			track(replica, start, e, request);
+			throw e;
+		} finally {
+			deadline.unregister(request);
+		}
+	}
+	
+	/**
+	 * This method records the outcome of a query in the replica that answered it, queries aborted (by the deadline or because a hedged query won) or never sent (because the circuit of the repository is open) do not count as failures
+	 */
+	private static void track(Replica replica, long start, Throwable error, HttpRequestBase request) {
+		if(error == null) {
+			replica.succeeded(start);
+		}else if(request.isAborted() || error instanceof UpstreamUnavailableException) {
+			replica.cancelled();
+		}else {
+			replica.failed();
+		}
+	}
+	
+	/**
+	 * This method sends a query and, if it is not answered within the usual latency, a second identical one; the first successful answer is kept and the other query aborted
+	 */
+	private Map<String, Model> hedgedFetch(String endpoint, Collection<String> oids, Deadline deadline, long hedgeAfter) throws IOException {
+		Replica primaryReplica = balancer.choose(endpoint);
+		HttpPost primary = buildRequest(primaryReplica.getEndpoint(), oids);
+		HttpPost hedge = null;
+		deadline.register(primary);
+		try {
+			long primaryStart = primaryReplica.started();
+			CompletableFuture<Map<String, Model>> first = upstreamClient.executeAsync(UpstreamCall.REPOSITORY, primary, resultsHandler(oids))
+					.whenComplete((graphs, error) -> track(primaryReplica, primaryStart, error, primary));
+			try {
+				return first.get(hedgeAfter, TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				// Slower than usual, a second query races the first one, in another replica if there is any
+				metrics.recordHedge();
+				Replica hedgeReplica = balancer.choose(endpoint, primaryReplica);
+				HttpPost hedgeRequest = buildRequest(hedgeReplica.getEndpoint(), oids);
+				hedge = hedgeRequest;
+				deadline.register(hedge);
+				long hedgeStart = hedgeReplica.started();
+				CompletableFuture<Map<String, Model>> second = upstreamClient.executeAsync(UpstreamCall.REPOSITORY, hedge, resultsHandler(oids))
+						.whenComplete((graphs, error) -> track(hedgeReplica, hedgeStart, error, hedgeRequest));
+				return firstSuccessful(first, second).get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+			}
+		} catch (TimeoutException e) {
+			throw new InterruptedIOException("Discovery deadline expired");
+		} catch (ExecutionException e) {
+			if(deadline.isExpired())
+				throw new InterruptedIOException("Discovery deadline expired");
+			throw e.getCause() instanceof IOException? (IOException) e.getCause() : new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while querying the semantic repository");
+		} finally {
+			// Aborting an answered query has no effect, the slower one is dropped
+			primary.abort();
+			deadline.unregister(primary);
+			if(hedge != null) {
+				hedge.abort();
+				deadline.unregister(hedge);
+			}
+		}
+	}
+	
+	/**
+	 * This method completes with the first of two results that succeeds, or fails once both have failed
+	 */
+	private static <T> CompletableFuture<T> firstSuccessful(CompletableFuture<T> first, CompletableFuture<T> second) {
+		CompletableFuture<T> winner = new CompletableFuture<>();
+		AtomicInteger failures = new AtomicInteger();
+		BiConsumer<T, Throwable> race = (result, error) -> {
+			if(error == null) {
+				winner.complete(result);
+			}else if(failures.incrementAndGet() == 2) {
+				winner.completeExceptionally(error instanceof CompletionException? error.getCause() : error);
+			}
+		};
+		first.whenComplete(race);
+		second.whenComplete(race);
+		return winner;
+	}
+	
+	private HttpPost buildRequest(String endpoint, Collection<String> oids) {
+		return buildRequest(endpoint, buildQuery(oids));
+	}
+	
+	private static HttpPost buildRequest(String endpoint, String query) {
+		HttpPost request = new HttpPost(endpoint);
+		request.setHeader(HttpHeaders.ACCEPT, RESULTS_ACCEPT);
+		request.setEntity(new UrlEncodedFormEntity(Arrays.asList(
+				new BasicNameValuePair("name", ""),
+				new BasicNameValuePair("infer", "true"),
+				new BasicNameValuePair("sameAs", "true"),
+				new BasicNameValuePair("query", query),
+				new BasicNameValuePair("execute", "")), StandardCharsets.UTF_8));
+		return request;
+	}
+	
+	/**
+	 * This method returns a handler that reads the rows of a response while they arrive, adding each one to the graph it belongs to
+	 */
+	private ResponseHandler<Map<String, Model>> resultsHandler(Collection<String> oids) {
+		long fetchStart = GatewayMetrics.start();
+		return response -> {
+			metrics.recordStage(GatewayMetrics.STAGE_FETCH, GatewayMetrics.elapsed(fetchStart));
+			long parseStart = GatewayMetrics.start();
+			HttpEntity entity = response.getEntity();
+			int status = response.getStatusLine().getStatusCode();
+			if(status != HttpStatus.SC_OK || entity == null)
+				throw new IOException("Semantic repository answered with status "+status);
+			Map<String, Model> graphs = new HashMap<>();
+			oids.forEach(oid -> graphs.put(oid, ModelFactory.createDefaultModel()));
+			try (CountingInputStream body = new CountingInputStream(entity.getContent())) {
+				readResults(body, resultsLang(entity), graphs);
+				metrics.recordStage(GatewayMetrics.STAGE_PARSE, GatewayMetrics.elapsed(parseStart));
+				// Adapt the chunk size to the size of this response
+				adaptChunkSize(body.count, oids.size());
+			}
+			latencies.record(GatewayMetrics.elapsed(fetchStart));
+			return graphs;
+		};
+	}
+	
+	private Lang resultsLang(HttpEntity entity) {
+		Lang lang = ResultSetLang.SPARQLResultSetTSV;
+		String contentType = entity.getContentType()!=null? ContentType.parse(entity.getContentType().getValue()).getMimeType() : "";
+		if(contentType.contains("xml")) {
+			lang = ResultSetLang.SPARQLResultSetXML;
+		}else if(contentType.contains("json")) {
+			lang = ResultSetLang.SPARQLResultSetJSON;
+		}
+		return lang;
+	}
+	
+	private static void addRow(Map<String, Model> graphs, Binding row) {
+		Node graph = row.get(GRAPH);
+		Node subject = row.get(SUBJECT);
+		Node predicate = row.get(PREDICATE);
+		Node object = row.get(OBJECT);
+		Model thingGraph = graph!=null && graph.isURI()? graphs.get(graphOid(graph.getURI())) : null;
+		if(thingGraph!=null && subject!=null && predicate!=null && object!=null && !object.isBlank()) {
+			// Links of wot forms ('wot#href') are kept as plain literals, as they have always been published
+			if(object.isURI() && predicate.getURI().contains("wot#href"))
+				object = NodeFactory.createLiteral(object.getURI());
+			thingGraph.getGraph().add(Triple.create(subject, predicate, object));
+		}
+	}
+	
+	private String buildQuery(Collection<String> oids) {
+		StringBuilder query = new StringBuilder("SELECT DISTINCT ?g ?s ?p ?o where {\n  VALUES ?g {");
+		oids.forEach(oid -> query.append("\n    <").append(DESCRIPTIONS_GRAPH).append(oid).append("> <").append(THINGS_GRAPH).append(oid).append(">"));
+		query.append("\n  }\n  GRAPH ?g {\n    ?s ?p ?o .\n  }\n}");
+		return query.toString();
+	}
+	
+	private static String lexicalForm(Node node) {
+		return node != null && node.isLiteral()? node.getLiteralLexicalForm() : "";
+	}
+	
+	private static String graphOid(String graph) {
+		String oid = null;
+		if(graph.startsWith(DESCRIPTIONS_GRAPH)) {
+			oid = graph.substring(DESCRIPTIONS_GRAPH.length());
+		}else if(graph.startsWith(THINGS_GRAPH)) {
+			oid = graph.substring(THINGS_GRAPH.length());
+		}
+		return oid;
+	}
+	
+	private void adaptChunkSize(long responseBytes, int requestedOids) {
+		if(requestedOids > 0 && responseBytes > 0) {
+			long bytesPerOid = Math.max(1, responseBytes / requestedOids);
+			int suggested = (int) Math.max(1, Math.min(maxChunkSize, targetResponseBytes / bytesPerOid));
+			// Move halfway towards the suggested size so that a single odd response does not swing the chunk size
+			int updated = chunkSize.updateAndGet(current -> Math.max(1, (current + suggested + 1) / 2));
+			log.log(Level.FINE, () -> "Repository chunk size set to "+updated);
+		}
+	}
+	
+	/**
+	 * Counts the bytes read from the response, used to adapt the chunk size
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		
+		private long count = 0;
+		
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			if(read >= 0)
+				count++;
+			return read;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			if(read > 0)
+				count += read;
+			return read;
+		}
+	}
+}
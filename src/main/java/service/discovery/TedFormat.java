@@ -0,0 +1,107 @@
+package service.discovery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+/**
+ * This enum lists the formats in which TEDs and resources can be answered, JSON-LD is the default one
+ * <p>
+ * N-Triples, N-Quads and RDF Thrift are much cheaper to write than JSON-LD and can always be streamed, RDF Thrift is also more compact.
+ * @author cimmino
+ *
+ */
+public enum TedFormat {
+
+	JSONLD(RDFFormat.JSONLD, "application/ld+json", "application/json"),
+	NTRIPLES(RDFFormat.NTRIPLES, "application/n-triples"),
+	NQUADS(RDFFormat.NQUADS, "application/n-quads"),
+	THRIFT(RDFFormat.RDF_THRIFT, "application/rdf+thrift");
+
+	// -- Attributes
+
+	private final RDFFormat rdfFormat;
+	private final MediaType[] mediaTypes;
+
+
+	// -- Constructor
+
+	private TedFormat(RDFFormat rdfFormat, String... mediaTypes) {
+		this.rdfFormat = rdfFormat;
+		this.mediaTypes = new MediaType[mediaTypes.length];
+		for(int index = 0; index < mediaTypes.length; index++)
+			this.mediaTypes[index] = MediaType.parseMediaType(mediaTypes[index]);
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method chooses the format preferred by a client
+	 * @param accept The value of the Accept header, it may be null
+	 * @return The first format acceptable by the client in order of specificity and quality, JSON-LD if the client accepts none of them or anything
+	 */
+	public static TedFormat negotiate(String accept) {
+		if(accept!=null && !accept.isEmpty()) {
+			try {
+				List<MediaType> accepted = MediaType.parseMediaTypes(accept);
+				MediaType.sortBySpecificityAndQuality(accepted);
+				for(MediaType mediaType:accepted) {
+					for(TedFormat format:values()) {
+						if(format.accepts(mediaType))
+							return format;
+					}
+				}
+			}catch(InvalidMediaTypeException e) {
+				// a malformed header is treated as a missing one
+			}
+		}
+		return JSONLD;
+	}
+
+	/**
+	 * @return The content type of a response in this format
+	 */
+	public MediaType getMediaType() {
+		return mediaTypes[0];
+	}
+
+	/**
+	 * This method returns a writer that streams a TED in this format
+	 * @param output The stream where the TED is written
+	 * @return A {@link TedWriter}, JSON-LD is written as expanded JSON-LD
+	 * @throws IOException If the document could not be started
+	 */
+	public TedWriter streamWriter(OutputStream output) throws IOException {
+		return this == JSONLD? new TedStreamWriter(output) : new RdfStreamTedWriter(output, this == THRIFT);
+	}
+
+	/**
+	 * This method writes a whole {@link Model} in this format
+	 * @param model A jena {@link Model}
+	 * @return The serialized model, JSON-LD is written as compacted JSON-LD
+	 */
+	public byte[] serialize(Model model) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		RDFDataMgr.write(output, model, rdfFormat);
+		return output.toByteArray();
+	}
+
+
+	// -- Ancillary methods
+
+	private boolean accepts(MediaType accepted) {
+		for(MediaType mediaType:mediaTypes) {
+			if(accepted.includes(mediaType))
+				return true;
+		}
+		return false;
+	}
+}
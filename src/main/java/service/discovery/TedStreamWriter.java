@@ -0,0 +1,147 @@
+package service.discovery;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.XSD;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * This class writes a TED as an expanded JSON-LD document piece by piece, i.e., a JSON array of node objects
+ * <p>
+ * Each {@link Model} written is turned into its node objects and flushed to the client right away, so nothing but the {@link Model} being written is kept in memory.
+ * A node shared by several {@link Model}s, e.g., a common owner, appears once per {@link Model}, which JSON-LD processors merge by '@id'.
+ * @author cimmino
+ *
+ */
+public class TedStreamWriter implements TedWriter {
+
+	// -- Attributes
+	
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final String XSD_STRING = XSD.xstring.getURI();
+	private final JsonGenerator generator;
+	
+	
+	// -- Constructor
+	
+	/**
+	 * @param output The stream where the document is written, it is not closed by this writer
+	 * @throws IOException If the document could not be started
+	 */
+	public TedStreamWriter(OutputStream output) throws IOException {
+		this.generator = JSON_FACTORY.createGenerator(output, JsonEncoding.UTF8);
+		this.generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		this.generator.writeStartArray();
+	}
+	
+	
+	// -- Methods
+	
+	/**
+	 * This method writes the node objects of all the subjects in a {@link Model} and flushes them
+	 * @param model A jena {@link Model}
+	 * @throws IOException If the output could not be written
+	 */
+	@Override
+	public void write(Model model) throws IOException {
+		Map<Node, List<Triple>> subjects = new LinkedHashMap<>();
+		model.getGraph().find().forEachRemaining(triple -> subjects.computeIfAbsent(triple.getSubject(), subject -> new ArrayList<>()).add(triple));
+		for(Map.Entry<Node, List<Triple>> subject:subjects.entrySet())
+			writeNode(subject.getKey(), subject.getValue());
+		generator.flush();
+	}
+	
+	/**
+	 * This method writes a node object with a single relation between two IRIs, e.g., the 'hasComponent' link between the ecosystem and a Thing
+	 * @param subject The IRI of the subject
+	 * @param predicate The IRI of the predicate
+	 * @param object The IRI of the object
+	 * @throws IOException If the output could not be written
+	 */
+	@Override
+	public void write(String subject, String predicate, String object) throws IOException {
+		generator.writeStartObject();
+		generator.writeStringField("@id", subject);
+		generator.writeArrayFieldStart(predicate);
+		generator.writeStartObject();
+		generator.writeStringField("@id", object);
+		generator.writeEndObject();
+		generator.writeEndArray();
+		generator.writeEndObject();
+	}
+	
+	/**
+	 * This method ends the JSON-LD document
+	 * @throws IOException If the output could not be written
+	 */
+	@Override
+	public void close() throws IOException {
+		generator.writeEndArray();
+		generator.close();
+	}
+	
+	
+	// -- Ancillary methods
+	
+	private void writeNode(Node subject, List<Triple> triples) throws IOException {
+		// 1. Group the objects by predicate, IRI types go into '@type'
+		List<String> types = new ArrayList<>();
+		Map<String, List<Node>> properties = new LinkedHashMap<>();
+		for(Triple triple:triples) {
+			if(triple.getPredicate().equals(RDF.type.asNode()) && triple.getObject().isURI()) {
+				types.add(triple.getObject().getURI());
+			}else {
+				properties.computeIfAbsent(triple.getPredicate().getURI(), predicate -> new ArrayList<>()).add(triple.getObject());
+			}
+		}
+		// 2. Write the node object
+		generator.writeStartObject();
+		generator.writeStringField("@id", nodeId(subject));
+		if(!types.isEmpty()) {
+			generator.writeArrayFieldStart("@type");
+			for(String type:types)
+				generator.writeString(type);
+			generator.writeEndArray();
+		}
+		for(Map.Entry<String, List<Node>> property:properties.entrySet()) {
+			generator.writeArrayFieldStart(property.getKey());
+			for(Node object:property.getValue())
+				writeValue(object);
+			generator.writeEndArray();
+		}
+		generator.writeEndObject();
+	}
+	
+	private void writeValue(Node object) throws IOException {
+		generator.writeStartObject();
+		if(object.isLiteral()) {
+			generator.writeStringField("@value", object.getLiteralLexicalForm());
+			String language = object.getLiteralLanguage();
+			String datatype = object.getLiteralDatatypeURI();
+			if(language!=null && !language.isEmpty()) {
+				generator.writeStringField("@language", language);
+			}else if(datatype!=null && !datatype.equals(XSD_STRING)) {
+				generator.writeStringField("@type", datatype);
+			}
+		}else {
+			generator.writeStringField("@id", nodeId(object));
+		}
+		generator.writeEndObject();
+	}
+	
+	private String nodeId(Node node) {
+		return node.isBlank()? "_:"+node.getBlankNodeLabel() : node.getURI();
+	}
+}
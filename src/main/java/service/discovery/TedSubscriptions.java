@@ -0,0 +1,264 @@
+package service.discovery;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * This component keeps the subscriptions of clients to the Things relevant to a query among a list of neighbors, and pushes them the changes as Server-Sent Events
+ * <p>
+ * Every {@code discovery.subscriptions.refresh-seconds} the relevant Things of each subscription are found again, retrieving the graphs of its neighbors from the semantic repository rather than from the cache (or the replica), and compared with the previous ones.
+ * Evaluations run in the {@link DiscoveryExecutor}, the scheduler only triggers them; an evaluation is skipped while the previous one of the same subscription is still running, or while the executor is busy.
+ * Only the differences are sent: an {@code added} event with the RDF (JSON-LD) of each Thing that became relevant, an {@code updated} event with the RDF of each relevant Thing whose graphs changed, and a {@code removed} event with the IRI of each Thing no longer relevant or no longer a neighbor.
+ * The first events of a subscription are the {@code subscribed} event, with its id, and an {@code added} event for every relevant Thing. Things that could not be retrieved keep their previous state.
+ * Subscriptions end when the client disconnects, when it cancels them, or after {@code discovery.subscriptions.timeout-minutes}.
+ * @author cimmino
+ *
+ */
+@Component
+public class TedSubscriptions {
+
+	// -- Attributes
+
+	private static Logger log = Logger.getLogger(TedSubscriptions.class.getName());
+	private static final MediaType JSONLD = MediaType.parseMediaType("application/ld+json");
+	private final long refreshMillis;
+	private final long timeoutMillis;
+	private final int maxSubscriptions;
+	private final DiscoveryExecutor discoveryExecutor;
+	private final ScheduledExecutorService scheduler;
+	private final ConcurrentMap<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+	private final AtomicInteger active = new AtomicInteger();
+
+
+	// -- Constructor
+
+	public TedSubscriptions(DiscoveryExecutor discoveryExecutor, @Value("${discovery.subscriptions.refresh-seconds:30}") long refreshSeconds, @Value("${discovery.subscriptions.timeout-minutes:60}") long timeoutMinutes, @Value("${discovery.subscriptions.max:100}") int maxSubscriptions) {
+		this.discoveryExecutor = discoveryExecutor;
+		this.refreshMillis = TimeUnit.SECONDS.toMillis(Math.max(1, refreshSeconds));
+		this.timeoutMillis = TimeUnit.MINUTES.toMillis(Math.max(1, timeoutMinutes));
+		this.maxSubscriptions = maxSubscriptions;
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("subscriptions-");
+		threadFactory.setDaemon(true);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method registers a subscription and starts sending its events
+	 * @param neighbors A comma separated list of Thing OIDs
+	 * @param relevantThings A function that, given the neighbors and a list where the IRIs of the Things that could not be retrieved are added, returns the RDF of the relevant Things indexed by their IRI
+	 * @return The emitter of the events of the subscription, or null if there are already {@code discovery.subscriptions.max} subscriptions
+	 */
+	public SseEmitter subscribe(String neighbors, BiFunction<String, List<String>, Map<String, Model>> relevantThings) {
+		SseEmitter emitter = null;
+		// The slot is taken before the subscription is registered, concurrent subscriptions cannot exceed the limit
+		if(active.incrementAndGet() > maxSubscriptions) {
+			active.decrementAndGet();
+		}else {
+			emitter = new SseEmitter(timeoutMillis);
+			Subscription subscription = new Subscription(UUID.randomUUID().toString(), emitter, neighbors, relevantThings);
+			subscriptions.put(subscription.id, subscription);
+			emitter.onCompletion(() -> remove(subscription));
+			emitter.onTimeout(() -> remove(subscription));
+			subscription.send(SseEmitter.event().name("subscribed").data(subscription.id));
+			subscription.refresh = scheduler.scheduleWithFixedDelay(subscription::trigger, 0, refreshMillis, TimeUnit.MILLISECONDS);
+			// The client may have gone away before the refresh was scheduled
+			if(!subscriptions.containsKey(subscription.id))
+				subscription.refresh.cancel(false);
+			log.info("Subscription "+subscription.id+" started");
+		}
+		return emitter;
+	}
+
+	/**
+	 * This method changes the neighbors of a subscription, its relevant Things are found again right away
+	 * @param id The id of the subscription
+	 * @param neighbors A comma separated list of Thing OIDs
+	 * @return False if the subscription does not exist
+	 */
+	public boolean update(String id, String neighbors) {
+		Subscription subscription = subscriptions.get(id);
+		if(subscription != null) {
+			subscription.neighbors = neighbors;
+			// An evaluation already running may have read the previous neighbors, another one follows it
+			subscription.pending.set(true);
+			subscription.trigger();
+		}
+		return subscription != null;
+	}
+
+	/**
+	 * This method ends a subscription
+	 * @param id The id of the subscription
+	 * @return False if the subscription does not exist
+	 */
+	public boolean cancel(String id) {
+		Subscription subscription = subscriptions.get(id);
+		if(subscription != null)
+			subscription.emitter.complete();
+		return subscription != null;
+	}
+
+	/**
+	 * This method ends all the subscriptions when the Spring context is closed
+	 */
+	@PreDestroy
+	public void close() {
+		scheduler.shutdownNow();
+		subscriptions.values().forEach(subscription -> subscription.emitter.complete());
+	}
+
+
+	// -- Ancillary methods
+
+	private void remove(Subscription subscription) {
+		if(subscriptions.remove(subscription.id, subscription)) {
+			active.decrementAndGet();
+			if(subscription.refresh != null)
+				subscription.refresh.cancel(false);
+			log.info("Subscription "+subscription.id+" ended");
+		}
+	}
+
+	/**
+	 * This method computes a fingerprint of the triples of a graph that does not depend on their order
+	 */
+	private static long fingerprint(Model graph) {
+		long fingerprint = graph.size() << 32;
+		Iterator<Triple> triples = graph.getGraph().find();
+		while(triples.hasNext())
+			fingerprint += triples.next().hashCode();
+		return fingerprint;
+	}
+
+	/**
+	 * A subscription, its state is only read and written by one evaluation at a time
+	 */
+	private class Subscription {
+
+		private final String id;
+		private final SseEmitter emitter;
+		private final BiFunction<String, List<String>, Map<String, Model>> relevantThings;
+		private final Map<String, Long> relevant = new HashMap<>();
+		private final AtomicBoolean evaluating = new AtomicBoolean(false);
+		private final AtomicBoolean pending = new AtomicBoolean(false);
+		private volatile String neighbors;
+		private volatile ScheduledFuture<?> refresh;
+
+		private Subscription(String id, SseEmitter emitter, String neighbors, BiFunction<String, List<String>, Map<String, Model>> relevantThings) {
+			this.id = id;
+			this.emitter = emitter;
+			this.neighbors = neighbors;
+			this.relevantThings = relevantThings;
+		}
+
+		/**
+		 * Starts an evaluation in the discovery executor, unless the previous one is still running
+		 */
+		private void trigger() {
+			if(!evaluating.compareAndSet(false, true))
+				return;
+			pending.set(false);
+			boolean started = discoveryExecutor.execute(() -> {
+				try {
+					evaluate();
+				}finally {
+					evaluating.set(false);
+					if(pending.get())
+						trigger();
+				}
+			});
+			if(!started) {
+				evaluating.set(false);
+				log.log(Level.FINE, () -> "Subscription "+id+" not evaluated, the discovery executor is busy");
+			}
+		}
+
+		/**
+		 * Finds the relevant Things again and sends the differences with the previous ones
+		 */
+		private void evaluate() {
+			if(!subscriptions.containsKey(id))
+				return;
+			try {
+				List<String> omitted = new ArrayList<>();
+				Map<String, Model> things = relevantThings.apply(neighbors, omitted);
+				Set<String> unknown = new HashSet<>(omitted);
+				boolean sent = false;
+				for(Map.Entry<String, Model> thing:things.entrySet()) {
+					long fingerprint = fingerprint(thing.getValue());
+					Long previous = relevant.put(thing.getKey(), fingerprint);
+					if(previous == null || previous != fingerprint)
+						sent |= send(SseEmitter.event().name(previous == null? "added" : "updated").data(serialize(thing.getValue()), JSONLD));
+				}
+				Iterator<String> iterator = relevant.keySet().iterator();
+				while(iterator.hasNext()) {
+					String thing = iterator.next();
+					if(!things.containsKey(thing) && !unknown.contains(thing)) {
+						iterator.remove();
+						sent |= send(SseEmitter.event().name("removed").data("{\"@id\":\""+thing+"\"}", JSONLD));
+					}
+				}
+				// Without changes a comment reveals whether the client is still there
+				if(!sent)
+					send(SseEmitter.event().comment("no changes"));
+			}catch(Exception e) {
+				log.severe("Subscription "+id+" could not be evaluated: "+e.toString());
+			}
+		}
+
+		private boolean send(SseEmitter.SseEventBuilder event) {
+			try {
+				emitter.send(event);
+				return true;
+			}catch(IOException | IllegalStateException e) {
+				// The client went away, the container ends the response
+				log.log(Level.FINE, () -> "Subscription "+id+" lost its client: "+e.toString());
+				remove(this);
+				return false;
+			}
+		}
+
+		/**
+		 * Events are written as flat JSON-LD, the data of an event cannot span several lines
+		 */
+		private String serialize(Model thing) {
+			StringWriter output = new StringWriter();
+			RDFDataMgr.write(output, thing, RDFFormat.JSONLD_COMPACT_FLAT);
+			return output.toString();
+		}
+	}
+}
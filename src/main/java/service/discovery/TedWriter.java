@@ -0,0 +1,30 @@
+package service.discovery;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.apache.jena.rdf.model.Model;
+
+/**
+ * This interface is implemented by the writers that stream a TED to the client piece by piece, one per format
+ * @author cimmino
+ *
+ */
+public interface TedWriter extends Closeable {
+
+	/**
+	 * This method writes all the triples of a {@link Model} and flushes them
+	 * @param model A jena {@link Model}
+	 * @throws IOException If the output could not be written
+	 */
+	void write(Model model) throws IOException;
+
+	/**
+	 * This method writes a single relation between two IRIs, e.g., the 'hasComponent' link between the ecosystem and a Thing
+	 * @param subject The IRI of the subject
+	 * @param predicate The IRI of the predicate
+	 * @param object The IRI of the object
+	 * @throws IOException If the output could not be written
+	 */
+	void write(String subject, String predicate, String object) throws IOException;
+}
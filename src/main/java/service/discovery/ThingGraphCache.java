@@ -0,0 +1,142 @@
+package service.discovery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.jena.rdf.model.Model;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+/**
+ * This component keeps in memory the parsed graphs of the Things retrieved from the semantic repository, indexed by their OID
+ * <p>
+ * Entries expire after {@code cache.things.ttl-seconds} and the least used ones are evicted once the cached graphs hold more than {@code cache.things.max-triples} triples.
+ * Cached {@link Model}s are shared among requests, therefore they must be only read.
+ * @author cimmino
+ *
+ */
+@Component
+public class ThingGraphCache {
+
+	// -- Attributes
+	
+	private static Logger log = Logger.getLogger(ThingGraphCache.class.getName());
+	private final SemanticRepository semanticRepository;
+	private final ThingReplica replica;
+	private final ThingIndex index;
+	private final Cache<String, Model> graphs;
+	
+	
+	// -- Constructor
+	
+	public ThingGraphCache(SemanticRepository semanticRepository, ThingReplica replica, ThingIndex index, @Value("${cache.things.ttl-seconds:300}") long ttlSeconds, @Value("${cache.things.max-triples:1000000}") long maxTriples) {
+		this.semanticRepository = semanticRepository;
+		this.replica = replica;
+		this.index = index;
+		this.graphs = Caffeine.newBuilder()
+				.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+				.maximumWeight(maxTriples)
+				.weigher((String oid, Model graph) -> (int) Math.min(Integer.MAX_VALUE, Math.max(1, graph.size())))
+				.recordStats()
+				.build();
+	}
+	
+	
+	// -- Methods
+	
+	/**
+	 * This method returns the graphs of several Things, those neither in the local replica (if enabled) nor cached are retrieved from the semantic repository with one query
+	 * @param endpoint The semantic repository endpoint
+	 * @param oids The OIDs of the Things
+	 * @param deadline The time budget of the discovery
+	 * @return A map that for every requested OID contains a read-only {@link Model} with the triples of its graphs
+	 * @throws IOException If the repository could not be reached, answered with an error, or the deadline expired
+	 */
+	public Map<String, Model> retrieveThings(String endpoint, Collection<String> oids, Deadline deadline) throws IOException {
+		// 1. Things in the local replica of the repository, they are not cached again
+		Map<String, Model> thingGraphs = replica.retrieveThings(endpoint, oids);
+		if(thingGraphs.size() < oids.size()) {
+			// 2. Things in the cache, the rest are retrieved from the repository
+			List<String> notReplicated = new ArrayList<>();
+			for(String oid:oids) {
+				if(!thingGraphs.containsKey(oid))
+					notReplicated.add(oid);
+			}
+			thingGraphs.putAll(graphs.getAllPresent(notReplicated));
+			List<String> missing = new ArrayList<>();
+			for(String oid:notReplicated) {
+				if(!thingGraphs.containsKey(oid))
+					missing.add(oid);
+			}
+			// A chunk fully cached does not depend on the repository
+			if(!missing.isEmpty())
+				thingGraphs.putAll(refreshThings(endpoint, missing, deadline));
+		}
+		return thingGraphs;
+	}
+	
+	/**
+	 * This method retrieves the graphs of several Things from the semantic repository with one query, whether they are cached or replicated or not, and caches them
+	 * @param endpoint The semantic repository endpoint
+	 * @param oids The OIDs of the Things
+	 * @param deadline The time budget of the discovery
+	 * @return A map that for every requested OID contains a read-only {@link Model} with the triples of its graphs
+	 * @throws IOException If the repository could not be reached, answered with an error, or the deadline expired
+	 */
+	public Map<String, Model> refreshThings(String endpoint, Collection<String> oids, Deadline deadline) throws IOException {
+		Map<String, Model> retrieved = semanticRepository.retrieveThings(endpoint, oids, deadline);
+		graphs.putAll(retrieved);
+		index.update(retrieved);
+		return retrieved;
+	}
+	
+	/**
+	 * This method removes from the cache and from the local replica (if enabled) the graphs of a Thing, the next discovery retrieves them from the semantic repository
+	 * @param oid The OID of the Thing
+	 */
+	public void invalidate(String oid) {
+		replica.invalidate(oid);
+		graphs.invalidate(oid);
+		index.invalidate(oid);
+		log.log(Level.INFO, () -> "Cached graphs invalidated for "+oid);
+	}
+	
+	/**
+	 * This method removes from the cache the graphs of all the Things and asks for a full reload of the local replica (if enabled), which is still used until the reload finishes
+	 */
+	public void invalidateAll() {
+		replica.reload();
+		graphs.invalidateAll();
+		index.invalidateAll();
+		log.info("Cached graphs invalidated");
+	}
+	
+	/**
+	 * This method returns the usage statistics of the cache
+	 * @return A JSON document with the hits, misses and evictions of the cache
+	 */
+	public JSONObject statistics() {
+		CacheStats stats = graphs.stats();
+		JSONObject statistics = new JSONObject();
+		statistics.put("size", graphs.estimatedSize());
+		statistics.put("hits", stats.hitCount());
+		statistics.put("misses", stats.missCount());
+		statistics.put("hitRate", stats.hitRate());
+		statistics.put("evictions", stats.evictionCount());
+		statistics.put("evictedTriples", stats.evictionWeight());
+		statistics.put("index", index.statistics());
+		return statistics;
+	}
+}
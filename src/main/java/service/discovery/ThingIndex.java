@@ -0,0 +1,234 @@
+package service.discovery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.vocabulary.RDF;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * This component keeps, for every Thing whose graphs were retrieved recently, a compact summary of them: its rdf:types, the predicates it uses and its owners
+ * <p>
+ * The summary lets a discovery discard, before any request is sent, the neighbors that cannot be relevant: those whose graphs, together with the graphs of their owners, lack a predicate or rdf:type the query requires.
+ * IRIs are kept once in a dictionary and each Thing is summarized as a sorted array of integers, so hundreds of thousands of Things take a few tens of megabytes.
+ * Summaries expire after {@code discovery.index.ttl-seconds}, a Thing without summary (or with an owner without summary) is never discarded, and neither is any Thing for a query that requires an IRI the dictionary does not know yet.
+ * The dictionary only grows, so it is started again from scratch, together with the summaries, once it holds more than {@code discovery.index.max-iris} IRIs and whenever the replica is fully reloaded.
+ * @author cimmino
+ *
+ */
+@Component
+public class ThingIndex {
+
+	// -- Attributes
+
+	private static Logger log = Logger.getLogger(ThingIndex.class.getName());
+	private static final Node RDF_TYPE = RDF.type.asNode();
+	private static final int PREDICATE = 0;
+	private static final int TYPE = 1;
+	private static final int OWNER = 2;
+	private final boolean enabled;
+	private final long ttlSeconds;
+	private final long maxThings;
+	private final int maxIris;
+	private volatile Generation generation;
+
+
+	// -- Constructor
+
+	public ThingIndex(@Value("${discovery.index.enabled:true}") boolean enabled, @Value("${discovery.index.ttl-seconds:300}") long ttlSeconds, @Value("${discovery.index.max-things:500000}") long maxThings, @Value("${discovery.index.max-iris:1000000}") int maxIris) {
+		this.enabled = enabled;
+		this.ttlSeconds = ttlSeconds;
+		this.maxThings = maxThings;
+		this.maxIris = Math.max(1024, maxIris);
+		this.generation = new Generation();
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method summarizes the graphs of several Things, replacing their previous summaries
+	 * @param thingGraphs The graphs of the Things indexed by their OID, Things without triples are summarized as well
+	 */
+	public void update(Map<String, Model> thingGraphs) {
+		if(enabled) {
+			Generation current = generation;
+			if(current.ids.size() > maxIris) {
+				current = renew(current);
+				log.info("Index dictionary full, started again");
+			}
+			Generation summarizing = current;
+			thingGraphs.forEach((oid, graph) -> summarizing.summaries.put(oid, summarizing.summarize(graph)));
+		}
+	}
+
+	/**
+	 * This method removes the summary of a Thing
+	 * @param oid The OID of the Thing
+	 */
+	public void invalidate(String oid) {
+		generation.summaries.invalidate(oid);
+	}
+
+	/**
+	 * This method removes the summaries of all the Things and starts the dictionary of IRIs again
+	 */
+	public void invalidateAll() {
+		renew(generation);
+	}
+
+	/**
+	 * This method returns a filter of the neighbors that may be relevant to a query
+	 * @param query A compiled SPARQL query
+	 * @param thingsNamespace The namespace of the Things in the local data domain, i.e., the IRI of a Thing without its OID
+	 * @param maxDepth The levels of owners added to the graph of a Thing before checking its relevance
+	 * @return A filter that rejects an OID only if the Thing and its owners are summarized and lack a predicate or rdf:type that the query requires
+	 */
+	public Predicate<String> mayBeRelevant(CompiledQuery query, String thingsNamespace, int maxDepth) {
+		Predicate<String> filter = oid -> true;
+		if(enabled && !(query.getRequiredPredicates().isEmpty() && query.getRequiredTypes().isEmpty())) {
+			Generation current = generation;
+			List<Integer> codes = new ArrayList<>();
+			query.getRequiredPredicates().forEach(predicate -> codes.add(current.requirement(predicate, PREDICATE)));
+			query.getRequiredTypes().forEach(type -> codes.add(current.requirement(type, TYPE)));
+			// A requirement whose IRI was never seen may be met by a Thing retrieved since it was summarized, nothing is discarded
+			if(!codes.contains(-1)) {
+				int[] required = codes.stream().mapToInt(Integer::intValue).toArray();
+				filter = oid -> current.meets(oid, required, thingsNamespace, maxDepth);
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * This method returns the usage statistics of the index
+	 * @return A JSON document with the summarized Things and the IRIs in the dictionary
+	 */
+	public JSONObject statistics() {
+		JSONObject statistics = new JSONObject();
+		statistics.put("enabled", enabled);
+		Generation current = generation;
+		statistics.put("things", current.summaries.estimatedSize());
+		statistics.put("iris", current.ids.size());
+		return statistics;
+	}
+
+
+	// -- Ancillary methods
+
+	/**
+	 * Swaps in an empty dictionary and summaries, unless another thread did it already
+	 */
+	private synchronized Generation renew(Generation previous) {
+		if(generation == previous)
+			generation = new Generation();
+		return generation;
+	}
+
+	/**
+	 * A dictionary of IRIs and the summaries encoded with it, a filter keeps reading the generation it started with even if it is replaced
+	 */
+	private class Generation {
+
+		private final Cache<String, int[]> summaries = Caffeine.newBuilder()
+				.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+				.maximumSize(maxThings)
+				.build();
+		private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+		private volatile String[] iris = new String[1024];
+		private int size = 0;
+
+		/**
+		 * Walks the owners breadth-first, as {@link OwnershipTraversal} does, until every requirement is met
+		 */
+		private boolean meets(String oid, int[] required, String thingsNamespace, int maxDepth) {
+			boolean[] met = new boolean[required.length];
+			int pending = required.length;
+			Set<String> visited = new HashSet<>();
+			visited.add(oid);
+			List<String> level = new ArrayList<>();
+			level.add(oid);
+			for(int depth = 0; depth <= maxDepth && !level.isEmpty(); depth++) {
+				List<String> next = new ArrayList<>();
+				for(String current:level) {
+					int[] summary = summaries.getIfPresent(current);
+					if(summary == null)
+						return true;
+					for(int index = 0; index < required.length; index++) {
+						if(!met[index] && Arrays.binarySearch(summary, required[index]) >= 0) {
+							met[index] = true;
+							pending--;
+						}
+					}
+					if(pending == 0)
+						return true;
+					for(int code:summary) {
+						if(depth < maxDepth && (code & 3) == OWNER) {
+							String owner = iris[code >>> 2].replace(thingsNamespace, "");
+							if(visited.add(owner))
+								next.add(owner);
+						}
+					}
+				}
+				level = next;
+			}
+			return false;
+		}
+
+		private int[] summarize(Model graph) {
+			Set<Integer> codes = new HashSet<>();
+			graph.getGraph().find().forEachRemaining(triple -> {
+				codes.add(code(triple.getPredicate().getURI(), PREDICATE));
+				if(triple.getObject().isURI()) {
+					if(triple.getPredicate().equals(RDF_TYPE))
+						codes.add(code(triple.getObject().getURI(), TYPE));
+					if(OwnershipTraversal.isOwnership(triple))
+						codes.add(code(triple.getObject().getURI(), OWNER));
+				}
+			});
+			int[] summary = codes.stream().mapToInt(Integer::intValue).toArray();
+			Arrays.sort(summary);
+			return summary;
+		}
+
+		private int requirement(Node node, int kind) {
+			Integer id = node.isURI()? ids.get(node.getURI()) : null;
+			return id != null? id << 2 | kind : -1;
+		}
+
+		private int code(String iri, int kind) {
+			Integer id = ids.get(iri);
+			if(id == null) {
+				synchronized (this) {
+					id = ids.get(iri);
+					if(id == null) {
+						// The IRI is stored before its id is published, readers of the id always find it
+						if(size == iris.length)
+							iris = Arrays.copyOf(iris, size * 2);
+						iris[size] = iri;
+						id = size++;
+						ids.put(iri, id);
+					}
+				}
+			}
+			return id << 2 | kind;
+		}
+	}
+}
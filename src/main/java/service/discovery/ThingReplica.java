@@ -0,0 +1,236 @@
+package service.discovery;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.jena.rdf.model.Model;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * This component keeps in memory a replica of the description and thing graphs of all the Things in the semantic repository, so that discoveries read them locally instead of querying the repository
+ * <p>
+ * The replica is optional ({@code discovery.replica.enabled}) and is loaded in the background the first time a discovery needs it, meanwhile discoveries query the repository as usual.
+ * Every {@code discovery.replica.sync-seconds} it is synchronized incrementally: a delta query returns a fingerprint of the graphs of every Thing, only the Things whose fingerprint changed are retrieved again
+ * and those no longer in the repository are dropped. The whole replica is reloaded every {@code discovery.replica.full-reload-minutes}, covering the changes that a fingerprint does not reveal.
+ * Replicated {@link Model}s are shared among requests, therefore they must be only read.
+ * @author cimmino
+ *
+ */
+@Component
+public class ThingReplica {
+
+	// -- Attributes
+
+	private static Logger log = Logger.getLogger(ThingReplica.class.getName());
+	private final SemanticRepository semanticRepository;
+	private final ThingIndex index;
+	private final boolean enabled;
+	private final long syncMillis;
+	private final long fullReloadMillis;
+	private final ScheduledExecutorService scheduler;
+	private final AtomicBoolean started = new AtomicBoolean(false);
+	private final AtomicLong syncs = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong retrievedThings = new AtomicLong();
+	private volatile String endpoint;
+	private volatile Map<String, Model> graphs = new ConcurrentHashMap<>();
+	private volatile boolean loaded = false;
+	private volatile boolean reloadRequested = false;
+	private volatile long lastSync = 0;
+	private volatile long lastFullReload = 0;
+	// Only read and written by the synchronization thread
+	private Map<String, String> fingerprints = new HashMap<>();
+
+
+	// -- Constructor
+
+	public ThingReplica(SemanticRepository semanticRepository, ThingIndex index, @Value("${discovery.replica.enabled:false}") boolean enabled, @Value("${discovery.replica.sync-seconds:60}") long syncSeconds, @Value("${discovery.replica.full-reload-minutes:60}") long fullReloadMinutes) {
+		this.semanticRepository = semanticRepository;
+		this.index = index;
+		this.enabled = enabled;
+		this.syncMillis = TimeUnit.SECONDS.toMillis(Math.max(1, syncSeconds));
+		this.fullReloadMillis = TimeUnit.MINUTES.toMillis(Math.max(1, fullReloadMinutes));
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("replica-");
+		threadFactory.setDaemon(true);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method returns the replicated graphs of several Things, the first call starts the replication of the given semantic repository
+	 * @param repositoryEndpoint The semantic repository endpoint
+	 * @param oids The OIDs of the Things
+	 * @return A map with the graphs of the requested Things found in the replica, it is empty while the replica is disabled or not loaded yet
+	 */
+	public Map<String, Model> retrieveThings(String repositoryEndpoint, Collection<String> oids) {
+		Map<String, Model> thingGraphs = new HashMap<>();
+		if(enabled) {
+			start(repositoryEndpoint);
+			if(loaded && repositoryEndpoint.equals(endpoint)) {
+				Map<String, Model> replicated = graphs;
+				for(String oid:oids) {
+					Model graph = replicated.get(oid);
+					if(graph!=null)
+						thingGraphs.put(oid, graph);
+				}
+			}
+		}
+		return thingGraphs;
+	}
+
+	/**
+	 * This method starts the replication of a semantic repository, if it is enabled and not started yet
+	 * @param repositoryEndpoint The semantic repository endpoint
+	 */
+	public void start(String repositoryEndpoint) {
+		if(enabled && started.compareAndSet(false, true)) {
+			endpoint = repositoryEndpoint;
+			scheduler.scheduleWithFixedDelay(this::synchronize, 0, syncMillis, TimeUnit.MILLISECONDS);
+			log.info("Replication of the semantic repository started");
+		}
+	}
+
+	/**
+	 * This method asks for a full reload of the replica, until it finishes the current replica is still used
+	 */
+	public void reload() {
+		if(started.get()) {
+			reloadRequested = true;
+			scheduler.execute(this::synchronize);
+		}
+	}
+
+	/**
+	 * This method drops a Thing from the replica, until the next synchronization retrieves it again discoveries read it from the cache or the semantic repository
+	 * @param oid The OID of the Thing
+	 */
+	public void invalidate(String oid) {
+		if(started.get()) {
+			graphs.remove(oid);
+			// A synchronization running meanwhile may replicate the Thing again, it is dropped once more after it and its fingerprint forgotten
+			scheduler.execute(() -> {
+				graphs.remove(oid);
+				fingerprints.remove(oid);
+			});
+		}
+	}
+
+	/**
+	 * This method returns the state of the replica
+	 * @return A JSON document with the replicated Things and triples, and the synchronizations done
+	 */
+	public JSONObject statistics() {
+		Map<String, Model> replicated = graphs;
+		long triples = 0;
+		for(Model graph:replicated.values())
+			triples += graph.size();
+		JSONObject statistics = new JSONObject();
+		statistics.put("enabled", enabled);
+		statistics.put("loaded", loaded);
+		statistics.put("things", replicated.size());
+		statistics.put("triples", triples);
+		statistics.put("syncs", syncs.get());
+		statistics.put("failures", failures.get());
+		statistics.put("retrievedThings", retrievedThings.get());
+		if(lastSync > 0)
+			statistics.put("lastSync", Instant.ofEpochMilli(lastSync).toString());
+		if(lastFullReload > 0)
+			statistics.put("lastFullReload", Instant.ofEpochMilli(lastFullReload).toString());
+		return statistics;
+	}
+
+	/**
+	 * This method stops the synchronization when the Spring context is closed
+	 */
+	@PreDestroy
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+
+	// -- Ancillary methods
+
+	/**
+	 * Runs in the synchronization thread only, so two synchronizations never overlap
+	 */
+	private void synchronize() {
+		long start = System.currentTimeMillis();
+		boolean full = !loaded || reloadRequested || start - lastFullReload >= fullReloadMillis;
+		reloadRequested = false;
+		try {
+			// 1. Find the Things in the repository and their fingerprints
+			Map<String, String> current = semanticRepository.fingerprints(endpoint);
+			List<String> changed = new ArrayList<>();
+			current.forEach((oid, fingerprint) -> {
+				if(full || !fingerprint.equals(fingerprints.get(oid)))
+					changed.add(oid);
+			});
+			// 2. Retrieve the Things new or changed, all of them in a full reload, which also starts the index again
+			if(full)
+				index.invalidateAll();
+			Map<String, Model> replicated = full? new ConcurrentHashMap<>() : graphs;
+			for(List<String> chunk:semanticRepository.partition(changed)) {
+				try {
+					Map<String, Model> retrieved = semanticRepository.retrieveThings(endpoint, chunk, Deadline.none());
+					replicated.putAll(retrieved);
+					index.update(retrieved);
+					retrievedThings.addAndGet(chunk.size());
+				}catch(Exception e) {
+					// Keep the previous graphs, with an unknown fingerprint they are retried in the next synchronization
+					for(String oid:chunk) {
+						current.put(oid, "");
+						Model previous = graphs.get(oid);
+						if(previous!=null)
+							replicated.put(oid, previous);
+					}
+					failures.incrementAndGet();
+					log.warning("Replica could not retrieve "+chunk.size()+" Things: "+e.toString());
+				}
+			}
+			// 3. Drop the Things no longer in the repository, a full reload starts from scratch
+			if(full) {
+				graphs = replicated;
+				lastFullReload = start;
+				loaded = true;
+			}else {
+				Iterator<String> oids = graphs.keySet().iterator();
+				while(oids.hasNext()) {
+					String oid = oids.next();
+					if(!current.containsKey(oid)) {
+						oids.remove();
+						index.invalidate(oid);
+					}
+				}
+			}
+			fingerprints = current;
+			lastSync = start;
+			syncs.incrementAndGet();
+			log.log(Level.FINE, () -> "Replica synchronized, "+changed.size()+" Things retrieved in "+(System.currentTimeMillis() - start)+" ms");
+		}catch(Exception e) {
+			if(full)
+				reloadRequested = true;
+			failures.incrementAndGet();
+			log.warning("Replica could not be synchronized: "+e.toString());
+		}
+	}
+}
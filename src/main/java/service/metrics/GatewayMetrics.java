@@ -0,0 +1,256 @@
+package service.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+
+/**
+ * This component records the metrics of the gateway that Spring does not record by itself, they are exposed with the rest at {@code /actuator/prometheus}
+ * <p>
+ * Recorded metrics are: the time of upstream calls ({@code upstream.calls}), the calls in flight and circuit of each kind of upstream call ({@code upstream.inflight}, {@code upstream.circuit.open}) and the calls rejected ({@code upstream.rejections}), the time of each discovery stage ({@code discovery.stage}), the neighbors of each discovery ({@code discovery.neighbors}), hedged queries ({@code discovery.hedges}), partial TEDs ({@code discovery.partial}), neighbors pruned by the Thing index ({@code discovery.pruned}),
+ * the state of the semantic repository replicas ({@code repository.replica.*}) and their ejections ({@code repository.ejections}),
+ * the size of the responses ({@code gateway.response.size}) and the state of the thread pools ({@code executor.*}). Endpoint latencies are the {@code http.server.requests} recorded by Spring.
+ * @author cimmino
+ *
+ */
+@Component
+public class GatewayMetrics {
+
+	// -- Attributes
+
+	public static final String STAGE_FETCH = "fetch";
+	public static final String STAGE_PARSE = "parse";
+	public static final String STAGE_OWNERSHIP = "ownership";
+	public static final String STAGE_RELEVANCE = "relevance";
+	public static final String STAGE_SERIALIZE = "serialize";
+	public static final String OUTCOME_SUCCESS = "success";
+	public static final String OUTCOME_ERROR = "error";
+	private final MeterRegistry registry;
+	// Meters are built once and reused, building a meter looks it up in the registry
+	private final ConcurrentMap<String, Timer> stages = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, DistributionSummary> responseSizes = new ConcurrentHashMap<>();
+	private final DistributionSummary neighbors;
+	private final Counter hedges;
+	private final Counter partials;
+	private final Counter pruned;
+	private final Counter ejections;
+
+
+	// -- Constructor
+
+	public GatewayMetrics(MeterRegistry registry) {
+		this.registry = registry;
+		this.neighbors = DistributionSummary.builder("discovery.neighbors")
+				.description("Neighbors (Thing OIDs) provided to each discovery")
+				.register(registry);
+		this.hedges = Counter.builder("discovery.hedges")
+				.description("Second queries sent to the semantic repository because the first one was slower than usual")
+				.register(registry);
+		this.partials = Counter.builder("discovery.partial")
+				.description("Discoveries answered with a partial TED because the deadline expired or some Things could not be retrieved")
+				.register(registry);
+		this.pruned = Counter.builder("discovery.pruned")
+				.description("Neighbors discarded by the Thing index before retrieving their graphs")
+				.register(registry);
+		this.ejections = Counter.builder("repository.ejections")
+				.description("Semantic repository replicas ejected because they failed or were too slow")
+				.register(registry);
+		for(String stage:new String[] {STAGE_FETCH, STAGE_PARSE, STAGE_OWNERSHIP, STAGE_RELEVANCE, STAGE_SERIALIZE})
+			stages.put(stage, stageTimer(stage));
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method builds the timer of the calls of one kind to Agora or the semantic repository, meant to be built once and used with {@link #recordUpstream(Timer, String, long)}
+	 * @param upstream The upstream called, i.e., agora or repository
+	 * @param call The kind of call
+	 * @param outcome Whether the calls succeeded or failed, one of the {@code OUTCOME_*} constants
+	 * @return A {@link Timer}
+	 */
+	public Timer upstreamTimer(String upstream, String call, String outcome) {
+		return Timer.builder("upstream.calls")
+			.description("Calls to Agora and the semantic repository")
+			.tags("upstream", upstream, "call", call, "outcome", outcome)
+			.register(registry);
+	}
+
+	/**
+	 * This method records the time of a call to Agora or the semantic repository, also in the trace of the current request
+	 * @param timer The timer of the kind of call and its outcome, see {@link #upstreamTimer(String, String, String)}
+	 * @param upstream The upstream called, i.e., agora or repository
+	 * @param nanos The time spent, in nanoseconds
+	 */
+	public void recordUpstream(Timer timer, String upstream, long nanos) {
+		timer.record(nanos, TimeUnit.NANOSECONDS);
+		RequestTrace.recordSpan(upstream, nanos);
+	}
+
+	/**
+	 * This method records the time of a discovery stage, i.e., fetch and parse the graphs of Things, expand their ownership, check their relevance or serialize the TED, also in the trace of the current request
+	 * @param stage The stage, one of the {@code STAGE_*} constants
+	 * @param nanos The time spent, in nanoseconds
+	 */
+	public void recordStage(String stage, long nanos) {
+		Timer timer = stages.get(stage);
+		if(timer == null)
+			timer = stages.computeIfAbsent(stage, this::stageTimer);
+		timer.record(nanos, TimeUnit.NANOSECONDS);
+		RequestTrace.recordSpan(stage, nanos);
+	}
+
+	/**
+	 * This method builds the counter of the calls of one kind to Agora or the semantic repository rejected without being sent, meant to be built once
+	 * @param call The kind of call
+	 * @param reason Why the calls are rejected, i.e., circuit or bulkhead
+	 * @return A {@link Counter}
+	 */
+	public Counter rejectionCounter(String call, String reason) {
+		return Counter.builder("upstream.rejections")
+			.description("Calls to Agora and the semantic repository rejected because their circuit was open or their bulkhead full")
+			.tags("call", call, "reason", reason)
+			.register(registry);
+	}
+
+	/**
+	 * This method exposes the state of a kind of upstream call: the calls in flight and whether its circuit is open
+	 * @param call The kind of call, used to tag its metrics
+	 * @param guard The object that keeps the state of the calls
+	 * @param inFlight A function returning the calls in flight, queued ones included
+	 * @param open A function returning 1 if the circuit is open, 0 otherwise
+	 */
+	public <T> void monitorUpstream(String call, T guard, ToDoubleFunction<T> inFlight, ToDoubleFunction<T> open) {
+		Gauge.builder("upstream.inflight", guard, inFlight)
+			.description("Calls to Agora and the semantic repository in flight, queued ones included")
+			.tag("call", call)
+			.register(registry);
+		Gauge.builder("upstream.circuit.open", guard, open)
+			.description("Whether the circuit of a kind of call to Agora or the semantic repository is open")
+			.tag("call", call)
+			.register(registry);
+	}
+
+	/**
+	 * This method records the number of neighbors provided to a discovery
+	 * @param count The number of neighbors
+	 */
+	public void recordNeighbors(int count) {
+		neighbors.record(count);
+	}
+
+	/**
+	 * This method records a hedged query to the semantic repository
+	 */
+	public void recordHedge() {
+		hedges.increment();
+	}
+
+	/**
+	 * This method records the neighbors of a discovery discarded before retrieving their graphs
+	 * @param count The discarded neighbors
+	 */
+	public void recordPruned(int count) {
+		pruned.increment(count);
+	}
+
+	/**
+	 * This method records a discovery answered with a partial TED
+	 */
+	public void recordPartial() {
+		partials.increment();
+	}
+
+	/**
+	 * This method records a semantic repository replica ejected from the balancing
+	 */
+	public void recordEjection() {
+		ejections.increment();
+	}
+
+	/**
+	 * This method exposes the state of a semantic repository replica: its queries in flight, its latency and whether it is ejected
+	 * @param endpoint The endpoint of the replica, used to tag its metrics
+	 * @param replica The object that keeps the state of the replica
+	 * @param outstanding A function returning the queries in flight
+	 * @param latency A function returning the latency, in seconds
+	 * @param ejected A function returning 1 if the replica is ejected, 0 otherwise
+	 */
+	public <T> void monitorReplica(String endpoint, T replica, ToDoubleFunction<T> outstanding, ToDoubleFunction<T> latency, ToDoubleFunction<T> ejected) {
+		Gauge.builder("repository.replica.outstanding", replica, outstanding)
+			.description("Queries in flight to a semantic repository replica")
+			.tag("replica", endpoint)
+			.register(registry);
+		Gauge.builder("repository.replica.latency", replica, latency)
+			.description("Moving average of the latency of a semantic repository replica")
+			.baseUnit("seconds")
+			.tag("replica", endpoint)
+			.register(registry);
+		Gauge.builder("repository.replica.ejected", replica, ejected)
+			.description("Whether a semantic repository replica is ejected from the balancing")
+			.tag("replica", endpoint)
+			.register(registry);
+	}
+
+	/**
+	 * This method records the size of a response
+	 * @param endpoint The endpoint that answered
+	 * @param bytes The size of the response body, in bytes
+	 */
+	public void recordResponseSize(String endpoint, long bytes) {
+		responseSizes.computeIfAbsent(endpoint, key -> DistributionSummary.builder("gateway.response.size")
+				.description("Size of the response bodies")
+				.baseUnit("bytes")
+				.tag("uri", key)
+				.register(registry))
+			.record(bytes);
+	}
+
+	/**
+	 * This method exposes the active threads, queued tasks and pool size of a thread pool
+	 * @param executor The thread pool
+	 * @param name The name used to tag its metrics
+	 */
+	public void monitor(ExecutorService executor, String name) {
+		new ExecutorServiceMetrics(executor, name, Tags.empty()).bindTo(registry);
+	}
+
+	/**
+	 * This method builds the timer of a discovery stage
+	 */
+	private Timer stageTimer(String stage) {
+		return Timer.builder("discovery.stage")
+				.description("Stages of the discovery of relevant Things")
+				.tag("stage", stage)
+				.register(registry);
+	}
+
+	/**
+	 * This method returns the current time, used to measure the stages
+	 * @return The value of {@link System#nanoTime()}
+	 */
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * This method returns the time elapsed since a given start
+	 * @param start A value returned by {@link #start()}
+	 * @return The nanoseconds elapsed
+	 */
+	public static long elapsed(long start) {
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,201 @@
+package service.metrics;
+
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * This class is the trace of one request: the time spent in each stage (calls to Agora and the semantic repository, fetch, parse, ownership, relevance and serialization) and the number of spans of each stage
+ * <p>
+ * The trace of the current request is kept in the thread that serves it; tasks handed to other threads must be wrapped with {@link #propagate(Callable)} or {@link #propagate(Runnable)} so that their stages are recorded in the same trace.
+ * Stages running in parallel are added up, so the time of a stage may exceed the time of the whole request.
+ * @author cimmino
+ *
+ */
+public class RequestTrace {
+
+	// -- Attributes
+
+	private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+	private final String id = UUID.randomUUID().toString();
+	private final String endpoint;
+	private final long startMillis = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+	private final ConcurrentMap<String, Span> stages = new ConcurrentHashMap<>();
+	private volatile long durationNanos = -1;
+
+
+	// -- Constructor
+
+	RequestTrace(String endpoint) {
+		this.endpoint = endpoint;
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method returns the trace of the request served by the current thread
+	 * @return A {@link RequestTrace}, or null if the thread is not serving a traced request
+	 */
+	public static RequestTrace current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * This method detaches the trace of the current thread, e.g., once a request continues in other threads
+	 */
+	public static void detach() {
+		CURRENT.remove();
+	}
+
+	/**
+	 * This method wraps a task so that it records its stages in the trace of the current thread, wherever it runs
+	 * @param task A task
+	 * @return The wrapped task, or the same task if the current thread is not serving a traced request
+	 */
+	public static <T> Callable<T> propagate(Callable<T> task) {
+		RequestTrace trace = CURRENT.get();
+		if(trace == null)
+			return task;
+		return () -> {
+			RequestTrace previous = trace.attach();
+			try {
+				return task.call();
+			}finally {
+				restore(previous);
+			}
+		};
+	}
+
+	/**
+	 * This method wraps a task so that it records its stages in the trace of the current thread, wherever it runs
+	 * @param task A task
+	 * @return The wrapped task, or the same task if the current thread is not serving a traced request
+	 */
+	public static Runnable propagate(Runnable task) {
+		RequestTrace trace = CURRENT.get();
+		if(trace == null)
+			return task;
+		return () -> {
+			RequestTrace previous = trace.attach();
+			try {
+				task.run();
+			}finally {
+				restore(previous);
+			}
+		};
+	}
+
+	/**
+	 * This method records a span of a stage in the trace of the request served by the current thread, if any
+	 * @param stage The stage, e.g., one of the {@code GatewayMetrics.STAGE_*} constants
+	 * @param nanos The time spent, in nanoseconds
+	 */
+	public static void recordSpan(String stage, long nanos) {
+		RequestTrace trace = CURRENT.get();
+		if(trace != null)
+			trace.record(stage, nanos);
+	}
+
+	/**
+	 * This method records a span of a stage
+	 * @param stage The stage, e.g., one of the {@code GatewayMetrics.STAGE_*} constants
+	 * @param nanos The time spent, in nanoseconds
+	 */
+	public void record(String stage, long nanos) {
+		Span span = stages.computeIfAbsent(stage, key -> new Span());
+		span.nanos.add(nanos);
+		span.count.increment();
+	}
+
+	/**
+	 * @return The id of the request
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * This method returns the time spent in each stage as the value of a {@code Server-Timing} header
+	 * @return The stages, with their time in milliseconds and their number of spans, followed by the total time of the request until now
+	 */
+	public String serverTiming() {
+		StringBuilder timing = new StringBuilder();
+		stages.forEach((stage, span) -> {
+			timing.append(stage).append(";dur=").append(millis(span.nanos.sum()));
+			if(span.count.sum() > 1)
+				timing.append(";desc=\"").append(span.count.sum()).append(" spans\"");
+			timing.append(", ");
+		});
+		return timing.append("total;dur=").append(millis(elapsedNanos())).toString();
+	}
+
+	/**
+	 * This method returns the trace as a JSON document
+	 * @return A JSON document with the id, endpoint, start and duration of the request and the time and spans of each stage
+	 */
+	public JSONObject toJSON() {
+		JSONObject trace = new JSONObject();
+		trace.put("id", id);
+		trace.put("endpoint", endpoint);
+		trace.put("start", Instant.ofEpochMilli(startMillis).toString());
+		trace.put("durationMs", Double.valueOf(millis(elapsedNanos())));
+		JSONObject spans = new JSONObject();
+		for(Map.Entry<String, Span> stage:stages.entrySet()) {
+			JSONObject span = new JSONObject();
+			span.put("durationMs", Double.valueOf(millis(stage.getValue().nanos.sum())));
+			span.put("spans", stage.getValue().count.sum());
+			spans.put(stage.getKey(), span);
+		}
+		trace.put("stages", spans);
+		return trace;
+	}
+
+
+	// -- Ancillary methods
+
+	RequestTrace attach() {
+		RequestTrace previous = CURRENT.get();
+		CURRENT.set(this);
+		return previous;
+	}
+
+	boolean end() {
+		boolean ending = durationNanos < 0;
+		if(ending)
+			durationNanos = System.nanoTime() - startNanos;
+		return ending;
+	}
+
+	private static void restore(RequestTrace previous) {
+		if(previous == null) {
+			CURRENT.remove();
+		}else {
+			CURRENT.set(previous);
+		}
+	}
+
+	private long elapsedNanos() {
+		return durationNanos >= 0? durationNanos : System.nanoTime() - startNanos;
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+	}
+
+	/**
+	 * The time and number of spans of a stage
+	 */
+	private static class Span {
+		private final LongAdder nanos = new LongAdder();
+		private final LongAdder count = new LongAdder();
+	}
+}
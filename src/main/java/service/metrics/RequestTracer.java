@@ -0,0 +1,91 @@
+package service.metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.json.JSONArray;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * This component starts and finishes the traces of the requests, and keeps a sample of the finished ones in a ring buffer
+ * <p>
+ * A fraction ({@code tracing.sample-rate}) of the finished traces is kept, the last {@code tracing.buffer-size} of them can be queried; every traced response carries its own trace in the {@code Server-Timing} header anyway
+ * @author cimmino
+ *
+ */
+@Component
+public class RequestTracer {
+
+	// -- Attributes
+
+	public static final String SERVER_TIMING_HEADER = "Server-Timing";
+	public static final String REQUEST_ID_HEADER = "X-Request-Id";
+	private final double sampleRate;
+	private final AtomicReferenceArray<RequestTrace> sampled;
+	private final AtomicLong next = new AtomicLong();
+
+
+	// -- Constructor
+
+	public RequestTracer(@Value("${tracing.sample-rate:0.1}") double sampleRate, @Value("${tracing.buffer-size:512}") int bufferSize) {
+		this.sampleRate = sampleRate;
+		this.sampled = new AtomicReferenceArray<>(Math.max(1, bufferSize));
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method starts the trace of a request and attaches it to the current thread
+	 * @param endpoint The endpoint serving the request
+	 * @return The {@link RequestTrace} of the request
+	 */
+	public RequestTrace start(String endpoint) {
+		RequestTrace trace = new RequestTrace(endpoint);
+		trace.attach();
+		return trace;
+	}
+
+	/**
+	 * This method finishes the trace of a request, detaching it from the current thread, and samples it; finishing a trace more than once has no effect
+	 * @param trace The {@link RequestTrace} of the request
+	 */
+	public void finish(RequestTrace trace) {
+		if(RequestTrace.current() == trace)
+			RequestTrace.detach();
+		if(trace.end() && (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate))
+			sampled.set((int) (next.getAndIncrement() % sampled.length()), trace);
+	}
+
+	/**
+	 * This method returns the sampled traces, the most recent first
+	 * @param limit The maximum number of traces returned
+	 * @return A JSON array with the sampled traces
+	 */
+	public JSONArray recent(int limit) {
+		JSONArray traces = new JSONArray();
+		long last = next.get();
+		for(long index = last - 1; index >= 0 && index >= last - sampled.length() && traces.length() < limit; index--) {
+			RequestTrace trace = sampled.get((int) (index % sampled.length()));
+			if(trace != null)
+				traces.put(trace.toJSON());
+		}
+		return traces;
+	}
+
+	/**
+	 * This method finds a sampled trace
+	 * @param id The id of the request
+	 * @return The {@link RequestTrace}, or null if it was not sampled or is no longer in the buffer
+	 */
+	public RequestTrace find(String id) {
+		for(int index = 0; index < sampled.length(); index++) {
+			RequestTrace trace = sampled.get(index);
+			if(trace != null && trace.getId().equals(id))
+				return trace;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,62 @@
+package service.upstream;
+
+import java.util.Arrays;
+
+/**
+ * This class keeps the latencies of the last calls to an upstream and estimates their percentiles
+ * <p>
+ * Latencies are kept in a fixed ring, so the estimation follows the recent behaviour of the upstream and takes constant memory
+ * @author cimmino
+ *
+ */
+public class LatencyTracker {
+
+	// -- Attributes
+
+	private final long[] latencies;
+	private final int minSamples;
+	private int next = 0;
+	private int samples = 0;
+
+
+	// -- Constructor
+
+	/**
+	 * @param window The number of latest calls considered
+	 * @param minSamples The calls needed before percentiles are estimated
+	 */
+	public LatencyTracker(int window, int minSamples) {
+		this.latencies = new long[Math.max(1, window)];
+		this.minSamples = Math.max(1, Math.min(minSamples, this.latencies.length));
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method records the latency of a call
+	 * @param nanos The latency, in nanoseconds
+	 */
+	public synchronized void record(long nanos) {
+		latencies[next] = nanos;
+		next = (next + 1) % latencies.length;
+		samples = Math.min(samples + 1, latencies.length);
+	}
+
+	/**
+	 * This method estimates a percentile of the latest latencies
+	 * @param percentile A percentile between 0 and 1, e.g., 0.95
+	 * @return The latency in nanoseconds, or -1 if not enough calls were recorded yet
+	 */
+	public long percentile(double percentile) {
+		long[] recorded;
+		synchronized (this) {
+			if(samples < minSamples)
+				return -1;
+			recorded = Arrays.copyOf(latencies, samples);
+		}
+		Arrays.sort(recorded);
+		int index = (int) Math.ceil(percentile * recorded.length) - 1;
+		return recorded[Math.max(0, Math.min(recorded.length - 1, index))];
+	}
+}
@@ -0,0 +1,151 @@
+package service.upstream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This stream rewrites the IRIs of one namespace into another while bytes are written, e.g., from the Agora endpoint to the local data domain
+ * <p>
+ * Occurrences of the namespace are found with a Knuth-Morris-Pratt matcher, so the only bytes held back are those of a partial match, never more than the namespace length.
+ * Written bytes are collected in a fixed buffer before reaching the underlying stream. Both namespaces are encoded as UTF-8, which is how Agora answers.
+ * @author cimmino
+ *
+ */
+public class NamespaceRewritingOutputStream extends FilterOutputStream {
+
+	// -- Attributes
+
+	private static final int BUFFER_SIZE = 8192;
+	private final byte[] from;
+	private final byte[] to;
+	private final int[] fallback;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int buffered = 0;
+	private int matched = 0;
+
+
+	// -- Constructor
+
+	public NamespaceRewritingOutputStream(OutputStream out, String from, String to) {
+		super(out);
+		this.from = from.getBytes(StandardCharsets.UTF_8);
+		this.to = to.getBytes(StandardCharsets.UTF_8);
+		this.fallback = fallbackTable(this.from);
+	}
+
+
+	// -- Methods
+
+	@Override
+	public void write(int value) throws IOException {
+		byte current = (byte) value;
+		if(from.length == 0) {
+			append(current);
+			return;
+		}
+		// 1. Release the part of the partial match that can no longer be extended with this byte
+		while(matched > 0 && current != from[matched]) {
+			int kept = fallback[matched - 1];
+			append(from, 0, matched - kept);
+			matched = kept;
+		}
+		// 2. Extend the match, or write the byte if it does not start one
+		if(current == from[matched]) {
+			matched++;
+			if(matched == from.length) {
+				append(to, 0, to.length);
+				matched = 0;
+			}
+		}else {
+			append(current);
+		}
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		int end = offset + length;
+		int index = offset;
+		while(index < end) {
+			if(matched == 0 && from.length > 0) {
+				// Bytes that cannot start the namespace are copied as a whole
+				int start = index;
+				while(index < end && bytes[index] != from[0])
+					index++;
+				append(bytes, start, index - start);
+			}
+			if(index < end)
+				write(bytes[index++]);
+		}
+	}
+
+	/**
+	 * This method writes the bytes collected so far, except those of a partial match that may still become the namespace
+	 * @throws IOException If the underlying stream could not be written
+	 */
+	@Override
+	public void flush() throws IOException {
+		drain();
+		out.flush();
+	}
+
+	/**
+	 * This method writes every byte held back, including a partial match, without closing the underlying stream
+	 * @throws IOException If the underlying stream could not be written
+	 */
+	public void finish() throws IOException {
+		append(from, 0, matched);
+		matched = 0;
+		flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		out.close();
+	}
+
+
+	// -- Ancillary methods
+
+	private void append(byte value) throws IOException {
+		if(buffered == buffer.length)
+			drain();
+		buffer[buffered++] = value;
+	}
+
+	private void append(byte[] bytes, int offset, int length) throws IOException {
+		if(buffered + length > buffer.length)
+			drain();
+		if(length > buffer.length) {
+			out.write(bytes, offset, length);
+		}else {
+			System.arraycopy(bytes, offset, buffer, buffered, length);
+			buffered += length;
+		}
+	}
+
+	private void drain() throws IOException {
+		if(buffered > 0) {
+			out.write(buffer, 0, buffered);
+			buffered = 0;
+		}
+	}
+
+	/**
+	 * For every prefix of the pattern, the length of its longest proper prefix that is also a suffix
+	 */
+	private static int[] fallbackTable(byte[] pattern) {
+		int[] table = new int[pattern.length];
+		int length = 0;
+		for(int index = 1; index < pattern.length; index++) {
+			while(length > 0 && pattern[index] != pattern[length])
+				length = table[length - 1];
+			if(pattern[index] == pattern[length])
+				length++;
+			table[index] = length;
+		}
+		return table;
+	}
+}
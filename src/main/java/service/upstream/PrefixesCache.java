@@ -0,0 +1,212 @@
+package service.upstream;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * This component keeps in memory the prefixes published by Agora and refreshes them in the background
+ * <p>
+ * Refreshes are conditional requests (ETag and Last-Modified) so that an unchanged prefix map is not transferred again. Requests are always answered with the copy in memory,
+ * a copy older than {@code agora.prefixes.refresh-seconds} is still served while it is revalidated (stale-while-revalidate), as well as when Agora is slow or down. Only the very first request waits for Agora;
+ * if it fails, requests are answered with empty prefixes for {@code agora.prefixes.retry-seconds} before Agora is asked again, so an outage of Agora does not hold every request.
+ * @author cimmino
+ *
+ */
+@Component
+public class PrefixesCache {
+
+	// -- Attributes
+
+	private static Logger log = Logger.getLogger(PrefixesCache.class.getName());
+	private final UpstreamClient upstreamClient;
+	private final long refreshMillis;
+	private final long retryMillis;
+	private final ScheduledExecutorService scheduler;
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final AtomicReference<Prefixes> current = new AtomicReference<>();
+	private final AtomicReference<CompletableFuture<Prefixes>> revalidation = new AtomicReference<>();
+	private final AtomicReference<Prefixes> unavailable = new AtomicReference<>();
+	private volatile String endpoint;
+
+
+	// -- Constructor
+
+	public PrefixesCache(UpstreamClient upstreamClient, @Value("${agora.prefixes.refresh-seconds:300}") long refreshSeconds, @Value("${agora.prefixes.retry-seconds:5}") long retrySeconds) {
+		this.upstreamClient = upstreamClient;
+		this.refreshMillis = TimeUnit.SECONDS.toMillis(Math.max(1, refreshSeconds));
+		this.retryMillis = TimeUnit.SECONDS.toMillis(Math.max(1, retrySeconds));
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("prefixes-");
+		threadFactory.setDaemon(true);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method returns the prefixes of Agora, the first call waits until they are retrieved and starts the background refresh
+	 * @param prefixesEndpoint The prefixes endpoint of Agora
+	 * @return The prefixes in memory, or empty {@link Prefixes} if they were never retrieved
+	 */
+	public Prefixes get(String prefixesEndpoint) {
+		Prefixes prefixes = current.get();
+		if(prefixes==null || !prefixes.endpoint.equals(prefixesEndpoint)) {
+			// 1. Nothing in memory yet for this endpoint, wait for the first retrieval unless it failed a moment ago
+			endpoint = prefixesEndpoint;
+			startRefresh();
+			Prefixes failed = unavailable.get();
+			if(failed!=null && failed.endpoint.equals(prefixesEndpoint) && failed.age() < retryMillis)
+				return failed;
+			prefixes = revalidate(prefixesEndpoint).join();
+		}else if(prefixes.age() > refreshMillis) {
+			// 2. Serve the stale copy while it is revalidated
+			revalidate(prefixesEndpoint);
+		}
+		return prefixes;
+	}
+
+	/**
+	 * This method stops the background refresh when the Spring context is closed
+	 */
+	@PreDestroy
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+
+	// -- Ancillary methods
+
+	private void startRefresh() {
+		if(scheduled.compareAndSet(false, true))
+			scheduler.scheduleWithFixedDelay(() -> revalidate(endpoint), refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Only one revalidation is in flight at a time, concurrent callers share it
+	 */
+	private CompletableFuture<Prefixes> revalidate(String prefixesEndpoint) {
+		while(true) {
+			CompletableFuture<Prefixes> inFlight = revalidation.get();
+			if(inFlight!=null)
+				return inFlight;
+			CompletableFuture<Prefixes> started = new CompletableFuture<>();
+			if(revalidation.compareAndSet(null, started)) {
+				Prefixes cached = current.get();
+				Prefixes known = cached!=null && cached.endpoint.equals(prefixesEndpoint)? cached : null;
+				upstreamClient.executeAsync(UpstreamCall.PREFIXES, conditionalRequest(prefixesEndpoint, known), response -> readPrefixes(prefixesEndpoint, known, response))
+					.whenComplete((prefixes, error) -> {
+						Prefixes answer = prefixes;
+						if(error!=null) {
+							log.warning("Prefixes could not be refreshed, serving the copy in memory: "+error.toString());
+							answer = known!=null? known : new Prefixes(prefixesEndpoint, new JSONObject(), null, null);
+							// Without a copy, requests get empty prefixes until the next retry
+							if(known==null)
+								unavailable.set(answer);
+						}else {
+							current.set(prefixes);
+							unavailable.set(null);
+						}
+						revalidation.set(null);
+						started.complete(answer);
+					});
+				return started;
+			}
+		}
+	}
+
+	private HttpGet conditionalRequest(String prefixesEndpoint, Prefixes known) {
+		HttpGet request = new HttpGet(prefixesEndpoint);
+		request.setHeader(HttpHeaders.ACCEPT, "application/json");
+		if(known!=null && known.etag!=null)
+			request.setHeader(HttpHeaders.IF_NONE_MATCH, known.etag);
+		if(known!=null && known.lastModified!=null)
+			request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, known.lastModified);
+		return request;
+	}
+
+	private Prefixes readPrefixes(String prefixesEndpoint, Prefixes known, HttpResponse response) throws IOException {
+		Prefixes prefixes;
+		int status = response.getStatusLine().getStatusCode();
+		if(status == HttpStatus.SC_NOT_MODIFIED && known!=null) {
+			// 1. Prefixes did not change, only their age is reset
+			prefixes = known.revalidated();
+			log.fine("Prefixes not modified");
+		}else if(status == HttpStatus.SC_OK) {
+			// 2. New prefixes
+			JSONObject jsonPrefixes = new JSONObject(UpstreamClient.bodyAsString(response));
+			prefixes = new Prefixes(prefixesEndpoint, jsonPrefixes, headerValue(response, HttpHeaders.ETAG), headerValue(response, HttpHeaders.LAST_MODIFIED));
+			log.info("Prefixes retrieved from Agora");
+			String prefixesTrace = prefixes.json;
+			log.log(Level.FINE, () -> "\t>"+prefixesTrace.replace("\",\"", "\",\n\t\""));
+		}else {
+			throw new IOException("Agora answered prefixes with status "+status);
+		}
+		return prefixes;
+	}
+
+	private String headerValue(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header!=null? header.getValue() : null;
+	}
+
+	/**
+	 * The prefixes of Agora as they are answered, together with the validators of the response they came from
+	 */
+	public static class Prefixes {
+
+		private final String endpoint;
+		private final String json;
+		private final boolean empty;
+		private final String etag;
+		private final String lastModified;
+		private final long retrievedAt;
+
+		private Prefixes(String endpoint, JSONObject prefixes, String etag, String lastModified) {
+			this(endpoint, prefixes.toString(), !prefixes.keys().hasNext(), etag, lastModified);
+		}
+
+		private Prefixes(String endpoint, String json, boolean empty, String etag, String lastModified) {
+			this.endpoint = endpoint;
+			this.json = json;
+			this.empty = empty;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.retrievedAt = System.currentTimeMillis();
+		}
+
+		private Prefixes revalidated() {
+			return new Prefixes(endpoint, json, empty, etag, lastModified);
+		}
+
+		private long age() {
+			return System.currentTimeMillis() - retrievedAt;
+		}
+
+		public String getJson() {
+			return json;
+		}
+
+		public boolean isEmpty() {
+			return empty;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package service.upstream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import service.metrics.GatewayMetrics;
+
+/**
+ * This component spreads the queries to the semantic repository across its replicas
+ * <p>
+ * Each query goes to the best of two replicas picked at random, the best one being that with the lowest latency (an exponentially weighted moving average) times the queries it has in flight plus one.
+ * A replica that fails {@code discovery.repository.ejection-failures} queries in a row, or whose latency grows beyond {@code discovery.repository.slow-factor} times that of the fastest replica, is ejected for {@code discovery.repository.ejection-seconds}.
+ * Once back, its latency is unknown and it is probed as an average replica. At least one replica is always chosen, even if all of them are ejected.
+ * @author cimmino
+ *
+ */
+@Component
+public class RepositoryBalancer {
+
+	// -- Attributes
+
+	private static Logger log = Logger.getLogger(RepositoryBalancer.class.getName());
+	private static final double EWMA_WEIGHT = 0.3;
+	private final GatewayMetrics metrics;
+	private final int ejectionFailures;
+	private final long ejectionNanos;
+	private final double slowFactor;
+	private final ConcurrentMap<String, List<Replica>> pools = new ConcurrentHashMap<>();
+
+
+	// -- Constructor
+
+	public RepositoryBalancer(GatewayMetrics metrics, @Value("${discovery.repository.ejection-failures:3}") int ejectionFailures, @Value("${discovery.repository.ejection-seconds:30}") long ejectionSeconds, @Value("${discovery.repository.slow-factor:4}") double slowFactor) {
+		this.metrics = metrics;
+		this.ejectionFailures = Math.max(1, ejectionFailures);
+		this.ejectionNanos = TimeUnit.SECONDS.toNanos(Math.max(1, ejectionSeconds));
+		this.slowFactor = slowFactor;
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method registers the replicas of a semantic repository, a repository already registered keeps its replicas
+	 * @param endpoint The semantic repository endpoint, as used by the discovery
+	 * @param replicas The endpoints of its replicas, if empty the repository endpoint is its only replica
+	 */
+	public void register(String endpoint, List<String> replicas) {
+		if(!pools.containsKey(endpoint))
+			pools.computeIfAbsent(endpoint, key -> createPool(key, replicas));
+	}
+
+	/**
+	 * This method chooses the replica that answers the next query to a semantic repository
+	 * @param endpoint The semantic repository endpoint, if it was not registered it is its only replica
+	 * @return A {@link Replica}
+	 */
+	public Replica choose(String endpoint) {
+		return choose(endpoint, null);
+	}
+
+	/**
+	 * This method chooses the replica that answers the next query to a semantic repository, avoiding a given replica if there are others available
+	 * @param endpoint The semantic repository endpoint, if it was not registered it is its only replica
+	 * @param avoided A replica that should not be chosen, e.g., the one that is already answering the same query; it may be null
+	 * @return A {@link Replica}
+	 */
+	public Replica choose(String endpoint, Replica avoided) {
+		List<Replica> pool = pools.computeIfAbsent(endpoint, key -> createPool(key, Collections.emptyList()));
+		Replica chosen = pool.get(0);
+		if(pool.size() > 1) {
+			long now = System.nanoTime();
+			List<Replica> candidates = new ArrayList<>(pool.size());
+			double knownLatency = 0;
+			int known = 0;
+			for(Replica replica:pool) {
+				if(replica != avoided && replica.isAvailable(now))
+					candidates.add(replica);
+				if(replica.latency > 0) {
+					knownLatency += replica.latency;
+					known++;
+				}
+			}
+			if(candidates.isEmpty()) {
+				// Every replica is ejected (or avoided), the one that returns first is the least bad
+				candidates = new ArrayList<>(pool);
+				candidates.remove(avoided);
+				candidates.sort((first, second) -> Long.compare(first.ejectedUntil, second.ejectedUntil));
+				chosen = candidates.isEmpty()? avoided : candidates.get(0);
+			}else {
+				// Replicas without latency yet are scored as an average one
+				double averageLatency = known > 0? knownLatency / known : 1;
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				chosen = candidates.get(random.nextInt(candidates.size()));
+				if(candidates.size() > 1) {
+					int first = random.nextInt(candidates.size());
+					int second = random.nextInt(candidates.size() - 1);
+					Replica one = candidates.get(first);
+					Replica other = candidates.get(second < first? second : second + 1);
+					chosen = one.score(averageLatency) <= other.score(averageLatency)? one : other;
+				}
+			}
+		}
+		return chosen;
+	}
+
+
+	// -- Ancillary methods
+
+	private List<Replica> createPool(String endpoint, List<String> replicas) {
+		List<String> endpoints = replicas.isEmpty()? Collections.singletonList(endpoint) : replicas;
+		List<Replica> pool = new ArrayList<>();
+		for(String replica:endpoints) {
+			Replica created = new Replica(replica, pool);
+			pool.add(created);
+			metrics.monitorReplica(replica, created, state -> state.outstanding.get(), state -> state.latency / 1e9, state -> state.isAvailable(System.nanoTime())? 0 : 1);
+		}
+		log.info("Semantic repository replicas: "+endpoints);
+		return Collections.unmodifiableList(pool);
+	}
+
+	/**
+	 * This class is a replica of a semantic repository, it tracks the queries it is answering, its latency and its failures
+	 * <p>
+	 * Every query sent to a replica must be ended with either {@link #succeeded(long)}, {@link #failed()} or {@link #cancelled()}
+	 */
+	public class Replica {
+
+		private final String endpoint;
+		private final List<Replica> pool;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private volatile double latency = 0;
+		private volatile int failures = 0;
+		private volatile long ejectedUntil = 0;
+		private volatile boolean ejected = false;
+
+		private Replica(String endpoint, List<Replica> pool) {
+			this.endpoint = endpoint;
+			this.pool = pool;
+		}
+
+		/**
+		 * @return The endpoint of this replica
+		 */
+		public String getEndpoint() {
+			return endpoint;
+		}
+
+		/**
+		 * This method records that a query was sent to this replica
+		 * @return The start of the query, to be provided when it succeeds
+		 */
+		public long started() {
+			outstanding.incrementAndGet();
+			return System.nanoTime();
+		}
+
+		/**
+		 * This method records a query answered by this replica, updating its latency
+		 * @param start The value returned by {@link #started()}
+		 */
+		public void succeeded(long start) {
+			long elapsed = System.nanoTime() - start;
+			outstanding.decrementAndGet();
+			synchronized (this) {
+				latency = latency > 0? latency + EWMA_WEIGHT * (elapsed - latency) : elapsed;
+				failures = 0;
+			}
+			double fastest = Double.MAX_VALUE;
+			for(Replica replica:pool) {
+				if(replica != this && replica.latency > 0 && replica.isAvailable(System.nanoTime()))
+					fastest = Math.min(fastest, replica.latency);
+			}
+			if(fastest < Double.MAX_VALUE && latency > slowFactor * fastest)
+				eject("its latency is "+(long) (latency / 1e6)+" ms");
+		}
+
+		/**
+		 * This method records a query that this replica could not answer
+		 */
+		public void failed() {
+			outstanding.decrementAndGet();
+			int failed;
+			synchronized (this) {
+				failed = ++failures;
+			}
+			if(failed >= ejectionFailures)
+				eject(failed+" queries failed in a row");
+		}
+
+		/**
+		 * This method records a query aborted before this replica answered it, e.g., because the deadline expired or a hedged query won
+		 */
+		public void cancelled() {
+			outstanding.decrementAndGet();
+		}
+
+		private boolean isAvailable(long now) {
+			if(ejected && now - ejectedUntil >= 0) {
+				synchronized (this) {
+					if(ejected) {
+						// Back from ejection, it is probed as an average replica
+						ejected = false;
+						latency = 0;
+						failures = 0;
+					}
+				}
+			}
+			return !ejected;
+		}
+
+		private void eject(String reason) {
+			if(pool.size() > 1) {
+				synchronized (this) {
+					if(ejected)
+						return;
+					ejected = true;
+					ejectedUntil = System.nanoTime() + ejectionNanos;
+				}
+				metrics.recordEjection();
+				log.warning("Semantic repository replica "+endpoint+" ejected, "+reason);
+			}
+		}
+
+		private double score(double averageLatency) {
+			return (latency > 0? latency : averageLatency) * (outstanding.get() + 1);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package service.upstream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import service.discovery.RelevanceEngine;
+
+/**
+ * This component keeps in memory the TEDs answered by Agora, indexed by the normalized query and the Agora flags (strict and min)
+ * <p>
+ * TEDs are kept as the bytes answered to clients, their IRIs are rewritten from the Agora namespace to the local data domain once, while they are read from Agora.
+ * <p>
+ * Identical requests arriving while a TED is being retrieved wait for the same call to Agora instead of sending their own. Entries expire after {@code cache.teds.ttl-seconds}
+ * and the least used ones are evicted once the cached TEDs take more than {@code cache.teds.max-bytes}. Failed calls are not cached, the waiting requests get their error and the entry is removed.
+ * @author cimmino
+ *
+ */
+@Component
+public class TedCache {
+
+	// -- Attributes
+
+	private static Logger log = Logger.getLogger(TedCache.class.getName());
+	private final UpstreamClient upstreamClient;
+	private final AsyncLoadingCache<TedKey, Ted> teds;
+	private final LongAdder failures = new LongAdder();
+
+
+	// -- Constructor
+
+	public TedCache(UpstreamClient upstreamClient, @Value("${cache.teds.ttl-seconds:30}") long ttlSeconds, @Value("${cache.teds.max-bytes:67108864}") long maxBytes) {
+		this.upstreamClient = upstreamClient;
+		this.teds = Caffeine.newBuilder()
+				.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+				.maximumWeight(maxBytes)
+				.weigher((TedKey key, Ted ted) -> (int) Math.min(Integer.MAX_VALUE, 2L * key.query.length() + (ted.body != null? ted.body.length : 0)))
+				.recordStats()
+				// Loads always complete normally, a failure is kept in the Ted and handled by retrieve
+				.buildAsync((TedKey key, Executor executor) -> discover(key).handle(Ted::new));
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method returns the TED that Agora answers for a given query
+	 * @param tedEndpoint The discover endpoint of Agora
+	 * @param query A SPARQL query
+	 * @param strict A bespoke Agora parameter, it specifies whether TED should contain only strict data to answer the query
+	 * @param min A bespoke Agora parameter, it specifies whether the output should (min=false) or should not (min=true) contain RDF associated to the Things found
+	 * @param agoraEndpoint The namespace of Agora
+	 * @param dataDomain The local data domain that replaces the namespace of Agora
+	 * @return A {@link CompletableFuture} with the JSON-LD document (UTF-8) containing the TED for the provided query, shared by identical requests and therefore not to be modified
+	 */
+	public CompletableFuture<byte[]> retrieve(String tedEndpoint, String query, boolean strict, boolean min, String agoraEndpoint, String dataDomain) {
+		TedKey key = new TedKey(tedEndpoint, query, strict, min, agoraEndpoint, dataDomain);
+		CompletableFuture<Ted> ted = teds.get(key);
+		return ted.thenCompose(loaded -> {
+			if(loaded.failure == null)
+				return CompletableFuture.completedFuture(loaded.body);
+			// Only the first request that sees the failure removes it, unless a new call replaced it already
+			if(teds.synchronous().asMap().remove(key, loaded))
+				failures.increment();
+			CompletableFuture<byte[]> failed = new CompletableFuture<>();
+			failed.completeExceptionally(loaded.failure);
+			return failed;
+		});
+	}
+
+	/**
+	 * This method removes from the cache all the TEDs
+	 */
+	public void invalidateAll() {
+		teds.synchronous().invalidateAll();
+		log.info("Cached TEDs invalidated");
+	}
+
+	/**
+	 * This method returns the usage statistics of the cache
+	 * @return A JSON document with the hits, misses and evictions of the cache
+	 */
+	public JSONObject statistics() {
+		CacheStats stats = teds.synchronous().stats();
+		JSONObject statistics = new JSONObject();
+		statistics.put("size", teds.synchronous().estimatedSize());
+		statistics.put("hits", stats.hitCount());
+		statistics.put("misses", stats.missCount());
+		statistics.put("hitRate", stats.hitRate());
+		statistics.put("failures", failures.sum());
+		statistics.put("evictions", stats.evictionCount());
+		statistics.put("evictedBytes", stats.evictionWeight());
+		return statistics;
+	}
+
+
+	// -- Ancillary methods
+
+	private CompletableFuture<byte[]> discover(TedKey key) {
+		String endpoint = key.tedEndpoint;
+		if (key.strict && key.min) {
+			endpoint = key.tedEndpoint+"?strict&min";
+		} else if (key.strict) {
+			endpoint = key.tedEndpoint+"?strict";
+		} else if (key.min) {
+			endpoint = key.tedEndpoint+"?min";
+		}
+		// 1. Set request headers and body
+		HttpPost request = new HttpPost(endpoint);
+		request.setHeader(HttpHeaders.ACCEPT, "application/ld+json");
+		request.setEntity(new StringEntity(key.rawQuery, StandardCharsets.UTF_8));
+		// 2. Send POST request to Agora
+		log.log(Level.FINE, () -> "TED not cached, discovering it in Agora");
+		return upstreamClient.executeAsync(UpstreamCall.DISCOVER, request, response -> readTed(key, response));
+	}
+
+	private byte[] readTed(TedKey key, HttpResponse response) throws IOException {
+		int status = response.getStatusLine().getStatusCode();
+		if(status < 200 || status >= 300)
+			throw new IOException("Agora answered discovery with status "+status);
+		HttpEntity entity = response.getEntity();
+		ByteArrayOutputStream ted = new ByteArrayOutputStream(entity!=null && entity.getContentLength() > 0? (int) Math.min(Integer.MAX_VALUE, entity.getContentLength()) : 8192);
+		if(entity!=null) {
+			// Change domain of IRIs from Agora's to Local while the TED is read
+			NamespaceRewritingOutputStream rewriting = new NamespaceRewritingOutputStream(ted, key.agoraEndpoint, key.dataDomain);
+			entity.writeTo(rewriting);
+			rewriting.finish();
+		}
+		return ted.toByteArray();
+	}
+
+	/**
+	 * The outcome of a call to Agora, either the TED or the reason it could not be retrieved
+	 */
+	private static class Ted {
+
+		private final byte[] body;
+		private final Throwable failure;
+
+		Ted(byte[] body, Throwable failure) {
+			this.body = body;
+			this.failure = failure instanceof CompletionException && failure.getCause() != null? failure.getCause() : failure;
+		}
+	}
+
+	/**
+	 * A TED request, two requests are equal when their normalized queries and flags are; the original query is the one sent to Agora
+	 */
+	private static class TedKey {
+
+		private final String tedEndpoint;
+		private final String rawQuery;
+		private final String query;
+		private final boolean strict;
+		private final boolean min;
+		private final String agoraEndpoint;
+		private final String dataDomain;
+
+		TedKey(String tedEndpoint, String rawQuery, boolean strict, boolean min, String agoraEndpoint, String dataDomain) {
+			this.tedEndpoint = tedEndpoint;
+			this.rawQuery = rawQuery;
+			this.query = RelevanceEngine.normalize(rawQuery);
+			this.strict = strict;
+			this.min = min;
+			this.agoraEndpoint = agoraEndpoint;
+			this.dataDomain = dataDomain;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			boolean equal = other == this;
+			if(!equal && other instanceof TedKey) {
+				TedKey key = (TedKey) other;
+				equal = strict == key.strict && min == key.min && query.equals(key.query) && tedEndpoint.equals(key.tedEndpoint) && dataDomain.equals(key.dataDomain);
+			}
+			return equal;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(tedEndpoint, query, strict, min, dataDomain);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package service.upstream;
+
+/**
+ * This enumeration identifies the kinds of calls that the Gateway API Services make to its upstream services
+ * @author cimmino
+ *
+ */
+public enum UpstreamCall {
+
+	PREFIXES("agora"),
+	DISCOVER("agora"),
+	PLAN("agora"),
+	RESOURCE("agora"),
+	REPOSITORY("repository");
+	
+	private final String upstream;
+	
+	private UpstreamCall(String upstream) {
+		this.upstream = upstream;
+	}
+	
+	/**
+	 * @return The name of the upstream service that answers this call, i.e., 'agora' or 'repository'
+	 */
+	public String getUpstream() {
+		return upstream;
+	}
+}
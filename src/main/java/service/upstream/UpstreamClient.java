@@ -0,0 +1,275 @@
+package service.upstream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Timer;
+import service.metrics.GatewayMetrics;
+import service.metrics.RequestTrace;
+
+/**
+ * This component performs all the HTTP calls to Agora and to the semantic repository
+ * <p>
+ * Connections are pooled and kept alive among requests, with a cap per host ({@code upstream.max-connections-per-host}) and in total ({@code upstream.max-connections}).
+ * Responses are requested compressed (gzip/deflate) and transparently decompressed. 
+ * Asynchronous calls run in a bounded pool of threads owned by this component, so servlet threads are released while Agora answers.
+ * Each kind of call ({@link UpstreamCall}) has its own bulkhead and circuit breaker: at most {@code upstream.bulkhead.agora} (or {@code upstream.bulkhead.repository}) calls of a kind are in flight, and after {@code upstream.breaker.failures} failures in a row its calls are rejected for {@code upstream.breaker.open-seconds}, until a probe call succeeds.
+ * Rejected calls fail right away with an {@link UpstreamUnavailableException}, so a slow or failing upstream degrades the endpoints that need it instead of the whole gateway.
+ * @author cimmino
+ *
+ */
+@Component
+public class UpstreamClient {
+
+	// -- Attributes
+	
+	private static Logger log = Logger.getLogger(UpstreamClient.class.getName());
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient httpClient;
+	private final ThreadPoolExecutor executor;
+	private final GatewayMetrics metrics;
+	private final Map<UpstreamCall, UpstreamGuard> guards = new EnumMap<>(UpstreamCall.class);
+	private final Map<UpstreamCall, Timer> successTimers = new EnumMap<>(UpstreamCall.class);
+	private final Map<UpstreamCall, Timer> errorTimers = new EnumMap<>(UpstreamCall.class);
+	
+	
+	// -- Constructor
+	
+	public UpstreamClient(GatewayMetrics metrics, @Value("${upstream.max-connections:200}") int maxConnections, @Value("${upstream.max-connections-per-host:64}") int maxConnectionsPerHost, 
+			@Value("${upstream.keep-alive-seconds:60}") long keepAliveSeconds, @Value("${upstream.connect-timeout-ms:5000}") int connectTimeout, 
+			@Value("${upstream.socket-timeout-ms:60000}") int socketTimeout, @Value("${upstream.async.threads:64}") int asyncThreads, @Value("${upstream.async.queue-capacity:1024}") int asyncQueueCapacity, 
+			@Value("${upstream.bulkhead.agora:32}") int agoraBulkhead, @Value("${upstream.bulkhead.repository:64}") int repositoryBulkhead, 
+			@Value("${upstream.breaker.failures:5}") int breakerFailures, @Value("${upstream.breaker.open-seconds:10}") long breakerOpenSeconds) {
+		// 1. Pool of connections, stale ones are checked before being reused
+		this.connectionManager = new PoolingHttpClientConnectionManager(keepAliveSeconds, TimeUnit.SECONDS);
+		this.connectionManager.setMaxTotal(maxConnections);
+		this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+		this.connectionManager.setValidateAfterInactivity(2000);
+		// 2. Keep connections alive as long as the upstream allows, or keepAliveSeconds if it does not say
+		ConnectionKeepAliveStrategy keepAlive = (response, context) -> {
+			long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			return duration > 0? duration : TimeUnit.SECONDS.toMillis(keepAliveSeconds);
+		};
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setConnectionRequestTimeout(connectTimeout)
+				.setSocketTimeout(socketTimeout)
+				.setContentCompressionEnabled(true)
+				.build();
+		this.httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setKeepAliveStrategy(keepAlive)
+				.setDefaultRequestConfig(requestConfig)
+				.evictExpiredConnections()
+				.evictIdleConnections(keepAliveSeconds, TimeUnit.SECONDS)
+				.build();
+		// 3. Threads for asynchronous calls
+		this.executor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(asyncQueueCapacity), new CustomizableThreadFactory("upstream-"));
+		this.executor.allowCoreThreadTimeOut(true);
+		this.metrics = metrics;
+		metrics.monitor(executor, "upstream");
+		// 4. Bulkhead, circuit breaker and timers of each kind of call
+		for(UpstreamCall call:UpstreamCall.values()) {
+			guards.put(call, new UpstreamGuard(call, metrics, call == UpstreamCall.REPOSITORY? repositoryBulkhead : agoraBulkhead, breakerFailures, breakerOpenSeconds));
+			successTimers.put(call, metrics.upstreamTimer(call.getUpstream(), call.name().toLowerCase(), GatewayMetrics.OUTCOME_SUCCESS));
+			errorTimers.put(call, metrics.upstreamTimer(call.getUpstream(), call.name().toLowerCase(), GatewayMetrics.OUTCOME_ERROR));
+		}
+		log.log(Level.INFO, () -> "Upstream client: "+maxConnections+" connections, "+maxConnectionsPerHost+" per host");
+	}
+	
+	
+	// -- Methods
+	
+	/**
+	 * This method performs a call and processes its response in the calling thread
+	 * @param call The kind of call performed
+	 * @param request The HTTP request
+	 * @param handler The handler that reads the response, the response is released once it returns
+	 * @return The value returned by the handler
+	 * @throws UpstreamUnavailableException If the call was rejected by its circuit breaker or its bulkhead
+	 * @throws IOException If the upstream could not be reached or the handler failed reading the response
+	 */
+	public <T> T execute(UpstreamCall call, HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException {
+		UpstreamGuard guard = guards.get(call);
+		guard.acquire();
+		return perform(call, guard, request, handler);
+	}
+	
+	/**
+	 * This method performs a call without blocking the calling thread
+	 * @param call The kind of call performed
+	 * @param request The HTTP request
+	 * @param handler The handler that reads the response, the response is released once it returns
+	 * @return A {@link CompletableFuture} completed with the value returned by the handler, or exceptionally if the call failed or was rejected ({@link UpstreamUnavailableException})
+	 */
+	public <T> CompletableFuture<T> executeAsync(UpstreamCall call, HttpUriRequest request, ResponseHandler<? extends T> handler) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		UpstreamGuard guard = acquire(call, result);
+		if(guard != null)
+			submit(guard, result, () -> {
+				try {
+					result.complete(perform(call, guard, request, handler));
+				}catch(Exception e) {
+					result.completeExceptionally(e);
+				}
+			});
+		return result;
+	}
+	
+	/**
+	 * This method performs a call without blocking the calling thread and hands over the response without reading its body, so it can be streamed
+	 * @param call The kind of call performed
+	 * @param request The HTTP request
+	 * @return A {@link CompletableFuture} completed with the open response, which must be closed once its body is read, or exceptionally if the call failed or was rejected ({@link UpstreamUnavailableException})
+	 */
+	public CompletableFuture<CloseableHttpResponse> openAsync(UpstreamCall call, HttpUriRequest request) {
+		CompletableFuture<CloseableHttpResponse> result = new CompletableFuture<>();
+		UpstreamGuard guard = acquire(call, result);
+		if(guard != null)
+			submit(guard, result, () -> {
+				try {
+					log.log(Level.FINE, () -> call+" "+request.getMethod()+" "+request.getURI());
+					// Only the time until the response head arrives is recorded and guarded, its body is read by the caller
+					long start = GatewayMetrics.start();
+					CloseableHttpResponse response = httpClient.execute(request);
+					metrics.recordUpstream(successTimers.get(call), call.getUpstream(), GatewayMetrics.elapsed(start));
+					end(guard, request, response.getStatusLine().getStatusCode() < 500);
+					if(!result.complete(response))
+						response.close();
+				}catch(Exception e) {
+					metrics.recordUpstream(errorTimers.get(call), call.getUpstream(), 0);
+					end(guard, request, false);
+					result.completeExceptionally(e);
+				}
+			});
+		return result;
+	}
+	
+	/**
+	 * This method reads the body of a response as a UTF-8 String
+	 * @param response An HTTP response
+	 * @return The body of the response, or an empty String if it has no body
+	 * @throws IOException If the body could not be read
+	 */
+	public static String bodyAsString(HttpResponse response) throws IOException {
+		return response.getEntity()!=null? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : "";
+	}
+	
+	/**
+	 * This method closes the pooled connections when the Spring context is closed
+	 * @throws IOException If the connections could not be closed
+	 */
+	@PreDestroy
+	public void close() throws IOException {
+		executor.shutdown();
+		try {
+			if(!executor.awaitTermination(10, TimeUnit.SECONDS))
+				executor.shutdownNow();
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		httpClient.close();
+	}
+	
+	
+	// -- Ancillary methods
+	
+	/**
+	 * This method performs a call already let through by its guard, and ends it in the guard
+	 */
+	private <T> T perform(UpstreamCall call, UpstreamGuard guard, HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException {
+		log.log(Level.FINE, () -> call+" "+request.getMethod()+" "+request.getURI());
+		long start = GatewayMetrics.start();
+		Timer timer = errorTimers.get(call);
+		boolean answered = false;
+		try {
+			CloseableHttpResponse response = httpClient.execute(request);
+			try {
+				// Handlers failing on a healthy answer, e.g., on a 404, do not open the circuit
+				answered = response.getStatusLine().getStatusCode() < 500;
+				T value = handler.handleResponse(response);
+				EntityUtils.consume(response.getEntity());
+				timer = successTimers.get(call);
+				return value;
+			}catch(SocketException | InterruptedIOException e) {
+				// The upstream stopped answering while the body was read
+				answered = false;
+				throw e;
+			}finally {
+				response.close();
+			}
+		}finally {
+			metrics.recordUpstream(timer, call.getUpstream(), GatewayMetrics.elapsed(start));
+			end(guard, request, answered);
+		}
+	}
+	
+	/**
+	 * This method lets an asynchronous call through its guard, or completes its result exceptionally if it is rejected
+	 * @return The guard of the call, or null if it was rejected
+	 */
+	private UpstreamGuard acquire(UpstreamCall call, CompletableFuture<?> result) {
+		UpstreamGuard guard = guards.get(call);
+		try {
+			guard.acquire();
+			return guard;
+		}catch(UpstreamUnavailableException e) {
+			result.completeExceptionally(e);
+			return null;
+		}
+	}
+	
+	/**
+	 * This method hands an asynchronous call to the pool of threads, if the pool is full the call is rejected and ended in its guard
+	 */
+	private void submit(UpstreamGuard guard, CompletableFuture<?> result, Runnable call) {
+		try {
+			executor.execute(RequestTrace.propagate(call));
+		}catch(RejectedExecutionException e) {
+			guard.cancelled();
+			result.completeExceptionally(new UpstreamUnavailableException("Too many upstream calls queued", 1));
+		}
+	}
+	
+	/**
+	 * This method ends a call in its guard, calls aborted by the gateway are not blamed on the upstream
+	 */
+	private static void end(UpstreamGuard guard, HttpUriRequest request, boolean answered) {
+		if(request.isAborted()) {
+			guard.cancelled();
+		}else if(answered) {
+			guard.succeeded();
+		}else {
+			guard.failed();
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package service.upstream;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import io.micrometer.core.instrument.Counter;
+import service.metrics.GatewayMetrics;
+
+/**
+ * This class guards the calls of one kind to an upstream service with a bulkhead and a circuit breaker
+ * <p>
+ * The bulkhead caps the calls of this kind in flight, queued ones included; calls beyond the cap are rejected right away instead of piling up behind a slow upstream and starving the other kinds of calls.
+ * The circuit opens once a number of calls in a row fail (the upstream could not be reached, stopped answering or answered with a 5xx status), and then every call is rejected for a while.
+ * Afterwards the circuit is half-open: a single probe call is let through, if it succeeds the circuit closes, otherwise it opens again.
+ * Every call accepted by {@link #acquire()} must be ended with either {@link #succeeded()}, {@link #failed()} or {@link #cancelled()}; calls aborted by the gateway itself are cancelled, they say nothing about the upstream.
+ * @author cimmino
+ *
+ */
+class UpstreamGuard {
+
+	// -- Attributes
+
+	private static Logger log = Logger.getLogger(UpstreamGuard.class.getName());
+	private final UpstreamCall call;
+	private final Counter circuitRejections;
+	private final Counter bulkheadRejections;
+	private final int maxConcurrent;
+	private final Semaphore permits;
+	private final int failureThreshold;
+	private final long openNanos;
+	private State state = State.CLOSED;
+	private int failures = 0;
+	private long openedAt = 0;
+	private boolean probing = false;
+
+
+	// -- Constructor
+
+	UpstreamGuard(UpstreamCall call, GatewayMetrics metrics, int maxConcurrent, int failureThreshold, long openSeconds) {
+		this.call = call;
+		this.circuitRejections = metrics.rejectionCounter(call.name().toLowerCase(), "circuit");
+		this.bulkheadRejections = metrics.rejectionCounter(call.name().toLowerCase(), "bulkhead");
+		this.maxConcurrent = Math.max(1, maxConcurrent);
+		this.permits = new Semaphore(this.maxConcurrent);
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openNanos = TimeUnit.SECONDS.toNanos(Math.max(1, openSeconds));
+		metrics.monitorUpstream(call.name().toLowerCase(), this, guard -> guard.maxConcurrent - guard.permits.availablePermits(), guard -> guard.isOpen()? 1 : 0);
+	}
+
+
+	// -- Methods
+
+	/**
+	 * This method lets a call through, unless its circuit is open (or half-open and already probing) or its bulkhead is full
+	 * @throws UpstreamUnavailableException If the call is rejected
+	 */
+	void acquire() throws UpstreamUnavailableException {
+		boolean probe = false;
+		synchronized (this) {
+			if(state == State.OPEN) {
+				long remaining = openNanos - (System.nanoTime() - openedAt);
+				if(remaining > 0)
+					throw reject(circuitRejections, call+" circuit is open", TimeUnit.NANOSECONDS.toSeconds(remaining) + 1);
+				state = State.HALF_OPEN;
+				probing = false;
+			}
+			if(state == State.HALF_OPEN) {
+				if(probing)
+					throw reject(circuitRejections, call+" circuit is half-open, a probe call is in flight", 1);
+				probing = probe = true;
+			}
+		}
+		if(!permits.tryAcquire()) {
+			if(probe)
+				endProbe();
+			throw reject(bulkheadRejections, call+" bulkhead is full, "+maxConcurrent+" calls in flight", 1);
+		}
+	}
+
+	/**
+	 * This method ends a call answered by the upstream
+	 */
+	void succeeded() {
+		permits.release();
+		synchronized (this) {
+			failures = 0;
+			if(state == State.HALF_OPEN) {
+				state = State.CLOSED;
+				probing = false;
+				log.info(call+" circuit closed");
+			}
+		}
+	}
+
+	/**
+	 * This method ends a call that the upstream could not answer
+	 */
+	void failed() {
+		permits.release();
+		synchronized (this) {
+			failures++;
+			if(state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+				log.warning(call+" circuit opened, "+failures+" calls failed in a row");
+				state = State.OPEN;
+				openedAt = System.nanoTime();
+				probing = false;
+			}
+		}
+	}
+
+	/**
+	 * This method ends a call aborted by the gateway, or whose outcome says nothing about the upstream
+	 */
+	void cancelled() {
+		permits.release();
+		endProbe();
+	}
+
+
+	// -- Ancillary methods
+
+	private synchronized void endProbe() {
+		if(state == State.HALF_OPEN)
+			probing = false;
+	}
+
+	private synchronized boolean isOpen() {
+		return state == State.OPEN;
+	}
+
+	private UpstreamUnavailableException reject(Counter rejections, String message, long retryAfterSeconds) {
+		rejections.increment();
+		return new UpstreamUnavailableException(message, retryAfterSeconds);
+	}
+
+	private enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+}
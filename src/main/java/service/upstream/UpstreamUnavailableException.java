@@ -0,0 +1,26 @@
+package service.upstream;
+
+import java.io.IOException;
+
+/**
+ * This exception is thrown when a call to an upstream service is rejected without being sent, because its circuit is open or its bulkhead is full
+ * @author cimmino
+ *
+ */
+public class UpstreamUnavailableException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+	private final long retryAfterSeconds;
+
+	public UpstreamUnavailableException(String message, long retryAfterSeconds) {
+		super(message);
+		this.retryAfterSeconds = Math.max(1, retryAfterSeconds);
+	}
+
+	/**
+	 * @return The seconds after which the call is expected to be accepted again, at least one
+	 */
+	public long getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
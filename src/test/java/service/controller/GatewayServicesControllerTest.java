@@ -0,0 +1,28 @@
+package service.controller;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+public class GatewayServicesControllerTest {
+
+	private MockMvc mvc;
+
+	@Before
+	public void setUp() {
+		// Requests not acceptable are rejected before the controller uses any of its components
+		mvc = MockMvcBuilders.standaloneSetup(new GatewayServicesController(null, null, null, null, null, null, null, null, null, null, null, null, 4, 30000)).build();
+	}
+
+	@Test
+	public void unsupportedFormatsAreNotAcceptable() throws Exception {
+		mvc.perform(post("/advanced-discovery").param("neighbors", "t1").header("Accept", "text/html").content("SELECT * WHERE { ?s ?p ?o }"))
+			.andExpect(status().isNotAcceptable());
+		mvc.perform(post("/resource").header("Accept", "text/turtle").content("{\"resource\": \"http://vicinity.eu/data/things/t1\"}"))
+			.andExpect(status().isNotAcceptable());
+	}
+}
@@ -0,0 +1,97 @@
+package service.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.junit.Test;
+
+public class CompiledQueryTest {
+
+	private static final String CORE = "http://iot.linkeddata.es/def/core#";
+	private static final String WOT = "http://iot.linkeddata.es/def/wot#";
+	private static final String PREFIXES = "PREFIX core: <"+CORE+"> PREFIX wot: <"+WOT+"> ";
+	private static final Node RDF_TYPE = NodeFactory.createURI("http://www.w3.org/1999/02/22-rdf-syntax-ns#type");
+
+	@Test
+	public void basicGraphPatternsRequireTheirPredicatesAndTypes() {
+		CompiledQuery compiled = query("SELECT ?thing WHERE { ?thing a core:Thing ; wot:thingName ?name . ?thing ?p ?o . }");
+
+		assertEquals(new HashSet<>(Arrays.asList(RDF_TYPE, uri(WOT+"thingName"))), compiled.getRequiredPredicates());
+		assertEquals(Collections.singleton(uri(CORE+"Thing")), compiled.getRequiredTypes());
+	}
+
+	@Test
+	public void filtersModifiersAndJoinsKeepTheirRequirements() {
+		CompiledQuery compiled = query("SELECT DISTINCT ?name WHERE { ?thing wot:thingName ?name . { ?thing wot:hasProperty ?property } FILTER(?name != \"t\") BIND(1 AS ?one) } LIMIT 10");
+
+		assertEquals(new HashSet<>(Arrays.asList(uri(WOT+"thingName"), uri(WOT+"hasProperty"))), compiled.getRequiredPredicates());
+	}
+
+	@Test
+	public void optionalAndMinusOnlyRequireTheirLeftSide() {
+		CompiledQuery compiled = query("SELECT ?thing WHERE { ?thing wot:thingName ?name . OPTIONAL { ?thing wot:hasProperty ?property } MINUS { ?thing a core:Device } }");
+
+		assertEquals(Collections.singleton(uri(WOT+"thingName")), compiled.getRequiredPredicates());
+		assertTrue(compiled.getRequiredTypes().isEmpty());
+	}
+
+	@Test
+	public void unionsGraphsAndPathsRequireNothing() {
+		assertTrue(query("SELECT ?thing WHERE { { ?thing a core:Thing } UNION { ?thing a core:Device } }").getRequiredPredicates().isEmpty());
+		assertTrue(query("SELECT ?thing WHERE { GRAPH ?g { ?thing wot:thingName ?name } }").getRequiredPredicates().isEmpty());
+		assertTrue(query("SELECT ?thing WHERE { ?thing wot:hasProperty|wot:hasAction ?interaction }").getRequiredPredicates().isEmpty());
+	}
+
+	@Test
+	public void graphsLackingARequiredPredicateOrTypeDoNotMatch() {
+		CompiledQuery compiled = query("SELECT ?thing WHERE { ?thing a core:Thing ; wot:thingName ?name . }");
+
+		assertTrue(compiled.mayMatch(graph("<http://t> a core:Thing ; wot:thingName \"t\" .")));
+		assertFalse(compiled.mayMatch(graph("<http://t> a core:Thing .")));
+		assertFalse(compiled.mayMatch(graph("<http://t> a core:Device ; wot:thingName \"t\" .")));
+	}
+
+	@Test
+	public void graphsMayMatchWithoutBeingRelevant() {
+		CompiledQuery compiled = query("SELECT ?thing WHERE { ?thing a core:Thing ; wot:thingName \"t\" . }");
+		Graph graph = graph("<http://t> a core:Thing ; wot:thingName \"other\" .");
+
+		assertTrue(compiled.mayMatch(graph));
+		assertFalse(compiled.isRelevant(graph));
+		assertTrue(compiled.isRelevant(graph("<http://t> a core:Thing ; wot:thingName \"t\" .")));
+	}
+
+	@Test
+	public void queriesThatCouldNotBeParsedMatchNothing() {
+		CompiledQuery compiled = CompiledQuery.matchingNothing();
+
+		assertFalse(compiled.mayMatch(graph("<http://t> a core:Thing .")));
+		assertFalse(compiled.isRelevant(graph("<http://t> a core:Thing .")));
+	}
+
+	private static CompiledQuery query(String query) {
+		return new CompiledQuery(QueryFactory.create(PREFIXES+query));
+	}
+
+	private static Node uri(String iri) {
+		return NodeFactory.createURI(iri);
+	}
+
+	private static Graph graph(String turtle) {
+		Model model = ModelFactory.createDefaultModel();
+		model.read(new StringReader("@prefix core: <"+CORE+"> . @prefix wot: <"+WOT+"> . "+turtle), null, "TURTLE");
+		return model.getGraph();
+	}
+}
@@ -0,0 +1,143 @@
+package service.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import service.metrics.GatewayMetrics;
+
+public class DiscoveryExecutorTest {
+
+	private DiscoveryExecutor discoveryExecutor;
+
+	@Before
+	public void setUp() {
+		// One thread and one queued task, a permit not given back blocks every later call
+		discoveryExecutor = new DiscoveryExecutor(new GatewayMetrics(new SimpleMeterRegistry()), 1, 1, 1);
+	}
+
+	@After
+	public void tearDown() {
+		discoveryExecutor.shutdown();
+	}
+
+	@Test
+	public void tasksBeyondThePermitsWaitInsteadOfBeingRejected() throws Exception {
+		List<Callable<Integer>> tasks = new ArrayList<>();
+		for(int task = 0; task < 10; task++) {
+			int index = task;
+			tasks.add(() -> index);
+		}
+		List<Future<Integer>> futures = discoveryExecutor.invokeAll(tasks, Deadline.none());
+
+		for(int task = 0; task < 10; task++)
+			assertEquals(task, futures.get(task).get().intValue());
+	}
+
+	@Test
+	public void failedTasksGiveTheirPermitsBack() throws Exception {
+		List<Callable<String>> failing = new ArrayList<>();
+		for(int task = 0; task < 4; task++)
+			failing.add(() -> {
+				throw new IllegalStateException("failed");
+			});
+		for(Future<String> future:discoveryExecutor.invokeAll(failing, Deadline.none())) {
+			try {
+				future.get();
+				fail("The task should have failed");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}
+		}
+
+		List<Callable<String>> tasks = new ArrayList<>();
+		for(int task = 0; task < 4; task++)
+			tasks.add(() -> "done");
+		for(Future<String> future:discoveryExecutor.invokeAll(tasks, Deadline.none()))
+			assertEquals("done", future.get());
+	}
+
+	@Test
+	public void tasksOfARequestAreCapped() throws Exception {
+		DiscoveryExecutor executor = new DiscoveryExecutor(new GatewayMetrics(new SimpleMeterRegistry()), 8, 8, 2);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		List<Callable<String>> tasks = new ArrayList<>();
+		for(int task = 0; task < 12; task++)
+			tasks.add(() -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				Thread.sleep(20);
+				running.decrementAndGet();
+				return "done";
+			});
+		try {
+			executor.invokeAll(tasks, Deadline.none());
+		}finally {
+			executor.shutdown();
+		}
+
+		assertTrue(maxRunning.get() <= 2);
+	}
+
+	@Test
+	public void queuedTasksAreCancelledOnceTheDeadlineExpires() throws Exception {
+		AtomicBoolean started = new AtomicBoolean(false);
+		long start = System.nanoTime();
+		List<Future<String>> futures = discoveryExecutor.invokeAll(Arrays.asList(sleeping(5000), () -> {
+			started.set(true);
+			return "queued";
+		}), Deadline.after(300));
+
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+		assertTrue(futures.get(0).isCancelled());
+		assertTrue(futures.get(1).isCancelled());
+		assertFalse(started.get());
+	}
+
+	@Test
+	public void cancelledTasksGiveTheirPermitsBack() throws Exception {
+		discoveryExecutor.invokeAll(Arrays.asList(sleeping(5000), sleeping(5000)), Deadline.after(300));
+
+		List<Callable<String>> tasks = new ArrayList<>();
+		for(int task = 0; task < 4; task++)
+			tasks.add(() -> "done");
+		List<Future<String>> futures = discoveryExecutor.invokeAll(tasks, Deadline.after(5000));
+
+		for(Future<String> future:futures)
+			assertEquals("done", future.get());
+	}
+
+	@Test
+	public void consumedTasksAreCancelledOnceTheDeadlineExpires() throws Exception {
+		List<Integer> cancelled = new ArrayList<>();
+		discoveryExecutor.invokeAll(Arrays.asList(sleeping(5000), sleeping(5000)), (index, future) -> {
+			if(future.isCancelled())
+				cancelled.add(index);
+		}, Deadline.after(300));
+
+		assertEquals(2, cancelled.size());
+	}
+
+	private static Callable<String> sleeping(long millis) {
+		return () -> {
+			Thread.sleep(millis);
+			return "slept";
+		};
+	}
+}
@@ -0,0 +1,146 @@
+package service.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OwnershipTraversalTest {
+
+	private static final String DATA_DOMAIN = "http://vicinity.eu/data";
+	private static final String THINGS = DATA_DOMAIN+"/things/";
+	private CannedCache thingGraphCache;
+
+	@Before
+	public void setUp() {
+		thingGraphCache = new CannedCache();
+	}
+
+	@Test
+	public void ownersAreAddedRecursively() {
+		thingGraphCache.put("o1", "<"+THINGS+"o1> core:hasOwner <"+THINGS+"o2> .");
+		thingGraphCache.put("o2", "<"+THINGS+"o2> core:thingName \"o2\" .");
+
+		Model expanded = traversal(4).expand("t1", graph("<"+THINGS+"t1> core:hasOwner <"+THINGS+"o1> ."));
+
+		assertTrue(expanded.containsResource(ResourceFactory.createResource(THINGS+"o2")));
+		assertEquals(3, expanded.size());
+		assertEquals(Arrays.asList(Collections.singleton("o1"), Collections.singleton("o2")), thingGraphCache.queries);
+	}
+
+	@Test
+	public void cyclesAreExpandedOnce() {
+		thingGraphCache.put("o1", "<"+THINGS+"o1> core:owns <"+THINGS+"t1> ; core:hasOwner <"+THINGS+"o2> .");
+		thingGraphCache.put("o2", "<"+THINGS+"o2> core:hasOwner <"+THINGS+"o1> , <"+THINGS+"t1> .");
+
+		Model expanded = traversal(10).expand("t1", graph("<"+THINGS+"t1> core:hasOwner <"+THINGS+"o1> ."));
+
+		assertEquals(5, expanded.size());
+		assertEquals(Arrays.asList(Collections.singleton("o1"), Collections.singleton("o2")), thingGraphCache.queries);
+	}
+
+	@Test
+	public void ownersBeyondTheMaximumDepthAreLeftOut() {
+		thingGraphCache.put("o1", "<"+THINGS+"o1> core:hasOwner <"+THINGS+"o2> .");
+		thingGraphCache.put("o2", "<"+THINGS+"o2> core:hasOwner <"+THINGS+"o3> .");
+		thingGraphCache.put("o3", "<"+THINGS+"o3> core:thingName \"o3\" .");
+
+		Model expanded = traversal(2).expand("t1", graph("<"+THINGS+"t1> core:hasOwner <"+THINGS+"o1> ."));
+
+		assertEquals(3, expanded.size());
+		assertFalse(expanded.contains(null, null, "o3"));
+		assertEquals(Arrays.asList(Collections.singleton("o1"), Collections.singleton("o2")), thingGraphCache.queries);
+		assertEquals(1, traversal(0).expand("t1", graph("<"+THINGS+"t1> core:hasOwner <"+THINGS+"o1> .")).size());
+	}
+
+	@Test
+	public void sharedOwnerIsRetrievedOnce() {
+		thingGraphCache.put("o1", "<"+THINGS+"o1> core:thingName \"o1\" .");
+		Map<String, Model> things = new HashMap<>();
+		things.put("t1", graph("<"+THINGS+"t1> core:hasOwner <"+THINGS+"o1> ."));
+		things.put("t2", graph("<"+THINGS+"t2> core:hasOwner <"+THINGS+"o1> ."));
+		OwnershipTraversal traversal = traversal(4);
+
+		Map<String, Model> expanded = traversal.expandAll(things);
+		Model again = traversal.expand("t3", graph("<"+THINGS+"t3> core:hasOwner <"+THINGS+"o1> ."));
+
+		assertTrue(expanded.get("t1").contains(null, null, "o1"));
+		assertTrue(expanded.get("t2").contains(null, null, "o1"));
+		assertTrue(again.contains(null, null, "o1"));
+		assertEquals(Collections.singletonList(Collections.singleton("o1")), thingGraphCache.queries);
+	}
+
+	@Test
+	public void thingsExpandedTogetherAreNotRetrievedAgain() {
+		Map<String, Model> things = new HashMap<>();
+		things.put("t1", graph("<"+THINGS+"t1> core:hasOwner <"+THINGS+"t2> ."));
+		things.put("t2", graph("<"+THINGS+"t2> core:thingName \"t2\" ."));
+
+		Map<String, Model> expanded = traversal(4).expandAll(things);
+
+		assertEquals(2, expanded.get("t1").size());
+		assertTrue(thingGraphCache.queries.isEmpty());
+	}
+
+	@Test
+	public void onlyOwnershipPredicatesAreFollowed() {
+		Model thing = graph("<"+THINGS+"t1> core:hasOwnerName <"+THINGS+"o1> ; wot:hasValueType <"+THINGS+"o2> ; <http://example.org/owns> <"+THINGS+"o3> ; "
+				+ "core:hasOwner \"o4\" ; wot:hasValue <"+THINGS+"o5> .");
+		thingGraphCache.put("o5", "<"+THINGS+"o5> core:thingName \"o5\" .");
+
+		traversal(4).expand("t1", thing);
+
+		assertEquals(Collections.singletonList(Collections.singleton("o5")), thingGraphCache.queries);
+	}
+
+	private OwnershipTraversal traversal(int maxDepth) {
+		return new OwnershipTraversal(thingGraphCache, "http://repository", DATA_DOMAIN, maxDepth, Deadline.none());
+	}
+
+	private static Model graph(String turtle) {
+		Model graph = ModelFactory.createDefaultModel();
+		graph.read(new StringReader("@prefix core: <http://iot.linkeddata.es/def/core#> . @prefix wot: <http://iot.linkeddata.es/def/wot#> . "+turtle), null, "TURTLE");
+		return graph;
+	}
+
+	/**
+	 * A cache that answers canned graphs, an empty one for unknown Things, and records the OIDs of every query
+	 */
+	private static class CannedCache extends ThingGraphCache {
+
+		private final Map<String, Model> graphs = new HashMap<>();
+		private final List<Collection<String>> queries = new ArrayList<>();
+
+		private CannedCache() {
+			super(null, null, null, 300, 1000);
+		}
+
+		private void put(String oid, String turtle) {
+			graphs.put(oid, graph(turtle));
+		}
+
+		@Override
+		public Map<String, Model> retrieveThings(String endpoint, Collection<String> oids, Deadline deadline) {
+			queries.add(new HashSet<>(oids));
+			Map<String, Model> retrieved = new HashMap<>();
+			for(String oid:oids)
+				retrieved.put(oid, graphs.getOrDefault(oid, ModelFactory.createDefaultModel()));
+			return retrieved;
+		}
+	}
+}
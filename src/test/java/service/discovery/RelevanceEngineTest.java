@@ -0,0 +1,52 @@
+package service.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class RelevanceEngineTest {
+
+	@Test
+	public void whiteSpacesAreCollapsed() {
+		assertEquals("SELECT ?s WHERE { ?s ?p ?o . }", RelevanceEngine.normalize("  SELECT ?s\n\tWHERE {\n  ?s ?p   ?o .\n}\n"));
+	}
+
+	@Test
+	public void whiteSpacesInStringsAreKept() {
+		assertEquals("SELECT ?s WHERE { ?s ?p \"a  b\\\"  c\" . ?s ?q 'd\t e' }", RelevanceEngine.normalize("SELECT ?s WHERE {  ?s ?p \"a  b\\\"  c\" .  ?s ?q 'd\t e' }"));
+	}
+
+	@Test
+	public void commentsAreRemoved() {
+		assertEquals("SELECT ?s WHERE { ?s ?p ?o . }", RelevanceEngine.normalize("# Every Thing\nSELECT ?s WHERE { # any triple\n ?s ?p ?o . }"));
+	}
+
+	@Test
+	public void lineAfterACommentIsNotPartOfIt() {
+		String filtered = RelevanceEngine.normalize("SELECT ?s WHERE { ?s ?p ?o # any value\n FILTER(?o = 1) }");
+		String commented = RelevanceEngine.normalize("SELECT ?s WHERE { ?s ?p ?o # any value FILTER(?o = 1) }");
+
+		assertEquals("SELECT ?s WHERE { ?s ?p ?o FILTER(?o = 1) }", filtered);
+		assertEquals("SELECT ?s WHERE { ?s ?p ?o", commented);
+		assertNotEquals(filtered, commented);
+	}
+
+	@Test
+	public void hashesInIrisAndStringsAreNotComments() {
+		String query = "SELECT ?s WHERE { ?s <http://iot.linkeddata.es/def/wot#thingName> \"#1\" . FILTER(?o < 3) }";
+
+		assertEquals(query, RelevanceEngine.normalize(query));
+	}
+
+	@Test
+	public void queriesDifferingInCommentsAreCompiledOnce() {
+		RelevanceEngine relevanceEngine = new RelevanceEngine(16);
+		CompiledQuery compiled = relevanceEngine.compile("SELECT ?s WHERE { ?s ?p ?o . }");
+
+		assertSame(compiled, relevanceEngine.compile("# Every triple\nSELECT ?s WHERE {\n ?s ?p ?o . }"));
+		assertNotSame(compiled, relevanceEngine.compile("SELECT ?s WHERE { ?s ?p ?o # any value\n FILTER(?o = 1) }"));
+	}
+}
@@ -0,0 +1,279 @@
+package service.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.rdf.model.Literal;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.resultset.ResultSetLang;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import service.metrics.GatewayMetrics;
+import service.upstream.RepositoryBalancer;
+import service.upstream.UpstreamClient;
+
+public class SemanticRepositoryTest {
+
+	private static final String WOT = "http://iot.linkeddata.es/def/wot#";
+	private static final String RESULTS = "?g\t?s\t?p\t?o\n<"+SemanticRepository.THINGS_GRAPH+"t1>\t<"+SemanticRepository.THINGS_GRAPH+"t1>\t<http://iot.linkeddata.es/def/wot#thingName>\t\"t1\"\n";
+	private SimpleMeterRegistry registry;
+	private GatewayMetrics metrics;
+	private UpstreamClient upstreamClient;
+	private HttpServer failing;
+	private HttpServer answering;
+	private ExecutorService answeringThreads = Executors.newCachedThreadPool();
+	private AtomicInteger failingQueries = new AtomicInteger();
+	private AtomicInteger answeringQueries = new AtomicInteger();
+	// The next query to the answering replica waits before it is answered
+	private AtomicBoolean slowNext = new AtomicBoolean(false);
+	private volatile String lastQuery;
+
+	@Before
+	public void setUp() throws IOException {
+		registry = new SimpleMeterRegistry();
+		metrics = new GatewayMetrics(registry);
+		upstreamClient = new UpstreamClient(metrics, 10, 10, 60, 1000, 10000, 4, 10, 10, 10, 100, 10);
+		failing = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		failing.createContext("/", exchange -> {
+			failingQueries.incrementAndGet();
+			exchange.sendResponseHeaders(500, -1);
+			exchange.close();
+		});
+		failing.start();
+		answering = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		answering.setExecutor(answeringThreads);
+		answering.createContext("/", exchange -> {
+			answeringQueries.incrementAndGet();
+			lastQuery = URLDecoder.decode(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8), "UTF-8");
+			try {
+				if(slowNext.compareAndSet(true, false))
+					Thread.sleep(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			byte[] body = RESULTS.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "text/tab-separated-values");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}catch(IOException e) {
+				// The gateway aborted the query
+			}
+		});
+		answering.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		failing.stop(0);
+		answering.stop(0);
+		answeringThreads.shutdownNow();
+		upstreamClient.close();
+	}
+
+	@Test
+	public void failedQueryIsSentOnceMoreToAnotherReplica() throws IOException {
+		RepositoryBalancer balancer = new RepositoryBalancer(metrics, 3, 30, 4);
+		balancer.register("repository", Arrays.asList(endpoint(failing), endpoint(answering)));
+		SemanticRepository semanticRepository = new SemanticRepository(upstreamClient, balancer, metrics, 25, 200, 1048576, false, 0.95);
+
+		for(int query = 0; query < 10; query++) {
+			Map<String, Model> graphs = semanticRepository.retrieveThings("repository", Collections.singletonList("t1"), Deadline.after(5000));
+			assertEquals(1, graphs.get("t1").size());
+		}
+
+		assertEquals(10, answeringQueries.get());
+		assertTrue(failingQueries.get() <= 3);
+	}
+
+	@Test(expected = IOException.class)
+	public void failedQueryWithoutOtherReplicaFails() throws IOException {
+		RepositoryBalancer balancer = new RepositoryBalancer(metrics, 3, 30, 4);
+		SemanticRepository semanticRepository = new SemanticRepository(upstreamClient, balancer, metrics, 25, 200, 1048576, false, 0.95);
+
+		try {
+			semanticRepository.retrieveThings(endpoint(failing), Collections.singletonList("t1"), Deadline.after(5000));
+		}finally {
+			assertEquals(1, failingQueries.get());
+		}
+	}
+
+	@Test
+	public void slowQueryIsHedged() throws IOException {
+		RepositoryBalancer balancer = new RepositoryBalancer(metrics, 3, 30, 4);
+		SemanticRepository semanticRepository = new SemanticRepository(upstreamClient, balancer, metrics, 25, 200, 1048576, true, 0.95);
+		// The latency of the repository is known after 50 queries, the next one is much slower than usual
+		List<String> oids = Collections.singletonList("t1");
+		for(int query = 0; query < 60; query++)
+			semanticRepository.retrieveThings(endpoint(answering), oids, Deadline.after(5000));
+
+		// Warm-up queries slower than usual are hedged as well
+		double hedges = registry.get("discovery.hedges").counter().count();
+		slowNext.set(true);
+		long start = System.nanoTime();
+		Map<String, Model> graphs = semanticRepository.retrieveThings(endpoint(answering), oids, Deadline.after(10000));
+
+		assertEquals(1, graphs.get("t1").size());
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 4000);
+		assertEquals(hedges + 1, registry.get("discovery.hedges").counter().count(), 0);
+		assertEquals(62, answeringQueries.get());
+	}
+
+	@Test
+	public void queryWithoutHedgingIsSentOnce() throws IOException {
+		SemanticRepository semanticRepository = new SemanticRepository(upstreamClient, new RepositoryBalancer(metrics, 3, 30, 4), metrics, 25, 200, 1048576, false, 0.95);
+
+		Map<String, Model> graphs = semanticRepository.retrieveThings(endpoint(answering), Collections.singletonList("t1"), Deadline.after(5000));
+
+		assertEquals(1, graphs.get("t1").size());
+		assertEquals(1, answeringQueries.get());
+		assertEquals(0, registry.get("discovery.hedges").counter().count(), 0);
+	}
+
+	@Test
+	public void invalidOidsDoNotBreakTheQueryOfTheirChunk() throws IOException {
+		RepositoryBalancer balancer = new RepositoryBalancer(metrics, 3, 30, 4);
+		SemanticRepository semanticRepository = new SemanticRepository(upstreamClient, balancer, metrics, 25, 200, 1048576, false, 0.95);
+
+		Map<String, Model> graphs = semanticRepository.retrieveThings(endpoint(answering), Arrays.asList("t1", "t2> } ?s ?p ?o {", "t 3"), Deadline.after(5000));
+
+		assertEquals(1, graphs.get("t1").size());
+		assertTrue(graphs.get("t2> } ?s ?p ?o {").isEmpty());
+		assertTrue(graphs.get("t 3").isEmpty());
+		assertEquals(1, answeringQueries.get());
+		assertFalse(lastQuery.contains("t2>"));
+		assertFalse(lastQuery.contains("t 3"));
+	}
+
+	@Test
+	public void onlyInvalidOidsAreNotQueried() throws IOException {
+		RepositoryBalancer balancer = new RepositoryBalancer(metrics, 3, 30, 4);
+		SemanticRepository semanticRepository = new SemanticRepository(upstreamClient, balancer, metrics, 25, 200, 1048576, false, 0.95);
+
+		Map<String, Model> graphs = semanticRepository.retrieveThings(endpoint(answering), Collections.singletonList("t\"1\""), Deadline.after(5000));
+
+		assertTrue(graphs.get("t\"1\"").isEmpty());
+		assertEquals(0, answeringQueries.get());
+	}
+
+	@Test
+	public void literalsAreReadWithTheirEscapes() {
+		Map<String, Model> graphs = read("\"a, b\"", "\"a\\tb\\nc\"", "\"say \\\"hi\\\"\"");
+
+		assertTrue(graphs.get("t1").contains(null, null, "a, b"));
+		assertTrue(graphs.get("t1").contains(null, null, "a\tb\nc"));
+		assertTrue(graphs.get("t1").contains(null, null, "say \"hi\""));
+		assertEquals(3, graphs.get("t1").size());
+	}
+
+	@Test
+	public void literalsKeepTheirLanguageAndDatatype() {
+		Map<String, Model> graphs = read("\"hola\"@es", "\"42\"^^<http://www.w3.org/2001/XMLSchema#integer>");
+
+		assertTrue(graphs.get("t1").contains(null, null, graphs.get("t1").createLiteral("hola", "es")));
+		assertTrue(graphs.get("t1").contains(null, null, graphs.get("t1").createTypedLiteral("42", XSDDatatype.XSDinteger)));
+	}
+
+	@Test
+	public void hrefIrisAreReadAsPlainLiterals() {
+		String results = "?g\t?s\t?p\t?o\n"
+				+ "<"+SemanticRepository.THINGS_GRAPH+"t1>\t<"+SemanticRepository.THINGS_GRAPH+"t1>\t<"+WOT+"href>\t<http://adapter/things/t1/properties/p>\n"
+				+ "<"+SemanticRepository.THINGS_GRAPH+"t1>\t<"+SemanticRepository.THINGS_GRAPH+"t1>\t<"+WOT+"isReadable>\t<http://adapter/things/t1>\n";
+		Model graph = read(results, ResultSetLang.SPARQLResultSetTSV).get("t1");
+
+		RDFNode href = graph.listObjectsOfProperty(ResourceFactory.createProperty(WOT+"href")).next();
+		assertTrue(href.isLiteral());
+		assertEquals("http://adapter/things/t1/properties/p", ((Literal) href).getLexicalForm());
+		assertTrue(graph.listObjectsOfProperty(ResourceFactory.createProperty(WOT+"isReadable")).next().isURIResource());
+	}
+
+	@Test
+	public void rowsOfOtherGraphsAndBlankNodesAreIgnored() {
+		String results = "?g\t?s\t?p\t?o\n"
+				+ "<"+SemanticRepository.DESCRIPTIONS_GRAPH+"t1>\t<"+SemanticRepository.DESCRIPTIONS_GRAPH+"t1>\t<"+WOT+"thingName>\t\"t1\"\n"
+				+ "<"+SemanticRepository.THINGS_GRAPH+"t2>\t<"+SemanticRepository.THINGS_GRAPH+"t2>\t<"+WOT+"thingName>\t\"t2\"\n"
+				+ "<"+SemanticRepository.THINGS_GRAPH+"t1>\t<"+SemanticRepository.THINGS_GRAPH+"t1>\t<"+WOT+"hasProperty>\t_:b0\n";
+		Map<String, Model> graphs = read(results, ResultSetLang.SPARQLResultSetTSV);
+
+		assertEquals(1, graphs.get("t1").size());
+		assertEquals(1, graphs.size());
+	}
+
+	@Test
+	public void emptyResultsLeaveTheGraphsEmpty() {
+		assertTrue(read("?g\t?s\t?p\t?o\n", ResultSetLang.SPARQLResultSetTSV).get("t1").isEmpty());
+		assertTrue(read("{\"head\": {\"vars\": [\"g\", \"s\", \"p\", \"o\"]}, \"results\": {\"bindings\": []}}", ResultSetLang.SPARQLResultSetJSON).get("t1").isEmpty());
+	}
+
+	@Test
+	public void jsonResultsAreRead() {
+		String results = "{\"head\": {\"vars\": [\"g\", \"s\", \"p\", \"o\"]}, \"results\": {\"bindings\": [{"
+				+ "\"g\": {\"type\": \"uri\", \"value\": \""+SemanticRepository.THINGS_GRAPH+"t1\"}, "
+				+ "\"s\": {\"type\": \"uri\", \"value\": \""+SemanticRepository.THINGS_GRAPH+"t1\"}, "
+				+ "\"p\": {\"type\": \"uri\", \"value\": \""+WOT+"thingName\"}, "
+				+ "\"o\": {\"type\": \"literal\", \"value\": \"a,\\tb\\n\\\"c\\\"\", \"xml:lang\": \"en\"}}]}}";
+
+		Model graph = read(results, ResultSetLang.SPARQLResultSetJSON).get("t1");
+
+		assertTrue(graph.contains(null, null, graph.createLiteral("a,\tb\n\"c\"", "en")));
+	}
+
+	/**
+	 * This method reads TSV results whose rows add the given objects to the graph of the Thing t1
+	 */
+	private static Map<String, Model> read(String... objects) {
+		StringBuilder results = new StringBuilder("?g\t?s\t?p\t?o\n");
+		for(String object:objects)
+			results.append("<").append(SemanticRepository.THINGS_GRAPH).append("t1>\t<").append(SemanticRepository.THINGS_GRAPH).append("t1>\t<").append(WOT).append("thingName>\t").append(object).append("\n");
+		return read(results.toString(), ResultSetLang.SPARQLResultSetTSV);
+	}
+
+	private static Map<String, Model> read(String results, Lang lang) {
+		Map<String, Model> graphs = new HashMap<>();
+		graphs.put("t1", ModelFactory.createDefaultModel());
+		SemanticRepository.readResults(new ByteArrayInputStream(results.getBytes(StandardCharsets.UTF_8)), lang, graphs);
+		return graphs;
+	}
+
+	private static byte[] readAll(InputStream input) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for(int read = input.read(buffer); read >= 0; read = input.read(buffer))
+			bytes.write(buffer, 0, read);
+		return bytes.toByteArray();
+	}
+
+	private static String endpoint(HttpServer server) {
+		return "http://localhost:"+server.getAddress().getPort()+"/repositories/vicinity";
+	}
+}
@@ -0,0 +1,46 @@
+package service.discovery;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TedFormatTest {
+
+	@Test
+	public void missingOrMalformedHeaderIsJsonLd() {
+		assertEquals(TedFormat.JSONLD, TedFormat.negotiate(null));
+		assertEquals(TedFormat.JSONLD, TedFormat.negotiate(""));
+		assertEquals(TedFormat.JSONLD, TedFormat.negotiate("application/"));
+	}
+
+	@Test
+	public void supportedMediaTypesAreChosen() {
+		assertEquals(TedFormat.JSONLD, TedFormat.negotiate("application/ld+json"));
+		assertEquals(TedFormat.JSONLD, TedFormat.negotiate("application/json"));
+		assertEquals(TedFormat.NTRIPLES, TedFormat.negotiate("application/n-triples"));
+		assertEquals(TedFormat.NQUADS, TedFormat.negotiate("application/n-quads"));
+		assertEquals(TedFormat.THRIFT, TedFormat.negotiate("application/rdf+thrift"));
+	}
+
+	@Test
+	public void highestQualityIsChosen() {
+		assertEquals(TedFormat.THRIFT, TedFormat.negotiate("application/ld+json;q=0.5, application/rdf+thrift"));
+		assertEquals(TedFormat.NQUADS, TedFormat.negotiate("application/n-triples;q=0.8, application/n-quads;q=0.9"));
+		assertEquals(TedFormat.NTRIPLES, TedFormat.negotiate("text/html, application/n-triples;q=0.1"));
+	}
+
+	@Test
+	public void wildcardsAreJsonLdUnlessAMoreSpecificTypeIsAccepted() {
+		assertEquals(TedFormat.JSONLD, TedFormat.negotiate("*/*"));
+		assertEquals(TedFormat.JSONLD, TedFormat.negotiate("application/*"));
+		assertEquals(TedFormat.NTRIPLES, TedFormat.negotiate("*/*;q=0.1, application/n-triples"));
+		// At equal quality the more specific type goes first
+		assertEquals(TedFormat.NQUADS, TedFormat.negotiate("*/*, application/n-quads"));
+	}
+
+	@Test
+	public void unsupportedMediaTypesAreJsonLd() {
+		// Requests accepting none of the formats are answered 406 before they are negotiated, see GatewayServicesControllerTest
+		assertEquals(TedFormat.JSONLD, TedFormat.negotiate("text/html"));
+	}
+}
@@ -0,0 +1,103 @@
+package service.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.junit.Test;
+
+public class TedStreamWriterTest {
+
+	private static final String ECOSYSTEM = "http://bnodes/ecosystem";
+	private static final String HAS_COMPONENT = "http://iot.linkeddata.es/def/core#hasComponent";
+	private static final String THING = "@prefix core: <http://iot.linkeddata.es/def/core#> . @prefix wot: <http://iot.linkeddata.es/def/wot#> . "
+			+ "@prefix xsd: <http://www.w3.org/2001/XMLSchema#> . "
+			+ "<http://vicinity.eu/data/things/%1$s> a core:Thing, core:Device ; wot:thingName \"%1$s, \\\"quoted\\\"\\n\\tname\" ; "
+			+ "core:label \"etiqueta\"@es ; core:count \"42\"^^xsd:integer ; core:hasOwner <http://vicinity.eu/data/things/owner> ; "
+			+ "wot:providesInteractionPattern [ wot:interactionName \"p\" ] .";
+
+	@Test
+	public void jsonLdIsReadBackAsTheWrittenTriples() throws IOException {
+		assertReadBack(TedFormat.JSONLD, Lang.JSONLD);
+	}
+
+	@Test
+	public void nTriplesAreReadBackAsTheWrittenTriples() throws IOException {
+		assertReadBack(TedFormat.NTRIPLES, Lang.NTRIPLES);
+	}
+
+	@Test
+	public void nQuadsAreReadBackAsTheWrittenTriples() throws IOException {
+		assertReadBack(TedFormat.NQUADS, Lang.NQUADS);
+	}
+
+	@Test
+	public void rdfThriftIsReadBackAsTheWrittenTriples() throws IOException {
+		assertReadBack(TedFormat.THRIFT, Lang.RDFTHRIFT);
+	}
+
+	@Test
+	public void emptyTedIsValid() throws IOException {
+		for(TedFormat format:TedFormat.values()) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			format.streamWriter(output).close();
+			assertTrue(read(output.toByteArray(), lang(format)).isEmpty());
+		}
+	}
+
+	@Test
+	public void eachModelIsFlushedOnceWritten() throws IOException {
+		for(TedFormat format:TedFormat.values()) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			TedWriter writer = format.streamWriter(output);
+			writer.write(thing("t1"));
+			int written = output.size();
+			writer.write(thing("t2"));
+
+			assertTrue(format+" did not flush the first Thing", written > 0);
+			assertTrue(format+" did not flush the second Thing", output.size() > written);
+			writer.close();
+		}
+	}
+
+	private static void assertReadBack(TedFormat format, Lang lang) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (TedWriter writer = format.streamWriter(output)) {
+			writer.write(thing("t1"));
+			writer.write(ECOSYSTEM, HAS_COMPONENT, "http://vicinity.eu/data/things/t1");
+			writer.write(thing("t2"));
+			writer.write(ECOSYSTEM, HAS_COMPONENT, "http://vicinity.eu/data/things/t2");
+		}
+
+		Model expected = ModelFactory.createDefaultModel().add(thing("t1")).add(thing("t2"));
+		expected.add(expected.createResource(ECOSYSTEM), expected.createProperty(HAS_COMPONENT), expected.createResource("http://vicinity.eu/data/things/t1"));
+		expected.add(expected.createResource(ECOSYSTEM), expected.createProperty(HAS_COMPONENT), expected.createResource("http://vicinity.eu/data/things/t2"));
+		Model read = read(output.toByteArray(), lang);
+		assertEquals(expected.size(), read.size());
+		assertTrue(format+" was not read back as the written triples", read.isIsomorphicWith(expected));
+	}
+
+	private static Model thing(String oid) {
+		Model thing = ModelFactory.createDefaultModel();
+		thing.read(new StringReader(String.format(THING, oid)), null, "TURTLE");
+		return thing;
+	}
+
+	private static Model read(byte[] document, Lang lang) {
+		Model model = ModelFactory.createDefaultModel();
+		RDFDataMgr.read(model, new ByteArrayInputStream(document), lang);
+		return model;
+	}
+
+	private static Lang lang(TedFormat format) {
+		return format == TedFormat.JSONLD? Lang.JSONLD : format == TedFormat.THRIFT? Lang.RDFTHRIFT : format == TedFormat.NQUADS? Lang.NQUADS : Lang.NTRIPLES;
+	}
+}
@@ -0,0 +1,89 @@
+package service.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import service.metrics.GatewayMetrics;
+
+public class TedSubscriptionsTest {
+
+	private DiscoveryExecutor discoveryExecutor;
+	private TedSubscriptions subscriptions;
+
+	@Before
+	public void setUp() {
+		discoveryExecutor = new DiscoveryExecutor(new GatewayMetrics(new SimpleMeterRegistry()), 4, 16, 4);
+	}
+
+	@After
+	public void tearDown() {
+		subscriptions.close();
+		discoveryExecutor.shutdown();
+	}
+
+	@Test
+	public void concurrentSubscriptionsDoNotExceedTheLimit() throws Exception {
+		subscriptions = new TedSubscriptions(discoveryExecutor, 3600, 60, 5);
+		ExecutorService clients = Executors.newFixedThreadPool(16);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<SseEmitter>> emitters = new ArrayList<>();
+			for(int client = 0; client < 16; client++)
+				emitters.add(clients.submit((Callable<SseEmitter>) () -> {
+					start.await();
+					return subscriptions.subscribe("t1", (neighbors, omitted) -> Collections.emptyMap());
+				}));
+			start.countDown();
+			int accepted = 0;
+			for(Future<SseEmitter> emitter:emitters)
+				accepted += emitter.get(10, TimeUnit.SECONDS) != null? 1 : 0;
+
+			assertEquals(5, accepted);
+		}finally {
+			clients.shutdownNow();
+		}
+	}
+
+	@Test
+	public void evaluationsOfASubscriptionDoNotOverlap() throws Exception {
+		subscriptions = new TedSubscriptions(discoveryExecutor, 1, 60, 5);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger overlapping = new AtomicInteger();
+		CountDownLatch evaluated = new CountDownLatch(3);
+		// Every evaluation lasts longer than the refresh period
+		SseEmitter emitter = subscriptions.subscribe("t1", (neighbors, omitted) -> {
+			if(running.incrementAndGet() > 1)
+				overlapping.incrementAndGet();
+			try {
+				Thread.sleep(1500);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			running.decrementAndGet();
+			evaluated.countDown();
+			return Collections.emptyMap();
+		});
+		assertNotNull(emitter);
+
+		assertTrue(evaluated.await(15, TimeUnit.SECONDS));
+		assertEquals(0, overlapping.get());
+	}
+}
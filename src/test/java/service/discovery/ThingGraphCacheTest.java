@@ -0,0 +1,117 @@
+package service.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ThingGraphCacheTest {
+
+	private static final String ENDPOINT = "http://repository";
+	private CountingRepository semanticRepository;
+	private ThingGraphCache cache;
+
+	@Before
+	public void setUp() {
+		semanticRepository = new CountingRepository();
+		ThingIndex index = new ThingIndex(true, 300, 1000, 1000000);
+		cache = new ThingGraphCache(semanticRepository, new ThingReplica(semanticRepository, index, false, 60, 60), index, 300, 1000);
+	}
+
+	@Test
+	public void fullyCachedChunkDoesNotQueryTheRepository() throws Exception {
+		cache.retrieveThings(ENDPOINT, Arrays.asList("t1", "t2"), Deadline.none());
+		Map<String, Model> cached = cache.retrieveThings(ENDPOINT, Arrays.asList("t1", "t2"), Deadline.none());
+
+		assertEquals(2, cached.size());
+		assertEquals(1, semanticRepository.queries.get());
+	}
+
+	@Test
+	public void partiallyCachedChunkOnlyAsksForTheMissingThings() throws Exception {
+		cache.retrieveThings(ENDPOINT, Arrays.asList("t1"), Deadline.none());
+		cache.retrieveThings(ENDPOINT, Arrays.asList("t1", "t2"), Deadline.none());
+
+		assertEquals(2, semanticRepository.queries.get());
+		assertEquals(Collections.singletonList("t2"), semanticRepository.lastOids);
+	}
+
+	@Test
+	public void refreshedThingsAreQueriedEvenIfCached() throws Exception {
+		cache.retrieveThings(ENDPOINT, Arrays.asList("t1", "t2"), Deadline.none());
+		cache.refreshThings(ENDPOINT, Arrays.asList("t1", "t2"), Deadline.none());
+
+		assertEquals(2, semanticRepository.queries.get());
+		assertEquals(Arrays.asList("t1", "t2"), semanticRepository.lastOids);
+	}
+
+	@Test
+	public void emptyChunkDoesNotQueryTheRepository() throws Exception {
+		assertTrue(cache.retrieveThings(ENDPOINT, Collections.emptyList(), Deadline.none()).isEmpty());
+		assertEquals(0, semanticRepository.queries.get());
+	}
+
+	@Test
+	public void invalidatedThingIsNotReadFromTheReplica() throws Exception {
+		ThingIndex index = new ThingIndex(true, 300, 1000, 1000000);
+		ThingReplica replica = new ThingReplica(semanticRepository, index, true, 60, 60);
+		ThingGraphCache replicated = new ThingGraphCache(semanticRepository, replica, index, 300, 1000);
+		try {
+			replica.start(ENDPOINT);
+			while(!replica.statistics().getBoolean("loaded"))
+				Thread.sleep(10);
+			int queries = semanticRepository.queries.get();
+			replicated.retrieveThings(ENDPOINT, Arrays.asList("t1", "t2"), Deadline.none());
+			assertEquals(queries, semanticRepository.queries.get());
+
+			replicated.invalidate("t1");
+			replicated.retrieveThings(ENDPOINT, Arrays.asList("t1", "t2"), Deadline.none());
+
+			assertEquals(queries + 1, semanticRepository.queries.get());
+			assertEquals(Collections.singletonList("t1"), semanticRepository.lastOids);
+		}finally {
+			replica.close();
+		}
+	}
+
+	/**
+	 * A repository that answers an empty graph for every Thing and counts the queries
+	 */
+	private static class CountingRepository extends SemanticRepository {
+
+		private final AtomicInteger queries = new AtomicInteger();
+		private volatile Collection<String> lastOids;
+
+		private CountingRepository() {
+			super(null, null, null, 25, 200, 1048576, false, 0.95);
+		}
+
+		@Override
+		public Map<String, Model> retrieveThings(String endpoint, Collection<String> oids, Deadline deadline) {
+			queries.incrementAndGet();
+			lastOids = oids;
+			Map<String, Model> graphs = new HashMap<>();
+			for(String oid:oids)
+				graphs.put(oid, ModelFactory.createDefaultModel());
+			return graphs;
+		}
+
+		@Override
+		public Map<String, String> fingerprints(String endpoint) {
+			Map<String, String> fingerprints = new HashMap<>();
+			fingerprints.put("t1", "d1/1");
+			fingerprints.put("t2", "d1/1");
+			return fingerprints;
+		}
+	}
+}
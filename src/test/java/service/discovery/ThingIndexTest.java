@@ -0,0 +1,77 @@
+package service.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.junit.Test;
+
+public class ThingIndexTest {
+
+	private static final String THINGS = "http://vicinity.eu/data/things/";
+	private static final String PREFIXES = "PREFIX core: <http://iot.linkeddata.es/def/core#> PREFIX wot: <http://iot.linkeddata.es/def/wot#> ";
+
+	@Test
+	public void thingsLackingAKnownRequirementArePruned() {
+		ThingIndex index = new ThingIndex(true, 300, 1000, 1000000);
+		index.update(things("t1", "<"+THINGS+"t1> a core:Thing ; wot:thingName \"t1\" .", "t2", "<"+THINGS+"t2> a core:Thing ."));
+
+		Predicate<String> mayBeRelevant = index.mayBeRelevant(query("SELECT ?thing WHERE { ?thing wot:thingName ?name . }"), THINGS, 4);
+
+		assertTrue(mayBeRelevant.test("t1"));
+		assertFalse(mayBeRelevant.test("t2"));
+	}
+
+	@Test
+	public void unseenRequirementsPruneNothing() {
+		ThingIndex index = new ThingIndex(true, 300, 1000, 1000000);
+		index.update(things("t1", "<"+THINGS+"t1> a core:Thing ."));
+
+		Predicate<String> mayBeRelevant = index.mayBeRelevant(query("SELECT ?thing WHERE { ?thing a core:Device . }"), THINGS, 4);
+
+		assertTrue(mayBeRelevant.test("t1"));
+	}
+
+	@Test
+	public void fullDictionaryIsStartedAgain() throws Exception {
+		ThingIndex index = new ThingIndex(true, 300, 1000, 1024);
+		for(int thing = 0; thing <= 1024; thing++)
+			index.update(things("t"+thing, "<"+THINGS+"t"+thing+"> <http://example.org/p"+thing+"> \"v\" ."));
+		index.update(things("t", "<"+THINGS+"t> a core:Thing ."));
+
+		assertEquals(1, index.statistics().getLong("things"));
+		assertEquals(2, index.statistics().getLong("iris"));
+	}
+
+	@Test
+	public void invalidatingAllStartsTheDictionaryAgain() throws Exception {
+		ThingIndex index = new ThingIndex(true, 300, 1000, 1000000);
+		index.update(things("t1", "<"+THINGS+"t1> a core:Thing ; wot:thingName \"t1\" ."));
+		index.invalidateAll();
+
+		assertEquals(0, index.statistics().getLong("things"));
+		assertEquals(0, index.statistics().getLong("iris"));
+	}
+
+	private static CompiledQuery query(String query) {
+		return new CompiledQuery(QueryFactory.create(PREFIXES+query));
+	}
+
+	private static Map<String, Model> things(String... oidsAndTurtle) {
+		Map<String, Model> things = new HashMap<>();
+		for(int index = 0; index < oidsAndTurtle.length; index += 2) {
+			Model graph = ModelFactory.createDefaultModel();
+			graph.read(new StringReader("@prefix core: <http://iot.linkeddata.es/def/core#> . @prefix wot: <http://iot.linkeddata.es/def/wot#> . "+oidsAndTurtle[index + 1]), null, "TURTLE");
+			things.put(oidsAndTurtle[index], graph);
+		}
+		return things;
+	}
+}
@@ -0,0 +1,102 @@
+package service.upstream;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class NamespaceRewritingOutputStreamTest {
+
+	private static final String AGORA = "http://agora.example.org";
+	private static final String LOCAL = "http://vicinity.eu/data";
+
+	@Test
+	public void namespaceIsRewritten() throws IOException {
+		assertEquals("{\"@id\": \""+LOCAL+"/things/t1\", \"@type\": \""+LOCAL+"/descriptions/d1\"}", rewrite("{\"@id\": \""+AGORA+"/things/t1\", \"@type\": \""+AGORA+"/descriptions/d1\"}", AGORA, LOCAL, 1024));
+	}
+
+	@Test
+	public void namespaceSplitAcrossWritesIsRewritten() throws IOException {
+		String document = "<"+AGORA+"/things/t1> <"+AGORA+"/things/t2> .";
+		for(int split = 1; split < document.length(); split++)
+			assertEquals("<"+LOCAL+"/things/t1> <"+LOCAL+"/things/t2> .", rewrite(document, AGORA, LOCAL, split));
+	}
+
+	@Test
+	public void partialMatchFallsBackToTheLongestPrefix() throws IOException {
+		// After "aa" the next "b" completes "ab", the first "a" is written as it is
+		assertEquals("aX", rewrite("aab", "ab", "X", 1024));
+		assertEquals("aaX", rewrite("aaab", "ab", "X", 1));
+		assertEquals("abaX", rewrite("abaabab", "abab", "X", 2));
+		assertEquals("aba", rewrite("aba", "abab", "X", 1024));
+	}
+
+	@Test
+	public void namespaceAtTheBufferBoundaryIsRewritten() throws IOException {
+		for(int filler = 8192 - AGORA.length() - 1; filler <= 8192 + 1; filler++) {
+			char[] padding = new char[filler];
+			Arrays.fill(padding, 'x');
+			String prefix = new String(padding);
+			String document = prefix+AGORA+"/things/t1 "+AGORA;
+
+			assertEquals(prefix+LOCAL+"/things/t1 "+LOCAL, rewrite(document, AGORA, LOCAL, 1000));
+			assertEquals(prefix+LOCAL+"/things/t1 "+LOCAL, rewrite(document, AGORA, LOCAL, document.length()));
+		}
+	}
+
+	@Test
+	public void trailingPartialMatchIsWrittenByFinish() throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		NamespaceRewritingOutputStream rewriting = new NamespaceRewritingOutputStream(output, AGORA, LOCAL);
+		rewriting.write(("<"+AGORA.substring(0, 10)).getBytes(StandardCharsets.UTF_8));
+		rewriting.flush();
+
+		// A partial match may still become the namespace, it is held back until finish
+		assertEquals("<", output.toString("UTF-8"));
+		rewriting.finish();
+		assertEquals("<"+AGORA.substring(0, 10), output.toString("UTF-8"));
+	}
+
+	@Test
+	public void documentWithoutTheNamespaceIsWrittenAsItIs() throws IOException {
+		String document = "{\"@id\": \"http://other.example.org/things/t1\", \"name\": \"agora ñ ✓\"}";
+
+		assertEquals(document, rewrite(document, AGORA, LOCAL, 7));
+		assertEquals(document, rewrite(document, "", LOCAL, 7));
+	}
+
+	@Test
+	public void documentLargerThanTheBufferIsRewritten() throws IOException {
+		StringBuilder document = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for(int thing = 0; thing < 2000; thing++) {
+			document.append("<").append(AGORA).append("/things/t").append(thing).append("> ");
+			expected.append("<").append(LOCAL).append("/things/t").append(thing).append("> ");
+		}
+
+		assertEquals(expected.toString(), rewrite(document.toString(), AGORA, LOCAL, 3000));
+		assertEquals(expected.toString(), rewrite(document.toString(), AGORA, LOCAL, 20000));
+	}
+
+	/**
+	 * This method rewrites a document written in chunks of a given size, closing the stream at the end
+	 */
+	private static String rewrite(String document, String from, String to, int chunk) throws IOException {
+		byte[] bytes = document.getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (NamespaceRewritingOutputStream rewriting = new NamespaceRewritingOutputStream(output, from, to)) {
+			for(int offset = 0; offset < bytes.length; offset += chunk) {
+				if(chunk == 1) {
+					rewriting.write(bytes[offset]);
+				}else {
+					rewriting.write(bytes, offset, Math.min(chunk, bytes.length - offset));
+				}
+			}
+		}
+		return new String(output.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
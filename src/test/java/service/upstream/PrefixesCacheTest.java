@@ -0,0 +1,127 @@
+package service.upstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import service.metrics.GatewayMetrics;
+
+public class PrefixesCacheTest {
+
+	private static final String CORE = "http://iot.linkeddata.es/def/core#";
+	private static final String PREFIXES = "{\"core\":\""+CORE+"\"}";
+	private static final String ETAG = "\"v1\"";
+	private SimpleMeterRegistry registry;
+	private UpstreamClient upstreamClient;
+	private PrefixesCache prefixesCache;
+	private HttpServer agora;
+	private AtomicInteger retrievals = new AtomicInteger();
+	private List<String> validators = new CopyOnWriteArrayList<>();
+
+	@Before
+	public void setUp() throws IOException {
+		registry = new SimpleMeterRegistry();
+		upstreamClient = new UpstreamClient(new GatewayMetrics(registry), 10, 10, 60, 1000, 1000, 2, 10, 10, 10, 100, 10);
+		prefixesCache = new PrefixesCache(upstreamClient, 1, 60);
+		agora = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		agora.createContext("/prefixes", exchange -> {
+			retrievals.incrementAndGet();
+			String validator = exchange.getRequestHeaders().getFirst("If-None-Match");
+			if(validator!=null) {
+				validators.add(validator);
+				exchange.sendResponseHeaders(304, -1);
+				exchange.close();
+				return;
+			}
+			byte[] body = PREFIXES.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("ETag", ETAG);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		});
+		agora.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		prefixesCache.close();
+		agora.stop(0);
+		upstreamClient.close();
+	}
+
+	@Test
+	public void prefixesAreServedFromMemory() throws Exception {
+		String endpoint = endpoint();
+
+		assertEquals(CORE, core(prefixesCache.get(endpoint)));
+		assertEquals(CORE, core(prefixesCache.get(endpoint)));
+		assertFalse(prefixesCache.get(endpoint).isEmpty());
+
+		assertEquals(1, retrievals.get());
+	}
+
+	@Test
+	public void stalePrefixesAreServedWhileTheyAreRevalidated() throws Exception {
+		String endpoint = endpoint();
+		prefixesCache.get(endpoint);
+		Thread.sleep(1100);
+
+		assertEquals(CORE, core(prefixesCache.get(endpoint)));
+		for(int wait = 0; wait < 50 && validators.isEmpty(); wait++)
+			Thread.sleep(100);
+
+		assertEquals(ETAG, validators.get(0));
+		assertEquals(CORE, core(prefixesCache.get(endpoint)));
+	}
+
+	@Test
+	public void prefixesOfAnUnreachableAgoraAreEmpty() {
+		agora.stop(0);
+
+		assertTrue(prefixesCache.get(endpoint()).isEmpty());
+	}
+
+	@Test
+	public void unavailableAgoraIsNotAskedAgainBeforeTheRetry() throws IOException {
+		String endpoint = "http://localhost:"+unusedPort()+"/prefixes";
+
+		assertTrue(prefixesCache.get(endpoint).isEmpty());
+		assertTrue(prefixesCache.get(endpoint).isEmpty());
+		assertTrue(prefixesCache.get(endpoint).isEmpty());
+
+		assertEquals(1, registry.get("upstream.calls").tag("call", "prefixes").timer().count());
+	}
+
+	private static String core(PrefixesCache.Prefixes prefixes) throws JSONException {
+		return new JSONObject(prefixes.getJson()).getString("core");
+	}
+
+	private String endpoint() {
+		return "http://localhost:"+agora.getAddress().getPort()+"/prefixes";
+	}
+
+	private static int unusedPort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
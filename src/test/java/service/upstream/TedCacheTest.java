@@ -0,0 +1,145 @@
+package service.upstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import service.metrics.GatewayMetrics;
+
+public class TedCacheTest {
+
+	private static final String QUERY = "SELECT ?thing WHERE { ?thing a <http://iot.linkeddata.es/def/core#Thing> . }";
+	private SimpleMeterRegistry registry;
+	private UpstreamClient upstreamClient;
+	private TedCache tedCache;
+	private HttpServer agora;
+	private AtomicInteger discoveries = new AtomicInteger();
+	private Logger caffeine = Logger.getLogger("com.github.benmanes.caffeine.cache");
+	private List<LogRecord> warnings = new CopyOnWriteArrayList<>();
+	private Handler handler = new Handler() {
+		@Override
+		public void publish(LogRecord record) {
+			if(record.getLevel().intValue() >= Level.WARNING.intValue())
+				warnings.add(record);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		registry = new SimpleMeterRegistry();
+		upstreamClient = new UpstreamClient(new GatewayMetrics(registry), 10, 10, 60, 1000, 1000, 2, 10, 10, 10, 100, 10);
+		tedCache = new TedCache(upstreamClient, 300, 1048576);
+		caffeine.addHandler(handler);
+		agora = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		agora.createContext("/discover", exchange -> {
+			discoveries.incrementAndGet();
+			try {
+				// Identical requests arrive while the TED is being retrieved
+				Thread.sleep(300);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			byte[] body = "{\"@id\": \"http://agora/things/t1\"}".getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		});
+		agora.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		caffeine.removeHandler(handler);
+		agora.stop(0);
+		upstreamClient.close();
+	}
+
+	@Test
+	public void identicalQueriesShareACallToAgora() throws Exception {
+		String endpoint = "http://localhost:"+agora.getAddress().getPort()+"/discover";
+		List<CompletableFuture<byte[]>> teds = new ArrayList<>();
+		teds.add(tedCache.retrieve(endpoint, QUERY, true, false, "http://agora", "http://local"));
+		teds.add(tedCache.retrieve(endpoint, "  SELECT ?thing\nWHERE {\n\t?thing a <http://iot.linkeddata.es/def/core#Thing> .\n}\n", true, false, "http://agora", "http://local"));
+		teds.add(tedCache.retrieve(endpoint, "# Every Thing\n"+QUERY, true, false, "http://agora", "http://local"));
+
+		for(CompletableFuture<byte[]> ted:teds)
+			assertEquals("{\"@id\": \"http://local/things/t1\"}", new String(ted.get(10, TimeUnit.SECONDS), StandardCharsets.UTF_8));
+		assertEquals(1, discoveries.get());
+	}
+
+	@Test
+	public void differentQueriesAndFlagsAreNotShared() throws Exception {
+		String endpoint = "http://localhost:"+agora.getAddress().getPort()+"/discover";
+		String filtered = "SELECT ?thing WHERE { ?thing ?p ?o # any value\n FILTER(?o = 1) }";
+		String commented = "SELECT ?thing WHERE { ?thing ?p ?o # any value FILTER(?o = 1) }";
+
+		tedCache.retrieve(endpoint, QUERY, true, false, "http://agora", "http://local").get(10, TimeUnit.SECONDS);
+		tedCache.retrieve(endpoint, QUERY, false, false, "http://agora", "http://local").get(10, TimeUnit.SECONDS);
+		tedCache.retrieve(endpoint, QUERY, true, true, "http://agora", "http://local").get(10, TimeUnit.SECONDS);
+		tedCache.retrieve(endpoint, QUERY, true, false, "http://agora", "http://other").get(10, TimeUnit.SECONDS);
+		tedCache.retrieve(endpoint, filtered, true, false, "http://agora", "http://local").get(10, TimeUnit.SECONDS);
+		tedCache.retrieve(endpoint, commented, true, false, "http://agora", "http://local").get(10, TimeUnit.SECONDS);
+
+		assertEquals(6, discoveries.get());
+	}
+
+	@Test
+	public void failedCallsAreNotCachedNorLoggedByTheCache() throws Exception {
+		String endpoint = "http://localhost:"+unusedPort()+"/discover";
+
+		assertFailed(endpoint);
+		assertFailed(endpoint);
+
+		assertEquals(2, registry.get("upstream.calls").tag("call", "discover").timer().count());
+		assertEquals(2, tedCache.statistics().getLong("failures"));
+		assertTrue(warnings.isEmpty());
+	}
+
+	private void assertFailed(String endpoint) throws Exception {
+		try {
+			tedCache.retrieve(endpoint, QUERY, true, false, "http://agora", "http://local").get(10, TimeUnit.SECONDS);
+			fail("Agora is not reachable");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	private static int unusedPort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package service.upstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import service.metrics.GatewayMetrics;
+
+public class UpstreamGuardTest {
+
+	private SimpleMeterRegistry registry;
+	private UpstreamGuard guard;
+
+	@Before
+	public void setUp() {
+		registry = new SimpleMeterRegistry();
+		guard = new UpstreamGuard(UpstreamCall.REPOSITORY, new GatewayMetrics(registry), 2, 3, 1);
+	}
+
+	@Test
+	public void circuitOpensAfterFailuresInARow() throws Exception {
+		open();
+
+		UpstreamUnavailableException rejection = rejected();
+		assertEquals(1, rejection.getRetryAfterSeconds());
+		assertEquals(1, registry.get("upstream.circuit.open").gauge().value(), 0);
+		assertEquals(1, registry.get("upstream.rejections").tag("reason", "circuit").counter().count(), 0);
+	}
+
+	@Test
+	public void successResetsTheFailuresInARow() throws Exception {
+		for(int call = 0; call < 5; call++) {
+			guard.acquire();
+			guard.failed();
+			guard.acquire();
+			guard.failed();
+			guard.acquire();
+			guard.succeeded();
+		}
+
+		guard.acquire();
+		guard.succeeded();
+	}
+
+	@Test
+	public void halfOpenCircuitLetsASingleProbeThrough() throws Exception {
+		open();
+		Thread.sleep(1100);
+
+		guard.acquire();
+		rejected();
+		guard.succeeded();
+
+		// The probe succeeded, the circuit is closed
+		guard.acquire();
+		guard.acquire();
+		guard.succeeded();
+		guard.succeeded();
+		assertEquals(0, registry.get("upstream.circuit.open").gauge().value(), 0);
+	}
+
+	@Test
+	public void failedProbeOpensTheCircuitAgain() throws Exception {
+		open();
+		Thread.sleep(1100);
+
+		guard.acquire();
+		guard.failed();
+
+		rejected();
+		assertEquals(1, registry.get("upstream.circuit.open").gauge().value(), 0);
+	}
+
+	@Test
+	public void cancelledProbeLetsAnotherProbeThrough() throws Exception {
+		open();
+		Thread.sleep(1100);
+
+		guard.acquire();
+		guard.cancelled();
+
+		guard.acquire();
+		rejected();
+		guard.succeeded();
+	}
+
+	@Test
+	public void fullBulkheadRejectsCalls() throws Exception {
+		guard.acquire();
+		guard.acquire();
+
+		rejected();
+		assertEquals(2, registry.get("upstream.inflight").gauge().value(), 0);
+		assertEquals(1, registry.get("upstream.rejections").tag("reason", "bulkhead").counter().count(), 0);
+
+		guard.cancelled();
+		guard.acquire();
+	}
+
+	private void open() throws UpstreamUnavailableException {
+		for(int call = 0; call < 3; call++) {
+			guard.acquire();
+			guard.failed();
+		}
+	}
+
+	private UpstreamUnavailableException rejected() {
+		try {
+			guard.acquire();
+			fail("The call should have been rejected");
+			return null;
+		} catch (UpstreamUnavailableException e) {
+			return e;
+		}
+	}
+}